@@ -26,6 +26,8 @@
 
 package com.photica.photopulse.commands;
 
+import EDU.oswego.cs.dl.util.concurrent.FJTask;
+import EDU.oswego.cs.dl.util.concurrent.FJTaskRunnerGroup;
 import com.iv.flash.api.CXForm;
 import com.iv.flash.api.FlashFile;
 import com.iv.flash.api.Frame;
@@ -181,6 +183,7 @@ public class ApplyTweenCommand extends GenericXMLCommand {
         }
 
         TweenBuilder tweenBuilder = null;
+        HighQualityTweenBuilder highQualityTweenBuilder = null;
         if (isHighQuality) {
             try {
                 // Load base image to be tweened
@@ -188,8 +191,12 @@ public class ApplyTweenCommand extends GenericXMLCommand {
                         com.photica.photopulse.Util.parseRect(strImageCrop),
                         com.photica.photopulse.Util.parseScale(strImageScale), 0, 0,
                         ImageTranscoder.SCALE_BILINEAR, null);
-                if (image != null)
-                    tweenBuilder = new HighQualityTweenBuilder(ctxPhoto, scrParent, inst, image, frameNum, nTotalDuration);
+                if (image != null) {
+                    // Render frames in parallel if possible, they will be rendered after all the tweens are computed
+                    highQualityTweenBuilder = new HighQualityTweenBuilder(ctxPhoto, scrParent, inst, image,
+                            frameNum, nTotalDuration, HighQualityTweenBuilder.isParallelSupported());
+                    tweenBuilder = highQualityTweenBuilder;
+                }
             } catch (IOException e) {
                 // Fall through and do low-quality
             }
@@ -225,6 +232,9 @@ public class ApplyTweenCommand extends GenericXMLCommand {
 
                 frameNum += keyframes[i].duration;
             }
+
+            if (highQualityTweenBuilder != null)
+                highQualityTweenBuilder.renderFrames();
         } catch (CancelException e) {
             // Return immediately if user cancelled - InsertPhotosCommand will see user canceled and bail
             return;
@@ -269,6 +279,17 @@ class NormalQualityTweenBuilder implements TweenBuilder {
 }
 
 class HighQualityTweenBuilder implements TweenBuilder {
+    // Frames rendered in parallel per batch, per render thread.
+    // Limits the number of rendered frames held in memory waiting to be encoded.
+    private static final int RENDER_BATCH_PER_THREAD = 4;
+
+    // Frames whose transforms move no point of the image more than this many pixels
+    // from the previous frame are considered identical, and reuse the previous frames bitmap.
+    private static final double FRAME_PRECISION_PIXELS = 0.25;
+
+    // Shared by all parallel tweens
+    private static FJTaskRunnerGroup renderGroup;
+
     private Instance initialInst;
     private final PhotoContext context;
     private final Script script;
@@ -286,11 +307,138 @@ class HighQualityTweenBuilder implements TweenBuilder {
     private final float cropX;
     private final float cropY;
 
+    // Quantization steps for the tween transform translation and scale/shear components
+    private final double translateQuantum;
+    private final double scaleQuantum;
+
     // Set as we build each frames instance
     private Bitmap bitmap;
 
+    // Quantized transform of the last frame rendered
+    private FrameKey lastFrameKey;
+    // Whether the last frame rendered has an instance on the stage, and its color transform
+    private boolean isInstanceDisplayed;
+    private CXForm lastCXForm;
+
+    // In parallel mode, tween frames are recorded here and rendered by renderFrames()
+    private List<TweenFrame> frameList;
+
+    /**
+     * Frame recorded in parallel mode, and its rendered bitmap.
+     */
+    private static class TweenFrame {
+        final int frameNum;
+        final AffineTransform atxTween;
+        final CXForm cxfTween;
+        final boolean isInitial;
+        // Same as the previous frame, not rendered
+        final boolean isDuplicate;
+
+        // Set when rendered, its bits may still be encoding. If bitmap is null, there is nothing to display on this frame.
+        Bitmap bitmap;
+        // Encoding failed, display an error shape
+        boolean isError;
+        // Unexpected failure, rethrown on the processing thread
+        Throwable failure;
+
+        TweenFrame(int frameNum, AffineTransform atxTween, CXForm cxfTween, boolean isInitial, boolean isDuplicate) {
+            this.frameNum = frameNum;
+            this.atxTween = atxTween;
+            this.cxfTween = cxfTween;
+            this.isInitial = isInitial;
+            this.isDuplicate = isDuplicate;
+        }
+    }
+
+    /**
+     * Tween transform quantized to FRAME_PRECISION_PIXELS
+     */
+    private static class FrameKey {
+        private final long scaleX;
+        private final long shearY;
+        private final long shearX;
+        private final long scaleY;
+        private final long translateX;
+        private final long translateY;
+
+        FrameKey(AffineTransform atx, double scaleQuantum, double translateQuantum) {
+            scaleX = Math.round(atx.getScaleX() / scaleQuantum);
+            shearY = Math.round(atx.getShearY() / scaleQuantum);
+            shearX = Math.round(atx.getShearX() / scaleQuantum);
+            scaleY = Math.round(atx.getScaleY() / scaleQuantum);
+            translateX = Math.round(atx.getTranslateX() / translateQuantum);
+            translateY = Math.round(atx.getTranslateY() / translateQuantum);
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof FrameKey))
+                return false;
+            FrameKey key = (FrameKey)other;
+            return scaleX == key.scaleX && shearY == key.shearY
+                    && shearX == key.shearX && scaleY == key.scaleY
+                    && translateX == key.translateX && translateY == key.translateY;
+        }
+
+        public int hashCode() {
+            long hash = scaleX;
+            hash = 31 * hash + shearY;
+            hash = 31 * hash + shearX;
+            hash = 31 * hash + scaleY;
+            hash = 31 * hash + translateX;
+            hash = 31 * hash + translateY;
+            return (int)(hash ^ (hash >>> 32));
+        }
+    }
+
+    /**
+     * Render and encode a single recorded frame
+     */
+    private class RenderTask extends FJTask {
+        private final TweenFrame tweenFrame;
+        // Renders on behalf of the generation that created the task, the render group is shared
+        private final Runnable renderer;
+
+        RenderTask(TweenFrame tweenFrame) {
+            this.tweenFrame = tweenFrame;
+            this.renderer = context.getGenerationContext().bind(new Runnable() {
+                public void run() {
+                    render();
+                }
+            });
+        }
+
+        public void run() {
+            renderer.run();
+        }
+
+        private void render() {
+            // Don't bother if the user canceled, the frame will never be used
+            if (context.getGenerationContext().isCanceled())
+                return;
+            try {
+                BufferedImage image = renderTweenImage(tweenFrame.atxTween);
+                if (image != null) {
+                    tweenFrame.bitmap = LazyBitmap.newBitmap(context.getLazyGenerator(),
+                            new DecodedImage(baseImage.getSourceFile(), baseImage.getSourceFormat(), image), true);
+                }
+            } catch (IOException e) {
+                tweenFrame.isError = true;
+            } catch (IVException e) {
+                tweenFrame.isError = true;
+            } catch (RuntimeException e) {
+                tweenFrame.failure = e;
+            } catch (Error e) {
+                tweenFrame.failure = e;
+            }
+        }
+    }
+
+    /**
+     * @param isParallel If true, frames are only recorded as the tween is built,
+     *  renderFrames() must then be called to render them in parallel and add them to the script.
+     */
     public HighQualityTweenBuilder(PhotoContext context, Script script, Instance initialInst,
-            DecodedImage baseImage, int startFrame, int frameCount) {
+            DecodedImage baseImage, int startFrame, int frameCount, boolean isParallel) {
         this.context = context;
         this.script = script;
         this.depth = initialInst.depth;
@@ -314,11 +462,34 @@ class HighQualityTweenBuilder implements TweenBuilder {
         this.cropX = (imageWidth - stageWidth)/2.0f;
         this.cropY = (imageHeight - stageHeight)/2.0f;
 
+        // The tween transform is applied around the image center, so a change in a scale/shear
+        // component moves image points by at most that change times the image radius.
+        // Translation is in pixels.
+        double imageRadius = Math.max(1, Math.sqrt(imageWidth * imageWidth + imageHeight * imageHeight) / 2);
+        this.translateQuantum = FRAME_PRECISION_PIXELS;
+        this.scaleQuantum = FRAME_PRECISION_PIXELS / imageRadius;
+
         // Translate stage so center is at upper left - because origin of image is upper left,
         // and we want it in upper left of stage.
         this.atxStage = AffineTransform.getTranslateInstance(
                 -(stageWidth / 2.0) * ShowGenerator.TWIPS_PER_PIXEL,
                 -(stageHeight / 2.0) * ShowGenerator.TWIPS_PER_PIXEL);
+
+        if (isParallel)
+            frameList = new ArrayList<TweenFrame>(frameCount + 1);
+    }
+
+    /**
+     * Return true if the machine has enough processors to make parallel rendering worthwhile
+     */
+    public static boolean isParallelSupported() {
+        return Runtime.getRuntime().availableProcessors() > 1;
+    }
+
+    private static synchronized FJTaskRunnerGroup getRenderGroup() {
+        if (renderGroup == null)
+            renderGroup = new FJTaskRunnerGroup(Runtime.getRuntime().availableProcessors());
+        return renderGroup;
     }
 
     public boolean isMorphTween() {
@@ -328,22 +499,120 @@ class HighQualityTweenBuilder implements TweenBuilder {
     public Instance createInitialInstance(int frameNum, AffineTransform atxTween, CXForm cxfTween) throws IVException {
         // Handle the first frame of the first tween segment - use the existing command instance.
         // Subsequent segment first frames are ignored since the last frame of the previous segment overlaps.
-        if (initialInst != null) {
+        if (frameList != null) {
+            if (frameList.isEmpty()) {
+                lastFrameKey = createFrameKey(atxTween);
+                frameList.add(new TweenFrame(frameNum, atxTween, cxfTween, true, false));
+            }
+        }
+        else if (initialInst != null) {
             ProgressReporter.updateProgress((float)(frameNum - startFrame) / frameCount);
-
-            Shape shape = createTweenShape(atxTween);
-            initialInst.def = shape == null ? Shape.newEmptyShape1() : shape;
-            initialInst.matrix = atxStage;
-            initialInst.cxform = cxfTween;
-            initialInst = null;
+            lastFrameKey = createFrameKey(atxTween);
+            setInitialInstance(createTweenShape(atxTween), cxfTween);
         }
         // Ignore first instance in each tween
         return null;
     }
 
     public Instance createInstance(int frameNum, AffineTransform atxTween, CXForm cxfTween) throws IVException {
+        // Skip rendering if this frame would look the same as the previous one
+        boolean isDuplicate = isDuplicateFrame(atxTween);
+
+        if (frameList != null) {
+            frameList.add(new TweenFrame(frameNum, atxTween, cxfTween, false, isDuplicate));
+            return null;
+        }
+
         ProgressReporter.updateProgress((float)(frameNum - startFrame) / frameCount);
+        if (isDuplicate)
+            return reuseInstance(frameNum, cxfTween);
+        Frame frame = freePreviousInstance(frameNum);
+        return addInstance(frame, createTweenShape(atxTween), cxfTween);
+    }
+
+    private FrameKey createFrameKey(AffineTransform atxTween) {
+        return new FrameKey(atxTween, scaleQuantum, translateQuantum);
+    }
 
+    /**
+     * Return true if the tween transform quantizes to the same transform as the last frame rendered.
+     */
+    private boolean isDuplicateFrame(AffineTransform atxTween) {
+        FrameKey frameKey = createFrameKey(atxTween);
+        if (frameKey.equals(lastFrameKey))
+            return true;
+        lastFrameKey = frameKey;
+        return false;
+    }
+
+    /**
+     * In parallel mode, render all recorded frames on the render group
+     * and add them to the script in frame order.
+     */
+    public void renderFrames() throws IVException {
+        if (frameList == null)
+            return;
+        List<TweenFrame> tweenFrames = frameList;
+        frameList = null;
+
+        FJTaskRunnerGroup group = getRenderGroup();
+        int batchSize = group.size() * RENDER_BATCH_PER_THREAD;
+        int frameTotal = tweenFrames.size();
+        for (int batchStart = 0; batchStart < frameTotal; batchStart += batchSize) {
+            checkCanceled();
+
+            List<TweenFrame> batch = tweenFrames.subList(batchStart, Math.min(batchStart + batchSize, frameTotal));
+            List<FJTask> taskList = new ArrayList<FJTask>(batch.size());
+            for (TweenFrame tweenFrame : batch) {
+                if (!tweenFrame.isDuplicate)
+                    taskList.add(new RenderTask(tweenFrame));
+            }
+            FJTask[] tasks = taskList.toArray(new FJTask[taskList.size()]);
+            try {
+                group.invoke(FJTask.par(tasks));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancelException();
+            }
+
+            // Add rendered frames in order, so bitmaps are written to the LazyGenerator in order
+            for (TweenFrame tweenFrame : batch) {
+                ProgressReporter.updateProgress((float)(tweenFrame.frameNum - startFrame) / frameCount);
+                if (tweenFrame.isInitial)
+                    setInitialInstance(createTweenShape(tweenFrame), tweenFrame.cxfTween);
+                else if (tweenFrame.isDuplicate) {
+                    checkCanceled();
+                    reuseInstance(tweenFrame.frameNum, tweenFrame.cxfTween);
+                }
+                else {
+                    Frame frame = freePreviousInstance(tweenFrame.frameNum);
+                    addInstance(frame, createTweenShape(tweenFrame), tweenFrame.cxfTween);
+                }
+                tweenFrame.bitmap = null;
+            }
+        }
+    }
+
+    private void setInitialInstance(Shape shape, CXForm cxfTween) {
+        initialInst.def = shape == null ? Shape.newEmptyShape1() : shape;
+        initialInst.matrix = atxStage;
+        initialInst.cxform = cxfTween;
+        initialInst = null;
+        isInstanceDisplayed = true;
+        lastCXForm = cxfTween;
+    }
+
+    /**
+     * Leave the previous frames bitmap instance in place, just update its color transform if it changed.
+     */
+    private Instance reuseInstance(int frameNum, CXForm cxfTween) {
+        if (!isInstanceDisplayed || cxfTween == lastCXForm)
+            return null;
+        lastCXForm = cxfTween;
+        return script.getFrameAt(frameNum).addInstance(depth, atxStage, cxfTween);
+    }
+
+    private Frame freePreviousInstance(int frameNum) {
         Frame frame = script.getFrameAt(frameNum);
 
         // Remove previous bitmap and instance if there was one
@@ -351,20 +620,69 @@ class HighQualityTweenBuilder implements TweenBuilder {
             frame.addFlashObject(new FreeCharacter(bitmap));
             frame.removeInstance(depth);
         }
+        return frame;
+    }
 
-        Shape shape = createTweenShape(atxTween);
+    private Instance addInstance(Frame frame, Shape shape, CXForm cxfTween) {
+        isInstanceDisplayed = shape != null;
+        lastCXForm = cxfTween;
         if (shape == null)
             return null;
         return frame.addInstance(shape, depth, atxStage, cxfTween);
     }
 
-    public Shape createTweenShape(AffineTransform atxTween) throws IVException {
+    private void checkCanceled() throws CancelException {
         // High quality takes a long time, so check for cancellation on each frame
-        if (ProgressReporter.isCanceled())
+        if (context.getGenerationContext().isCanceled())
             throw new CancelException();
+    }
+
+    public Shape createTweenShape(AffineTransform atxTween) throws IVException {
+        checkCanceled();
 
         bitmap = null;
 
+        BufferedImage croppedImage = renderTweenImage(atxTween);
+        if (croppedImage == null)
+            return null;
+
+        try {
+            Bitmap bm = new LazyBitmap(context.getLazyGenerator(),
+                    new DecodedImage(baseImage.getSourceFile(), baseImage.getSourceFormat(), croppedImage),
+                    true);
+            Shape shape = com.photica.photopulse.Util.bitmapFill(bm);
+            bitmap = bm;
+            return shape;
+        } catch (IOException e) {
+            return context.createImageErrorShape();
+        }
+    }
+
+    private Shape createTweenShape(TweenFrame tweenFrame) throws IVException {
+        checkCanceled();
+
+        bitmap = null;
+
+        if (tweenFrame.failure instanceof RuntimeException)
+            throw (RuntimeException)tweenFrame.failure;
+        else if (tweenFrame.failure instanceof Error)
+            throw (Error)tweenFrame.failure;
+        if (tweenFrame.isError)
+            return context.createImageErrorShape();
+        if (tweenFrame.bitmap == null)
+            return null;
+
+        Shape shape = com.photica.photopulse.Util.bitmapFill(tweenFrame.bitmap);
+        bitmap = tweenFrame.bitmap;
+        return shape;
+    }
+
+    /**
+     * Transform and crop the base image to the stage.
+     * This is threadsafe, it is called from the render group in parallel mode.
+     * @return Stage sized image, or null if there is nothing to display
+     */
+    private BufferedImage renderTweenImage(AffineTransform atxTween) {
         // If image is smaller than stage (negative crop),
         // translate to prevent transform from losing negative image bits.
         AffineTransform atxImage = AffineTransform.getTranslateInstance(cropX < 0 ? -cropX : 0, cropY < 0 ? -cropY : 0);
@@ -395,20 +713,9 @@ class HighQualityTweenBuilder implements TweenBuilder {
 
         int x = (int)Math.max(0, cropX);
         int y = (int)Math.max(0, cropY);
-        BufferedImage croppedImage = transformedImage.getSubimage(x, y,
+        return transformedImage.getSubimage(x, y,
                 (int)Math.min(stageWidth, transformedImage.getWidth() - x),
                 (int)Math.min(stageHeight, transformedImage.getHeight() - y));
-
-        try {
-            Bitmap bm = new LazyBitmap(context.getLazyGenerator(),
-                    new DecodedImage(baseImage.getSourceFile(), baseImage.getSourceFormat(), croppedImage),
-                    true);
-            Shape shape = com.photica.photopulse.Util.bitmapFill(bm);
-            bitmap = bm;
-            return shape;
-        } catch (IOException e) {
-            return context.createImageErrorShape();
-        }
     }
 }
 
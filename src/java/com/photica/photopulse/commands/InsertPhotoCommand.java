@@ -39,14 +39,12 @@ import com.iv.flash.context.Context;
 import com.iv.flash.util.IVException;
 import com.photica.photopulse.SystemMessages;
 import com.photica.photopulse.Util;
-import com.photica.photopulse.model.effects.ToneEffect;
 import com.photica.photopulse.flash.context.PhotoContext;
-import com.photica.photopulse.imageio.ToneOp;
+import com.photica.photopulse.imageio.ToneTranscodeOp;
 import com.photica.photopulse.imageio.TranscodeOp;
 
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
-import java.awt.image.BufferedImage;
 import java.io.File;
 
 public class InsertPhotoCommand extends GenericCommand {
@@ -110,11 +108,7 @@ public class InsertPhotoCommand extends GenericCommand {
             }
         }
         else {
-            TranscodeOp op = null;
-            if (ToneEffect.Tone.SEPIA.toString().equals(toneSpec))
-                op = new TranscodeToneOp(true);
-            else if (ToneEffect.Tone.GRAY.toString().equals(toneSpec))
-                op = new TranscodeToneOp(false);
+            TranscodeOp op = ToneTranscodeOp.newToneOp(toneSpec);
             photoDef = photoContext.loadPhoto(new File(imagePath), cropSpec, scaleSpec, op);
         }
 
@@ -156,22 +150,4 @@ public class InsertPhotoCommand extends GenericCommand {
         shape.setBounds(rect);
         return shape;
     }
-
-    private class TranscodeToneOp implements TranscodeOp {
-        private boolean isSepia;
-        private ToneOp op;
-
-        public TranscodeToneOp(boolean isSepia) {
-            this.isSepia = isSepia;
-            op = new ToneOp(isSepia);
-        }
-
-        public BufferedImage filter(BufferedImage srcImage) {
-            return op.filter(srcImage, null);
-        }
-
-        public String getOpName() {
-            return getClass().getName() + (isSepia ? "sepia" : "gray");
-        }
-    }
 }
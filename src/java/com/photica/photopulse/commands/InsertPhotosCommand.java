@@ -38,7 +38,6 @@ import com.iv.flash.api.action.Program;
 import com.iv.flash.api.image.Bitmap;
 import com.iv.flash.api.shape.MorphShape;
 import com.iv.flash.api.shape.Shape;
-import com.iv.flash.cache.MediaCache;
 import com.iv.flash.commands.GenericXMLCommand;
 import com.iv.flash.context.Context;
 import com.iv.flash.url.IVUrl;
@@ -59,7 +58,6 @@ import java.awt.Dimension;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -145,7 +143,8 @@ public class InsertPhotosCommand extends GenericXMLCommand {
         // Load shapes with full parsing, so Shapes instead of LazyShapes are loaded
         loadLibrary(strLibraryPath + "shapes.swt", true);
 
-        photoContext = new PhotoContext(flashFile, ctxPhotoPulse.getTranscoder(), ctxPhotoPulse.isHighQuality(), ctxPhotoPulse.getLazyGenerator());
+        photoContext = new PhotoContext(flashFile, ctxPhotoPulse.getTranscoder(), ctxPhotoPulse.getPhotoPrefetcher(), ctxPhotoPulse.isHighQuality(), ctxPhotoPulse.getLazyGenerator(),
+                ctxPhotoPulse.getGenerationContext());
 
         Instance inst = getInstance();
 
@@ -205,7 +204,7 @@ public class InsertPhotosCommand extends GenericXMLCommand {
 
         while (iter.hasNext()) {
             // Report progress and bail if canceled
-            if (ProgressReporter.isCanceled())
+            if (photoContext.getGenerationContext().isCanceled())
                 return;
 
             // Push progress portion, nested commands can report sub-progress relative to this
@@ -367,6 +366,7 @@ public class InsertPhotosCommand extends GenericXMLCommand {
         Script scrControls = flashFile.getScript(CONTROLS_CLIP);
         if (scrControls == null)
             throw new IVException(Resource.CMDSCRIPTNOTFOUND, new Object[] { CONTROLS_CLIP, getCommandName() });
+        scrControls = scrControls.copyScript();
 
         // Add controls to lower left
         Rectangle2D rectControls = scrControls.getBounds();
@@ -473,6 +473,7 @@ public class InsertPhotosCommand extends GenericXMLCommand {
         Script scrLogo = flashFile.getScript(LOGO_CLIP);
         if (scrLogo == null)
             throw new IVException(Resource.CMDSCRIPTNOTFOUND, new Object[] { LOGO_CLIP, getCommandName() });
+        scrLogo = scrLogo.copyScript();
 
         // Scale logo to half stage width and position in upper left
         Rectangle2D rectLogo = scrLogo.getBounds();
@@ -493,6 +494,7 @@ public class InsertPhotosCommand extends GenericXMLCommand {
         Script scrEndSplash = flashFile.getScript(SPLASH_CLIP);
         if (scrEndSplash == null)
             throw new IVException(Resource.CMDSCRIPTNOTFOUND, new Object[] { SPLASH_CLIP, getCommandName() });
+        scrEndSplash = scrEndSplash.copyScript();
 
         // Scale splash to stage width
         double dblScale = stageRect.getWidth() / scrEndSplash.getBounds().getWidth();
@@ -1128,14 +1130,8 @@ public class InsertPhotosCommand extends GenericXMLCommand {
             if (file != null)
                 return;
 
-            // Cache the parsed file
-            file = (FlashFile)MediaCache.getMedia(strPath);
-            if (file == null) {
-                InputStream is = url.getInputStream();
-                file = FlashFile.parse(strPath, is, bFullParsing, null);
-                MediaCache.addMedia(url, file, file.getFileSize(), true);
-            }
-
+            // Shared parsed library, scripts must be copied before use
+            file = LibraryCache.getLibrary(url, bFullParsing);
             flashFile.addExternalFile(strPath, file);
         } catch (IOException e) {
             throw new IVException(Resource.ERRREADINGFILE, new Object[] {strPath}, e);
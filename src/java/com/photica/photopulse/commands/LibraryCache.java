@@ -0,0 +1,84 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.commands;
+
+import com.iv.flash.api.FlashFile;
+import com.iv.flash.url.IVUrl;
+import com.iv.flash.util.IVException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+/**
+ * Process wide cache of parsed SWT libraries, keyed by URL and parse mode.
+ * Cached libraries are shared by every show generated in the process and must be treated
+ * as immutable - scripts must be copied (Script.copyScript) before they are processed or modified.
+ */
+public class LibraryCache {
+
+    private static HashMap<String,FlashFile> CACHE = new HashMap<String,FlashFile>();
+
+    /**
+     * Return the parsed library, parsing it if not yet cached.
+     * @param bFullParsing true to fully parse shapes instead of loading LazyShapes
+     */
+    public static synchronized FlashFile getLibrary(IVUrl url, boolean bFullParsing) throws IOException, IVException {
+        String strKey = getKey(url.getName(), bFullParsing);
+        FlashFile file = CACHE.get(strKey);
+        if (file != null)
+            return file;
+
+        InputStream is = url.getInputStream();
+        try {
+            file = FlashFile.parse(url.getName(), is, bFullParsing, null);
+        } finally {
+            is.close();
+        }
+        CACHE.put(strKey, file);
+        return file;
+    }
+
+    /**
+     * Discard all cached libraries, e.g. after editing SWTs during development.
+     */
+    public static synchronized void invalidate() {
+        CACHE.clear();
+    }
+
+    /**
+     * Discard the cached library with the given URL name, in all parse modes.
+     */
+    public static synchronized void invalidate(String strName) {
+        CACHE.remove(getKey(strName, true));
+        CACHE.remove(getKey(strName, false));
+    }
+
+    private static String getKey(String strName, boolean bFullParsing) {
+        return (bFullParsing ? "full:" : "lazy:") + strName;
+    }
+}
@@ -30,6 +30,7 @@ import com.iv.flash.util.FlashOutput;
 import com.iv.flash.util.IVException;
 import com.photica.photopulse.PhotoPulse;
 import com.photica.photopulse.flash.context.MP3Data;
+import com.photica.photopulse.flash.output.GenerationAbortedException;
 import com.photica.photopulse.flash.output.LazyGenerator;
 import com.photica.photopulse.model.ShowModel;
 
@@ -89,6 +90,11 @@ public class EXEExporter extends ShowExporterBase {
             raf.write(size>>>8 & 0x000000FF);
             raf.write(size>>>16 & 0x000000FF);
             raf.write(size>>>24 & 0x000000FF);
+        } catch (GenerationAbortedException e) {
+            // Do not leave a truncated projector behind
+            raf.close();
+            getExportFile().delete();
+            throw e;
         } finally {
             raf.close();
         }
@@ -32,6 +32,7 @@ import com.photica.photopulse.SystemMessages;
 import com.photica.photopulse.PhotoPulse;
 import com.photica.photopulse.Util;
 import com.photica.photopulse.flash.context.MP3Data;
+import com.photica.photopulse.flash.output.GenerationAbortedException;
 import com.photica.photopulse.flash.output.LazyGenerator;
 import com.photica.photopulse.imageio.ImageCoder;
 import com.photica.photopulse.imageio.ImageTranscoder;
@@ -92,6 +93,11 @@ public class HTMExporter extends ShowExporterBase {
         try {
             LazyGenerator.writeFlashOutput(lazyGenerator, swfShow, raf);
             insertVersion(raf);
+        } catch (GenerationAbortedException e) {
+            // Do not leave a truncated show behind, the launch page has not been written yet
+            raf.close();
+            filSWF.delete();
+            throw e;
         } finally {
             raf.close();
         }
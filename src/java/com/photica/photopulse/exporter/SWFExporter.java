@@ -29,6 +29,7 @@ package com.photica.photopulse.exporter;
 import com.iv.flash.util.FlashOutput;
 import com.iv.flash.util.IVException;
 import com.photica.photopulse.flash.context.MP3Data;
+import com.photica.photopulse.flash.output.GenerationAbortedException;
 import com.photica.photopulse.flash.output.LazyGenerator;
 import com.photica.photopulse.model.ShowModel;
 
@@ -57,6 +58,11 @@ public class SWFExporter extends ShowExporterBase {
         try {
             LazyGenerator.writeFlashOutput(lazyGenerator, swfShow, raf);
             insertVersion(raf);
+        } catch (GenerationAbortedException e) {
+            // Do not leave a truncated show behind
+            raf.close();
+            getExportFile().delete();
+            throw e;
         } finally {
             raf.close();
         }
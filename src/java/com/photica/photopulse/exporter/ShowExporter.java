@@ -29,6 +29,7 @@ package com.photica.photopulse.exporter;
 import com.iv.flash.util.FlashOutput;
 import com.iv.flash.util.IVException;
 import com.photica.photopulse.flash.context.MP3Data;
+import com.photica.photopulse.flash.output.DeflateSettings;
 import com.photica.photopulse.flash.output.LazyGenerator;
 import com.photica.photopulse.model.ShowModel;
 
@@ -73,10 +74,17 @@ public interface ShowExporter {
      */
     public boolean isLazyGenerationSupported();
 
+    /**
+     * Return how high quality bitmaps should be deflated
+     */
+    public DeflateSettings getDeflateSettings();
+
     /**
      * Implement show saving.
      * @param swfShow The show itself
-     * @param lazyGenerator If not null, must be used to export swfShow
+     * @param lazyGenerator If not null, must be used to export swfShow.
+     *      swfShow may not be generated yet, only its FlashFile is available until written.
+     *      If writing throws GenerationAbortedException, delete any incomplete files written and rethrow it.
      * @param swfMP3 The MP3 or null
      * @return true if show exported, false if canceled
      */
@@ -28,6 +28,7 @@ package com.photica.photopulse.exporter;
 
 import com.photica.photopulse.model.ShowModel;
 import com.photica.photopulse.flash.context.MP3Data;
+import com.photica.photopulse.flash.output.DeflateSettings;
 import com.photica.photopulse.flash.output.LazyGenerator;
 import com.photica.photopulse.PhotoPulse;
 import com.iv.flash.util.FlashOutput;
@@ -89,6 +90,14 @@ public abstract class ShowExporterBase implements ShowExporter {
         return true;
     }
 
+    /**
+     * Subclasses can override to change the defaults for their export type.
+     * System properties can override those, see DeflateSettings.
+     */
+    public DeflateSettings getDeflateSettings() {
+        return DeflateSettings.getSettings(showType.toString(), DeflateSettings.DEFAULT);
+    }
+
     /**
      * Subclasses must override and implement show saving.
      * @return true if show exported, false if canceled
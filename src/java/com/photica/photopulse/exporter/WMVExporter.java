@@ -33,6 +33,7 @@ import com.photica.photopulse.PhotoPulse;
 import com.photica.photopulse.SystemMessages;
 import com.photica.photopulse.flash.ShowGenerator;
 import com.photica.photopulse.flash.context.MP3Data;
+import com.photica.photopulse.flash.output.DeflateSettings;
 import com.photica.photopulse.flash.output.LazyGenerator;
 import com.photica.photopulse.model.ShowModel;
 import com.photica.photopulse.progress.ProgressReporter;
@@ -43,6 +44,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.URI;
 import java.util.Iterator;
+import java.util.zip.Deflater;
 
 public class WMVExporter extends ShowExporterBase {
 
@@ -97,6 +99,14 @@ public class WMVExporter extends ShowExporterBase {
         return null;
     }
 
+    /**
+     * The swf is only an intermediate file that is rendered to video,
+     * so favor speed over size when deflating high quality bitmaps.
+     */
+    public DeflateSettings getDeflateSettings() {
+        return DeflateSettings.getSettings(getShowType().toString(), new DeflateSettings(Deflater.BEST_SPEED, true));
+    }
+
     public boolean exportShow(ShowModel model, FlashOutput swfShow, LazyGenerator lazyGenerator, FlashOutput swfMP3, MP3Data mp3Data) throws IOException, IVException, ExportException {
         boolean deleteExportFile = false;
         File swfFile = null;
@@ -107,6 +117,7 @@ public class WMVExporter extends ShowExporterBase {
                 mp3Files = loadMP3s(mp3Data);
 
             // We need to write the swf to disk in a temp file first via LazyGenerator.
+            // If generation is aborted, only the temp file has been written and it is deleted below.
             swfFile = File.createTempFile("wmvtmp", ".swf", getExportFile().getParentFile());
             RandomAccessFile rafSWF = new RandomAccessFile(swfFile, "rw");
             try {
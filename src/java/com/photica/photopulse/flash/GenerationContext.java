@@ -0,0 +1,159 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.flash;
+
+import com.photica.photopulse.License;
+import com.photica.photopulse.PhotoPulse;
+import com.photica.photopulse.progress.ProgressIndicator;
+import com.photica.photopulse.progress.ProgressReporter;
+
+import java.io.StringWriter;
+import java.io.Writer;
+
+/**
+ * State for a single ShowGenerator.generate invocation - where log messages go,
+ * who is told about progress, whether it has been canceled and which license it is generated under.
+ * Each concurrent generation needs its own GenerationContext.
+ * <p>
+ * The context is available to commands through PhotoPulseContext and PhotoContext.
+ * isCanceled may be called from any thread, including worker threads the generation uses.
+ * Tasks run on worker threads must be wrapped with bind so their log messages reach this generation.
+ */
+public class GenerationContext {
+    private final StringWriter logWriter;
+    private final ProgressIndicator progressIndicator;
+    private final License license;
+    private volatile boolean isCanceled = false;
+
+    /**
+     * Generate under the current PhotoPulse license.
+     * @param logWriter Filled with error log messages
+     * @param progressIndicator Progress and cancellation for this generation only.
+     *   If null, the ProgressReporter indicator already installed is used.
+     */
+    public GenerationContext(StringWriter logWriter, ProgressIndicator progressIndicator) {
+        this(logWriter, progressIndicator, getCurrentLicense());
+    }
+
+    /**
+     * @param license License to generate under, null if unlicensed
+     */
+    public GenerationContext(StringWriter logWriter, ProgressIndicator progressIndicator, License license) {
+        this.logWriter = logWriter;
+        this.progressIndicator = progressIndicator;
+        this.license = license;
+    }
+
+    // Expired timestamped licenses are discarded
+    private static License getCurrentLicense() {
+        // Bury a check for an expired license here, in case the user is playing with their system clock.
+        License license = PhotoPulse.LICENSE;
+        if (license != null
+                && license.getType() == License.Type.TIMESTAMPED
+                && license.isExpired()) {
+            PhotoPulse.LICENSE = null;
+            return null;
+        }
+        return license;
+    }
+
+    public StringWriter getLogWriter() {
+        return logWriter;
+    }
+
+    /**
+     * @return Indicator for this generation, null if the installed ProgressReporter indicator is used
+     */
+    public ProgressIndicator getProgressIndicator() {
+        return progressIndicator;
+    }
+
+    public License getLicense() {
+        return license;
+    }
+
+    public boolean isLicensed() {
+        return license != null;
+    }
+
+    /**
+     * Cancel this generation. Generation stops at the next cancellation check and produces no output.
+     */
+    public void cancel() {
+        isCanceled = true;
+    }
+
+    public boolean isCanceled() {
+        if (isCanceled)
+            return true;
+        if (progressIndicator != null)
+            return progressIndicator.isCanceled();
+        return ProgressReporter.isCanceled();
+    }
+
+    /**
+     * Install this context as the calling thread's ProgressReporter indicator,
+     * so progress reported through ProgressReporter during generation goes to this context.
+     * Does nothing if this context has no indicator of its own.
+     */
+    /**
+     * Wrap a task that runs on a worker thread on behalf of this generation.
+     * JGenerator messages logged while the task runs go to this generation's log writer,
+     * whichever thread runs it. Call this when the task is submitted.
+     */
+    public Runnable bind(final Runnable task) {
+        return new Runnable() {
+            public void run() {
+                Writer previous = GenerationLogAppender.bindThread(logWriter);
+                try {
+                    task.run();
+                } finally {
+                    GenerationLogAppender.bindThread(previous);
+                }
+            }
+        };
+    }
+
+    void install() {
+        if (progressIndicator == null)
+            return;
+        ProgressReporter.setThreadProgressIndicator(new ProgressIndicator() {
+            public void updateProgress(float progress) {
+                progressIndicator.updateProgress(progress);
+            }
+
+            public boolean isCanceled() {
+                return GenerationContext.this.isCanceled();
+            }
+        });
+    }
+
+    void uninstall() {
+        if (progressIndicator != null)
+            ProgressReporter.setThreadProgressIndicator(null);
+    }
+}
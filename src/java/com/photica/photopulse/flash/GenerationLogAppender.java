@@ -0,0 +1,139 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.flash;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Routes JGenerator log messages to the Writer of the generation running on the logging thread.
+ * This keeps the error logs of concurrent generations separate.
+ * Worker threads (e.g. encode, render and prefetch pools) are bound to the generation
+ * that submitted their task for as long as the task runs, see GenerationContext.bind.
+ * Messages logged from threads not bound to any generation go to System.err.
+ */
+class GenerationLogAppender extends AppenderSkeleton {
+
+    private static GenerationLogAppender instance;
+
+    private final Map<Thread,Writer> writerMap = new HashMap<Thread, Writer>();
+
+    private GenerationLogAppender() {
+        setLayout(new MessageLayout());
+    }
+
+    /**
+     * Collect messages logged on the current thread into writer, until end() is called.
+     * Replaces any other appenders on logger the first time it is called.
+     */
+    public static void begin(Logger logger, Writer writer) {
+        GenerationLogAppender appender;
+        synchronized (GenerationLogAppender.class) {
+            if (instance == null) {
+                instance = new GenerationLogAppender();
+                logger.removeAllAppenders();
+                logger.addAppender(instance);
+            }
+            appender = instance;
+        }
+        synchronized (appender.writerMap) {
+            appender.writerMap.put(Thread.currentThread(), writer);
+        }
+    }
+
+    /**
+     * Stop collecting messages logged on the current thread.
+     */
+    public static void end() {
+        GenerationLogAppender appender;
+        synchronized (GenerationLogAppender.class) {
+            appender = instance;
+        }
+        if (appender == null)
+            return;
+        synchronized (appender.writerMap) {
+            appender.writerMap.remove(Thread.currentThread());
+        }
+    }
+
+    /**
+     * Collect messages logged on the current thread into writer, replacing the writer it was bound to.
+     * Used to run tasks on worker threads on behalf of a generation.
+     * @param writer Writer to bind, null to unbind the thread
+     * @return Writer the thread was bound to, or null
+     */
+    static Writer bindThread(Writer writer) {
+        GenerationLogAppender appender;
+        synchronized (GenerationLogAppender.class) {
+            appender = instance;
+        }
+        // Nothing is routed until a generation has begun
+        if (appender == null)
+            return null;
+        synchronized (appender.writerMap) {
+            if (writer != null)
+                return appender.writerMap.put(Thread.currentThread(), writer);
+            else
+                return appender.writerMap.remove(Thread.currentThread());
+        }
+    }
+
+    protected void append(LoggingEvent event) {
+        Writer writer;
+        synchronized (writerMap) {
+            writer = writerMap.get(Thread.currentThread());
+        }
+
+        String message = getLayout().format(event);
+        if (writer == null) {
+            System.err.print(message);
+            return;
+        }
+        try {
+            synchronized (writer) {
+                writer.write(message);
+                writer.flush();
+            }
+        } catch (IOException e) {
+            errorHandler.error("Failed to write log message", e, 0);
+        }
+    }
+
+    public boolean requiresLayout() {
+        return true;
+    }
+
+    public void close() {
+        closed = true;
+    }
+}
@@ -46,21 +46,20 @@ import com.iv.flash.util.Tag;
 import com.photica.photopulse.SystemMessages;
 import com.photica.photopulse.PhotoPulse;
 import com.photica.photopulse.Util;
-import com.photica.photopulse.License;
 import com.photica.photopulse.commands.InsertPhotosCommand;
 import com.photica.photopulse.exporter.ExportException;
 import com.photica.photopulse.exporter.PreviewExporter;
 import com.photica.photopulse.exporter.ShowExporter;
 import com.photica.photopulse.flash.context.MP3Data;
+import com.photica.photopulse.flash.context.PhotoPrefetcher;
 import com.photica.photopulse.flash.context.PhotoPulseContext;
+import com.photica.photopulse.flash.output.GenerationAbortedException;
 import com.photica.photopulse.flash.output.LazyGenerator;
 import com.photica.photopulse.imageio.ImageTranscoder;
 import com.photica.photopulse.model.ShowModel;
 import com.photica.photopulse.progress.ProgressReporter;
 import com.photica.photopulse.skin.Skin;
 import com.photica.photopulse.skin.SkinException;
-import org.apache.log4j.Logger;
-import org.apache.log4j.WriterAppender;
 import org.w3c.dom.Document;
 
 import java.awt.Color;
@@ -102,6 +101,7 @@ public class ShowGenerator {
 
     /**
      * The model Skin will be loaded and unloaded.
+     * Uses the current license and the installed ProgressReporter indicator.
      * @param model Model of show being exported
      * @param mp3Data Parsed MP3, may be null
      * @param exporter Object that knows how and where to save a show.
@@ -111,18 +111,37 @@ public class ShowGenerator {
      */
     public static boolean generate(ShowModel model, MP3Data mp3Data,
             ShowExporter exporter, ImageTranscoder transcoder, StringWriter swLogErrors) throws IVException, SkinException, IOException, ExportException {
+        return generate(model, mp3Data, exporter, transcoder, new GenerationContext(swLogErrors, null));
+    }
+
+    /**
+     * The model Skin will be loaded and unloaded.
+     * Concurrent calls are safe as long as each uses its own GenerationContext and exporter.
+     * @param model Model of show being exported
+     * @param mp3Data Parsed MP3, may be null
+     * @param exporter Object that knows how and where to save a show.
+     * @param transcoder Used to crop/scale photos in the show
+     * @param genContext Log, progress, cancellation and license for this generation
+     * @return true if output generated, false if no output generated (check the context log writer)
+     */
+    public static boolean generate(ShowModel model, MP3Data mp3Data,
+            ShowExporter exporter, ImageTranscoder transcoder, GenerationContext genContext) throws IVException, SkinException, IOException, ExportException {
 
-        // Bury a check for an expired license here, in case the user is playing with their system clock.
-        if (PhotoPulse.LICENSE != null
-                && PhotoPulse.LICENSE.getType() == License.Type.TIMESTAMPED
-                && PhotoPulse.LICENSE.isExpired()) {
-            PhotoPulse.LICENSE = null;
+        // Collect messages logged on this thread
+        GenerationLogAppender.begin(Log.getLogger(), genContext.getLogWriter());
+        genContext.install();
+        try {
+            return generateShow(model, mp3Data, exporter, transcoder, genContext);
+        } finally {
+            genContext.uninstall();
+            GenerationLogAppender.end();
         }
+    }
+
+    private static boolean generateShow(ShowModel model, MP3Data mp3Data,
+            ShowExporter exporter, ImageTranscoder transcoder, GenerationContext genContext) throws IVException, SkinException, IOException, ExportException {
 
-        // Collect messages logged
-        Logger logger = Log.getLogger();
-        logger.removeAllAppenders();
-        logger.addAppender(new WriterAppender(new MessageLayout(), swLogErrors));
+        StringWriter swLogErrors = genContext.getLogWriter();
 
         // Let the exporter clone and modify the model if it needs to
         model = exporter.cloneShowModel(model);
@@ -132,10 +151,15 @@ public class ShowGenerator {
         skin.load();
 
         LazyGenerator lazyGenerator = null;
+        PhotoPrefetcher prefetcher = null;
 
         try {
             Document document = new ShowDocumentBuilder().buildDocument(model);
 
+            // Start transcoding photos in the background while the template is set up and processed
+            prefetcher = new PhotoPrefetcher(document, transcoder, genContext);
+            prefetcher.start();
+
             // Set the progress portion to whatever is left by the exporter
             ProgressReporter.pushProgressPortion(1.0f - exporter.getProgressPortion());
 
@@ -168,8 +192,10 @@ public class ShowGenerator {
                 }
             }
 
-            if (exporter.isLazyGenerationSupported())
-                lazyGenerator = new LazyGenerator(exporter.getExportFile());
+            if (exporter.isLazyGenerationSupported()) {
+                lazyGenerator = new LazyGenerator(exporter.getExportFile(), genContext);
+                lazyGenerator.setDeflateSettings(exporter.getDeflateSettings());
+            }
 
             // Nested XML context for DOM Document
             // Apply branding if unlicensed and this is not a preview export
@@ -177,17 +203,18 @@ public class ShowGenerator {
                     skin.getEventHandler(),
                     (mp3Mode == ShowModel.MP3Mode.INTERNAL ? mp3Data : null),
                     mp3FileName, swfMP3 == null ? 0 : swfMP3.getFlashFile().getMainScript().getFrameCount(),
-                    transcoder, lazyGenerator,
-                    PhotoPulse.LICENSE == null ? !(exporter instanceof PreviewExporter) : false,
+                    transcoder, prefetcher, lazyGenerator, genContext,
+                    genContext.isLicensed() ? false : !(exporter instanceof PreviewExporter),
                     exporter.isHighQuality());
 
             // Process SWT template
             swt.processFile(ctxPhotoPulse);
             addEndShowMode(model.getEndShowMode(), exporter.getShowType(), swt);
-            FlashOutput swf = swt.generate();
+            // LazyGenerator defers generation, streaming the SWF when the exporter writes it
+            FlashOutput swf = lazyGenerator != null ? lazyGenerator.generate(swt) : swt.generate();
 
             // Bail before writing anything if user canceled
-            if (ProgressReporter.isCanceled())
+            if (genContext.isCanceled())
                 return false;
 
             // Fail if jgenerator messages logged
@@ -206,11 +233,20 @@ public class ShowGenerator {
             ProgressReporter.popProgressPortion();
             ProgressReporter.pushProgressPortion(exporter.getProgressPortion());
 
-            // Save the shows files
-            boolean result = exporter.exportShow(model, swf, lazyGenerator, swfMP3, mp3Data);
+            // Save the shows files.
+            // LazyGenerator aborts the export if canceled or jgenerator messages are logged during deferred generation.
+            boolean result;
+            try {
+                result = exporter.exportShow(model, swf, lazyGenerator, swfMP3, mp3Data);
+            } catch (GenerationAbortedException e) {
+                // The exporter has removed the incomplete files it wrote
+                return false;
+            }
             ProgressReporter.popProgressPortion();
             return result;
         } finally {
+            if (prefetcher != null)
+                prefetcher.shutdown();
             if (lazyGenerator != null)
                 lazyGenerator.cleanup();
             skin.unload();
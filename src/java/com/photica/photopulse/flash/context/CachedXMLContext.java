@@ -0,0 +1,109 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.flash.context;
+
+import com.iv.flash.context.Context;
+import com.iv.flash.context.XMLContext;
+import org.jaxen.JaxenException;
+import org.w3c.dom.DOMException;
+import org.w3c.dom.Node;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * XMLContext that evaluates expressions through the XPathCache.
+ * Evaluation results are identical to the jgenerator Jaxen XMLContext.
+ */
+public class CachedXMLContext extends XMLContext {
+
+    public CachedXMLContext(Context ctxParent, Node node) {
+        super(ctxParent, node);
+    }
+
+    public String getValue(String strPath) {
+        try {
+            Object result = XPathCache.getInstance().getExpression(strPath).evaluate(node);
+            if (result instanceof List) {
+                List nodes = (List)result;
+                if (nodes.size() == 1)
+                    return getNodeData((Node)nodes.get(0));
+                else if (nodes.size() > 1) {
+                    StringBuffer sb = new StringBuffer();
+                    for (Iterator i = nodes.iterator(); i.hasNext();)
+                        sb.append(getNodeData((Node)i.next()));
+                    return sb.toString();
+                }
+            }
+            else if (result != null)
+                return result.toString();
+        } catch (DOMException e) {
+        } catch (JaxenException e) {
+        }
+        return getValueFromParent(strPath);
+    }
+
+    public List getValueList(String strPath) {
+        try {
+            List nodes = XPathCache.getInstance().getExpression(strPath).selectNodes(node);
+            int size = nodes.size();
+            if (size > 0) {
+                List<CachedXMLContext> contexts = new ArrayList<CachedXMLContext>(size);
+                for (int i = 0; i < size; i++)
+                    contexts.add(new CachedXMLContext(this, (Node)nodes.get(i)));
+                return contexts;
+            }
+        } catch (JaxenException e) {
+        }
+        return getValueListFromParent(strPath);
+    }
+
+    private String getNodeData(Node node) {
+        switch (node.getNodeType()) {
+        case Node.DOCUMENT_NODE:
+        case Node.DOCUMENT_FRAGMENT_NODE: {
+            Node child = node.getFirstChild();
+            if (child != null)
+                return getNodeData(child);
+            break;
+        }
+        case Node.ELEMENT_NODE: {
+            StringBuffer sb = new StringBuffer();
+            for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+                sb.append(getNodeData(child));
+            return sb.toString();
+        }
+        case Node.ATTRIBUTE_NODE:
+        case Node.TEXT_NODE:
+        case Node.CDATA_SECTION_NODE:
+        case Node.PROCESSING_INSTRUCTION_NODE:
+            return node.getNodeValue();
+        }
+        return "";
+    }
+}
@@ -0,0 +1,50 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.flash.context;
+
+import com.iv.flash.context.Context;
+import com.iv.flash.context.XMLContext;
+import com.iv.flash.xml.jaxen.XMLFactoryImpl;
+import org.w3c.dom.Node;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * jgenerator XMLFactory creating CachedXMLContexts.
+ * Configured via com.iv.flash.XMLFactory in iv.properties.
+ */
+public class CachedXMLFactory extends XMLFactoryImpl {
+
+    public CachedXMLFactory(DocumentBuilderFactory factory) throws ParserConfigurationException {
+        super(factory);
+    }
+
+    public XMLContext newXMLContext(Context ctxParent, Node node) {
+        return new CachedXMLContext(ctxParent, node);
+    }
+}
@@ -47,14 +47,15 @@ import com.iv.flash.util.IVException;
 import com.iv.flash.util.FlashBuffer;
 import com.photica.photopulse.Util;
 import com.photica.photopulse.SystemMessages;
+import com.photica.photopulse.flash.GenerationContext;
 import com.photica.photopulse.flash.ShowGenerator;
+import com.photica.photopulse.flash.output.EncodedBitmap;
 import com.photica.photopulse.flash.output.LazyBitmap;
 import com.photica.photopulse.flash.output.LazyGenerator;
 import com.photica.photopulse.imageio.ImageTranscoder;
 import com.photica.photopulse.imageio.TranscodeOp;
 
 import java.awt.Dimension;
-import java.awt.Rectangle;
 import java.awt.image.BufferedImageOp;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
@@ -99,21 +100,28 @@ public class PhotoContext extends StandardContext {
 
     private ImageTranscoder transcoder;
 
+    // May be null if photos are not prefetched
+    private PhotoPrefetcher prefetcher;
+
     private Dimension stageSize;
 
     private boolean isHighQuality;
 
+    private GenerationContext genContext;
+
     // Map processed image URL to Bitmap Shape FlashDef or FlashFile
     private HashMap<String,Object> photoCache = new HashMap<String, Object>();
 
     // Stores last photo stored/retrieved from the cache
     private Bitmap lastBitmap;
 
-    public PhotoContext(FlashFile flashFile, ImageTranscoder transcoder, boolean isHighQuality, LazyGenerator lazyGenerator) {
+    public PhotoContext(FlashFile flashFile, ImageTranscoder transcoder, PhotoPrefetcher prefetcher, boolean isHighQuality, LazyGenerator lazyGenerator, GenerationContext genContext) {
         this.flashFile = flashFile;
         this.transcoder = transcoder;
+        this.prefetcher = prefetcher;
         this.isHighQuality = isHighQuality;
         this.lazyGenerator = lazyGenerator;
+        this.genContext = genContext;
     }
 
     public static PhotoContext findContext(Context ctx) {
@@ -413,30 +421,39 @@ public class PhotoContext extends StandardContext {
         }
     }
 
-    private Shape loadPhotoInternal(File imageFile, String cropSpec, String scaleSpec, TranscodeOp op) {
-        if (cropSpec != null && cropSpec.length() == 0)
-            cropSpec = null;
-        if (scaleSpec != null && scaleSpec.length() == 0)
-            scaleSpec = null;
-
-        Rectangle cropRect = Util.parseRect(cropSpec);
-        if (cropRect == null)
+    /**
+     * Compute the photo cache key for the given photo parameters.
+     * Empty and default crop/scale specs are ignored.
+     */
+    static String computePhotoKey(File imageFile, String cropSpec, String scaleSpec, TranscodeOp op) {
+        if (Util.parseRect(cropSpec) == null)
             cropSpec = null;
-        double dblScale = Util.parseScale(scaleSpec);
-        if (dblScale == 1.0)
+        if (Util.parseScale(scaleSpec) == 1.0)
             scaleSpec = null;
 
-        // Check cache first
-        String key = imageFile.toString()
+        return imageFile.toString()
             + (cropSpec != null ? "+" + cropSpec : "")
             + (scaleSpec != null ? "+" + scaleSpec : "")
             + (op != null ? "+" + op.getOpName() : "");
+    }
+
+    private Shape loadPhotoInternal(File imageFile, String cropSpec, String scaleSpec, TranscodeOp op) {
+        // Check cache first
+        String key = computePhotoKey(imageFile, cropSpec, scaleSpec, op);
         Shape shape = (Shape)photoCache.get(key);
         if (shape != null)
             return shape;
 
         try {
-            Bitmap bitmap = LazyBitmap.newBitmap(lazyGenerator, imageFile, transcoder, cropRect, dblScale, op);
+            // Use the prefetched photo if available, otherwise transcode now
+            EncodedBitmap encodedBitmap = prefetcher != null ? prefetcher.claim(key) : null;
+            Bitmap bitmap;
+            if (encodedBitmap != null)
+                bitmap = LazyBitmap.newBitmap(lazyGenerator, encodedBitmap);
+            else {
+                bitmap = LazyBitmap.newBitmap(lazyGenerator, imageFile, transcoder,
+                        Util.parseRect(cropSpec), Util.parseScale(scaleSpec), op);
+            }
             shape = Util.bitmapFill(bitmap);
         } catch (IVException e) {
             shape = null;
@@ -492,4 +509,8 @@ public class PhotoContext extends StandardContext {
     public LazyGenerator getLazyGenerator() {
         return lazyGenerator;
     }
+
+    public GenerationContext getGenerationContext() {
+        return genContext;
+    }
 }
\ No newline at end of file
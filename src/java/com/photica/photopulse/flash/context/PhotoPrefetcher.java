@@ -0,0 +1,235 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.flash.context;
+
+import EDU.oswego.cs.dl.util.concurrent.Callable;
+import EDU.oswego.cs.dl.util.concurrent.FutureResult;
+import EDU.oswego.cs.dl.util.concurrent.LinkedQueue;
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
+import com.photica.photopulse.Util;
+import com.photica.photopulse.flash.GenerationContext;
+import com.photica.photopulse.flash.output.EncodedBitmap;
+import com.photica.photopulse.imageio.ImageTranscoder;
+import com.photica.photopulse.imageio.ToneTranscodeOp;
+import com.photica.photopulse.imageio.TranscodeOp;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Transcodes the photos in a show document on a pool of worker threads,
+ * ahead of FlashFile.processFile() needing them.
+ * <p>
+ * The show document is walked up front to collect each unique
+ * (imageFile, imageCrop, imageScale, tone) combination in show order.
+ * Only a window of photos ahead of the last one claimed is transcoded at a time,
+ * so memory use is bounded regardless of show size.
+ * <p>
+ * PhotoContext claims the encoded photo when InsertPhotoCommand loads it
+ * and writes it to the LazyGenerator itself, so the bitmap layout in the scratch file
+ * is the same as if the photos had been transcoded serially.
+ * Photos that were not prefetched, were skipped, or failed to transcode
+ * are transcoded synchronously by PhotoContext as before.
+ */
+public class PhotoPrefetcher {
+    // Photos to transcode ahead of the last claimed photo, per worker thread
+    private static final int WINDOW_PER_THREAD = 2;
+
+    private static final String ELEMENT_Photo = "photo";
+    private static final String ELEMENT_Param = "param";
+    private static final String ATTR_ImageFile = "imageFile";
+    private static final String ATTR_FlashPhoto = "flashPhoto";
+    private static final String ATTR_ImageCrop = "imageCrop";
+    private static final String ATTR_ImageScale = "imageScale";
+    private static final String PARAM_Tone = "tone";
+
+    private ImageTranscoder transcoder;
+    private GenerationContext genContext;
+    private PooledExecutor threadPool;
+    private int windowSize;
+
+    // Requests in show order, and map from photo key to index in that list
+    private List<PhotoRequest> requestList = new ArrayList<PhotoRequest>();
+    private HashMap<String,Integer> requestIndexMap = new HashMap<String, Integer>();
+
+    // Index of next request to submit
+    private int nextSubmitIndex = 0;
+    // Index of last request claimed
+    private int lastClaimIndex = -1;
+
+    private static class PhotoRequest {
+        File imageFile;
+        String cropSpec;
+        String scaleSpec;
+        TranscodeOp op;
+        FutureResult result;
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        public Thread newThread(Runnable command) {
+            Thread thread = new Thread(command, "PhotoPrefetcher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * @param document Show document built by ShowDocumentBuilder
+     * @param transcoder Used to crop/scale photos, must be threadsafe
+     * @param genContext Generation the photos are prefetched for
+     */
+    public PhotoPrefetcher(Document document, ImageTranscoder transcoder, GenerationContext genContext) {
+        this.transcoder = transcoder;
+        this.genContext = genContext;
+
+        NodeList photoList = document.getElementsByTagName(ELEMENT_Photo);
+        for (int i = 0; i < photoList.getLength(); i++)
+            addRequest((Element)photoList.item(i));
+
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        windowSize = threadCount * WINDOW_PER_THREAD;
+        threadPool = new PooledExecutor(new LinkedQueue(), threadCount);
+        threadPool.setMinimumPoolSize(threadCount);
+        threadPool.setThreadFactory(new DaemonThreadFactory());
+    }
+
+    private void addRequest(Element photoElement) {
+        if ("true".equals(photoElement.getAttribute(ATTR_FlashPhoto)))
+            return;
+
+        PhotoRequest request = new PhotoRequest();
+        request.imageFile = new File(photoElement.getAttribute(ATTR_ImageFile));
+        request.cropSpec = photoElement.getAttribute(ATTR_ImageCrop);
+        request.scaleSpec = photoElement.getAttribute(ATTR_ImageScale);
+        request.op = ToneTranscodeOp.newToneOp(getParam(photoElement, PARAM_Tone));
+
+        String key = PhotoContext.computePhotoKey(request.imageFile, request.cropSpec, request.scaleSpec, request.op);
+        if (requestIndexMap.containsKey(key))
+            return;
+        requestIndexMap.put(key, requestList.size());
+        requestList.add(request);
+    }
+
+    private String getParam(Element photoElement, String name) {
+        for (Node node = photoElement.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element && ELEMENT_Param.equals(node.getNodeName())
+                    && name.equals(((Element)node).getAttribute("name")))
+                return ((Element)node).getAttribute("value");
+        }
+        return null;
+    }
+
+    /**
+     * Begin transcoding the first window of photos.
+     */
+    public void start() {
+        submitWindow();
+    }
+
+    /**
+     * Discard any pending work and stop the worker threads.
+     */
+    public void shutdown() {
+        threadPool.shutdownNow();
+        requestList.clear();
+        requestIndexMap.clear();
+    }
+
+    private void submitWindow() {
+        int windowEnd = Math.min(requestList.size(), lastClaimIndex + 1 + windowSize);
+        for (; nextSubmitIndex < windowEnd; nextSubmitIndex++) {
+            final PhotoRequest request = requestList.get(nextSubmitIndex);
+            request.result = new FutureResult();
+            // Log to the generation the photos are prefetched for
+            Runnable task = genContext.bind(request.result.setter(new Callable() {
+                public Object call() throws Exception {
+                    // Don't bother if the user canceled
+                    if (genContext.isCanceled())
+                        return null;
+                    return EncodedBitmap.encode(request.imageFile, transcoder,
+                            Util.parseRect(request.cropSpec), Util.parseScale(request.scaleSpec), request.op);
+                }
+            }));
+            try {
+                threadPool.execute(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                request.result = null;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Return the transcoded photo for the key, waiting for it if necessary.
+     * Photos are claimed in show order, so any earlier unclaimed photos were
+     * skipped and are discarded.
+     * @param photoKey Key from PhotoContext.computePhotoKey()
+     * @return Transcoded photo, or null if it was not prefetched or transcoding failed.
+     */
+    EncodedBitmap claim(String photoKey) {
+        Integer index = requestIndexMap.get(photoKey);
+        if (index == null)
+            return null;
+        int claimIndex = index.intValue();
+        if (claimIndex <= lastClaimIndex)
+            return null;
+
+        // Discard skipped photos
+        for (int i = lastClaimIndex + 1; i < claimIndex && i < nextSubmitIndex; i++)
+            requestList.get(i).result = null;
+
+        PhotoRequest request = requestList.get(claimIndex);
+        FutureResult result = request.result;
+        request.result = null;
+
+        lastClaimIndex = claimIndex;
+        if (nextSubmitIndex <= claimIndex)
+            nextSubmitIndex = claimIndex + 1;
+        submitWindow();
+
+        if (result == null)
+            return null;
+        try {
+            return (EncodedBitmap)result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (InvocationTargetException e) {
+            // Caller will transcode synchronously and handle the error
+            return null;
+        }
+    }
+}
@@ -28,6 +28,7 @@ package com.photica.photopulse.flash.context;
 
 import com.iv.flash.context.Context;
 import com.iv.flash.context.XMLContext;
+import com.photica.photopulse.flash.GenerationContext;
 import com.photica.photopulse.flash.context.MP3Data;
 import com.photica.photopulse.flash.output.LazyGenerator;
 import com.photica.photopulse.imageio.ImageTranscoder;
@@ -43,9 +44,11 @@ public class PhotoPulseContext extends XMLContext {
     private String eventHandler;
     private MP3Data mp3Data;
     private ImageTranscoder transcoder;
+    private PhotoPrefetcher prefetcher;
     private String mp3FileName;
     private int mp3FrameCount;
     private LazyGenerator lazyGenerator;
+    private GenerationContext genContext;
     private boolean isBranded;
     private boolean isHighQuality;
 
@@ -58,13 +61,15 @@ public class PhotoPulseContext extends XMLContext {
      * @param mp3FileName Name of external MP3 - pass null if no MP3 or internal
      * @param mp3FrameCount Count of external MP3 frames - 0 if no MP3 or internal
      * @param transcoder Used to scale/crop photos
+     * @param prefetcher Transcodes photos ahead of use, may be null
      * @param lazyGenerator Lazy bitmap generator or null
+     * @param genContext State of the generation this context belongs to
      * @param isBranded true if branding should be applied to the show (photopulse splash branding)
      * @param isHighQuality true if show should be exported in high quality
      */
     public PhotoPulseContext(Context ctxParent, Node node, String eventHandler,
             MP3Data mp3Data, String mp3FileName, int mp3FrameCount, ImageTranscoder transcoder,
-            LazyGenerator lazyGenerator, boolean isBranded, boolean isHighQuality) {
+            PhotoPrefetcher prefetcher, LazyGenerator lazyGenerator, GenerationContext genContext, boolean isBranded, boolean isHighQuality) {
         super(ctxParent, node);
         contextDelegate = XMLContext.newXMLContext(ctxParent, node);
         this.eventHandler = eventHandler;
@@ -72,7 +77,9 @@ public class PhotoPulseContext extends XMLContext {
         this.mp3FileName = mp3FileName;
         this.mp3FrameCount = mp3FrameCount;
         this.transcoder = transcoder;
+        this.prefetcher = prefetcher;
         this.lazyGenerator = lazyGenerator;
+        this.genContext = genContext;
         this.isBranded = isBranded;
         this.isHighQuality = isHighQuality;
     }
@@ -97,10 +104,18 @@ public class PhotoPulseContext extends XMLContext {
         return transcoder;
     }
 
+    public PhotoPrefetcher getPhotoPrefetcher() {
+        return prefetcher;
+    }
+
     public LazyGenerator getLazyGenerator() {
         return lazyGenerator;
     }
 
+    public GenerationContext getGenerationContext() {
+        return genContext;
+    }
+
     public boolean isBranded() {
         return isBranded;
     }
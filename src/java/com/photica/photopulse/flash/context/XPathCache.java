@@ -0,0 +1,246 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.flash.context;
+
+import org.jaxen.JaxenException;
+import org.jaxen.XPath;
+import org.jaxen.dom.DOMXPath;
+import org.jaxen.dom.DocumentNavigator;
+import org.jaxen.function.NumberFunction;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process wide cache of compiled XPath expressions, keyed by expression string.
+ * Jaxen otherwise reparses the expression on every evaluation, and templates
+ * evaluate the same handful of expressions for every photo and keyframe.
+ * Simple "@attr" and "number(@attr)" expressions are not compiled at all,
+ * they are resolved directly against the context Element.
+ */
+public class XPathCache {
+
+    private static final XPathCache INSTANCE = new XPathCache();
+
+    // Expressions are mostly template constants, this just bounds generated ones
+    private static final int MAX_EXPRESSIONS = 512;
+
+    private static final String NUMBER_PREFIX = "number(@";
+
+    private final Map<String,Expression> expressions = new LinkedHashMap<String,Expression>(64, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String,Expression> eldest) {
+            return size() > MAX_EXPRESSIONS;
+        }
+    };
+
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long attributeCount = 0;
+    private long compileNanos = 0;
+    private long minCompileNanos = Long.MAX_VALUE;
+
+    private XPathCache() {
+    }
+
+    public static XPathCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Return the compiled form of strPath, compiling and caching it if needed.
+     */
+    Expression getExpression(String strPath) throws JaxenException {
+        synchronized (this) {
+            Expression expression = expressions.get(strPath);
+            if (expression != null) {
+                if (expression.attributeName != null)
+                    attributeCount++;
+                else
+                    hitCount++;
+                return expression;
+            }
+        }
+
+        // Compile outside the lock, a racing thread just compiles it twice
+        Expression expression = parseAttributeExpression(strPath);
+        long compileTime = 0;
+        if (expression == null) {
+            long startNanos = System.nanoTime();
+            XPath xpath = compile(strPath);
+            compileTime = System.nanoTime() - startNanos;
+            expression = new Expression(strPath, xpath);
+        }
+
+        synchronized (this) {
+            if (expression.attributeName != null)
+                attributeCount++;
+            else {
+                missCount++;
+                compileNanos += compileTime;
+                minCompileNanos = Math.min(minCompileNanos, compileTime);
+            }
+            expressions.put(strPath, expression);
+        }
+        return expression;
+    }
+
+    /**
+     * Recognize "@attr" and "number(@attr)" forms.
+     * @return attribute expression, or null if strPath is not a simple attribute reference
+     */
+    private static Expression parseAttributeExpression(String strPath) {
+        boolean isNumber = false;
+        String name;
+        if (strPath.startsWith(NUMBER_PREFIX) && strPath.endsWith(")")) {
+            isNumber = true;
+            name = strPath.substring(NUMBER_PREFIX.length(), strPath.length() - 1);
+        }
+        else if (strPath.startsWith("@"))
+            name = strPath.substring(1);
+        else
+            return null;
+
+        // Only plain unprefixed names, Jaxen handles anything fancier (and namespace declarations)
+        if (name.length() == 0 || name.startsWith("xmlns") || !Character.isLetter(name.charAt(0)))
+            return null;
+        for (int i = 1; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            if (!Character.isLetterOrDigit(ch) && ch != '_' && ch != '-' && ch != '.')
+                return null;
+        }
+        return new Expression(strPath, name, isNumber);
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Number of evaluations resolved directly against the DOM
+     */
+    public synchronized long getAttributeCount() {
+        return attributeCount;
+    }
+
+    public synchronized int getExpressionCount() {
+        return expressions.size();
+    }
+
+    /**
+     * Total time spent compiling expressions
+     */
+    public synchronized long getCompileMillis() {
+        return compileNanos / 1000000;
+    }
+
+    /**
+     * Estimated compile time avoided, based on the cheapest compile seen
+     * (the first compile also pays Jaxen class loading)
+     */
+    public synchronized long getSavedMillis() {
+        if (missCount == 0)
+            return 0;
+        return (hitCount + attributeCount) * minCompileNanos / 1000000;
+    }
+
+    public synchronized String toString() {
+        return "XPathCache[expressions=" + expressions.size() + " hits=" + hitCount + " misses=" + missCount
+                + " attributes=" + attributeCount + " compileMillis=" + getCompileMillis()
+                + " savedMillis=" + getSavedMillis() + "]";
+    }
+
+    private static XPath compile(String strPath) throws JaxenException {
+        XPath xpath = new DOMXPath(strPath);
+        // Force lazy context support creation now, so the instance is not mutated once shared
+        xpath.getFunctionContext();
+        return xpath;
+    }
+
+    /**
+     * Either a compiled XPath, or an attribute name to look up directly
+     */
+    static class Expression {
+        private final String strPath;
+        private final String attributeName;
+        private final boolean isNumber;
+        // Attribute expressions only compile if evaluated against a non Element
+        private volatile XPath xpath;
+
+        private Expression(String strPath, XPath xpath) {
+            this.strPath = strPath;
+            this.xpath = xpath;
+            this.attributeName = null;
+            this.isNumber = false;
+        }
+
+        private Expression(String strPath, String attributeName, boolean isNumber) {
+            this.strPath = strPath;
+            this.attributeName = attributeName;
+            this.isNumber = isNumber;
+        }
+
+        List selectNodes(Object node) throws JaxenException {
+            if (attributeName != null && node instanceof Element) {
+                Object result = evaluateAttribute((Element)node);
+                return result instanceof List ? (List)result : Collections.singletonList(result);
+            }
+            return getXPath().selectNodes(node);
+        }
+
+        /**
+         * Evaluate the same as Jaxen would.
+         * @return evaluation result, null or an empty List if nothing matched
+         */
+        Object evaluate(Object node) throws JaxenException {
+            if (attributeName != null && node instanceof Element)
+                return evaluateAttribute((Element)node);
+            return getXPath().evaluate(node);
+        }
+
+        private Object evaluateAttribute(Element element) {
+            Attr attr = element.getAttributeNode(attributeName);
+            List nodes = attr != null ? Collections.singletonList(attr) : Collections.EMPTY_LIST;
+            if (isNumber)
+                return NumberFunction.evaluate(nodes, DocumentNavigator.getInstance());
+            return nodes;
+        }
+
+        private XPath getXPath() throws JaxenException {
+            if (xpath == null)
+                xpath = compile(strPath);
+            return xpath;
+        }
+    }
+}
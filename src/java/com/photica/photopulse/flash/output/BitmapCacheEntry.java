@@ -0,0 +1,139 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.flash.output;
+
+import com.photica.photopulse.imageio.ImageCoder;
+import com.photica.photopulse.imageio.ImageTranscoder;
+import com.photica.photopulse.imageio.TranscodeOp;
+import com.photica.photopulse.imageio.cache.BitmapCache;
+import com.photica.photopulse.imageio.cache.PackKey;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A photo transcode that may be stored in the BitmapCache.
+ * Entry data is the bitmap width and height followed by the encoded bits.
+ */
+class BitmapCacheEntry {
+    // Change this when the bits transcoded for the same parameters change (e.g. JPEG quality or scaling)
+    private static final String TRANSCODE_VERSION = "1";
+
+    static final int HEADER_SIZE = 8;
+
+    private BitmapCache cache;
+    private PackKey key;
+    private File imageFile;
+
+    private BitmapCacheEntry(BitmapCache cache, PackKey key, File imageFile) {
+        this.cache = cache;
+        this.key = key;
+        this.imageFile = imageFile;
+    }
+
+    /**
+     * Create the entry for transcoding imageFile with the given parameters.
+     * @return entry, or null if the transcode can't be cached
+     */
+    static BitmapCacheEntry create(File imageFile, ImageTranscoder transcoder, Rectangle cropRect, double scale, TranscodeOp op) {
+        // Only ImageCoder always transcodes from the photo, ThumbnailCache may use a cached thumbnail
+        if (transcoder != ImageCoder.getInstance())
+            return null;
+        BitmapCache cache = BitmapCache.getInstance();
+        if (cache == null)
+            return null;
+
+        StringBuilder transcode = new StringBuilder();
+        transcode.append(TRANSCODE_VERSION);
+        transcode.append('+').append(ImageTranscoder.SCALE_BILINEAR);
+        transcode.append('+').append(scale);
+        if (cropRect != null) {
+            transcode.append('+').append(cropRect.x).append(',').append(cropRect.y)
+                    .append(',').append(cropRect.width).append(',').append(cropRect.height);
+        }
+        if (op != null)
+            transcode.append('+').append(op.getOpName());
+
+        try {
+            return new BitmapCacheEntry(cache, cache.computeKey(imageFile, transcode.toString()), imageFile);
+        } catch (IOException e) {
+            // Can't read the photo, transcoding it will fail too
+            return null;
+        }
+    }
+
+    /**
+     * @return Cached data, or null if not cached
+     */
+    byte[] read() {
+        byte[] data = cache.read(key, imageFile);
+        if (data != null && data.length <= HEADER_SIZE)
+            return null;
+        return data;
+    }
+
+    /**
+     * Cache the encoded bits of a bitmap
+     */
+    void write(int width, int height, byte[] imageBytes) {
+        byte[] data = new byte[HEADER_SIZE + imageBytes.length];
+        writeInt(data, 0, width);
+        writeInt(data, 4, height);
+        System.arraycopy(imageBytes, 0, data, HEADER_SIZE, imageBytes.length);
+        cache.write(key, imageFile, data);
+    }
+
+    static int getWidth(byte[] data) {
+        return readInt(data, 0);
+    }
+
+    static int getHeight(byte[] data) {
+        return readInt(data, 4);
+    }
+
+    /**
+     * Copy the encoded bits out of the cached data
+     */
+    static byte[] getImageBytes(byte[] data) {
+        byte[] imageBytes = new byte[data.length - HEADER_SIZE];
+        System.arraycopy(data, HEADER_SIZE, imageBytes, 0, imageBytes.length);
+        return imageBytes;
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte)(value >>> 24);
+        data[offset + 1] = (byte)(value >>> 16);
+        data[offset + 2] = (byte)(value >>> 8);
+        data[offset + 3] = (byte)value;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+}
@@ -31,5 +31,9 @@ import com.iv.flash.util.FlashOutput;
 import java.awt.geom.Rectangle2D;
 
 public interface BitmapDelegate {
-    public void write(FlashOutput fob, int id, Rectangle2D bounds, byte[] imageBytes);
+    /**
+     * Write the SWF tag header and fields that precede the encoded image bytes.
+     * The caller writes the imageSize encoded bytes immediately after.
+     */
+    public void writeHeader(FlashOutput fob, int id, Rectangle2D bounds, int imageSize);
 }
@@ -0,0 +1,97 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.flash.output;
+
+import java.util.zip.Deflater;
+
+/**
+ * How ZlibBitmap and JPEG3Bitmap deflate their zlib data.
+ * Each export type can choose its own settings, and they can be overridden with
+ * the system properties photopulse.deflate.&lt;type&gt;.level and photopulse.deflate.&lt;type&gt;.parallel
+ * (e.g. -Dphotopulse.deflate.wmv.level=1).
+ */
+public class DeflateSettings {
+    public static final DeflateSettings DEFAULT = new DeflateSettings(Deflater.DEFAULT_COMPRESSION, false);
+
+    private static final String PROPERTY_PREFIX = "photopulse.deflate.";
+
+    private final int level;
+    private final boolean isParallel;
+
+    /**
+     * @param level Deflater compression level, or Deflater.DEFAULT_COMPRESSION
+     * @param isParallel If true, large images are deflated in independent blocks on multiple threads.
+     *      The zlib stream is valid but not identical to a serially deflated one.
+     */
+    public DeflateSettings(int level, boolean isParallel) {
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION))
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        this.level = level;
+        this.isParallel = isParallel;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Return true if parallel deflate was requested and is supported by this JRE
+     */
+    public boolean isParallel() {
+        return isParallel && ParallelDeflater.isSupported();
+    }
+
+    /**
+     * Return settings for the export type, applying any system property overrides to defaults.
+     * @param exportType Export type name, e.g. "wmv"
+     */
+    public static DeflateSettings getSettings(String exportType, DeflateSettings defaults) {
+        int level = defaults.level;
+        boolean isParallel = defaults.isParallel;
+
+        String levelValue = System.getProperty(PROPERTY_PREFIX + exportType + ".level");
+        if (levelValue != null) {
+            try {
+                level = Integer.parseInt(levelValue.trim());
+                if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION))
+                    level = defaults.level;
+            } catch (NumberFormatException e) {
+            }
+        }
+        String parallelValue = System.getProperty(PROPERTY_PREFIX + exportType + ".parallel");
+        if (parallelValue != null)
+            isParallel = Boolean.valueOf(parallelValue.trim()).booleanValue();
+
+        if (level == defaults.level && isParallel == defaults.isParallel)
+            return defaults;
+        return new DeflateSettings(level, isParallel);
+    }
+
+    public String toString() {
+        return "level=" + level + (isParallel ? " parallel" : "");
+    }
+}
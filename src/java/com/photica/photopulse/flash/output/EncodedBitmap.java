@@ -0,0 +1,118 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.flash.output;
+
+import com.photica.photopulse.imageio.DecodedImage;
+import com.photica.photopulse.imageio.ImageCoder;
+import com.photica.photopulse.imageio.ImageTranscoder;
+import com.photica.photopulse.imageio.TranscodeOp;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Photo that has been transcoded into memory, but not yet turned into a Bitmap.
+ * This allows photos to be transcoded on any thread, and later handed to
+ * LazyBitmap on the thread processing the FlashFile.
+ * Only the encoded bits are retained, not the decoded image.
+ */
+public class EncodedBitmap {
+    private byte[] imageBytes;
+    private int width;
+    private int height;
+    private BitmapDelegate bitmapDelegate;
+
+    private EncodedBitmap(byte[] imageBytes, BufferedImage image, BitmapDelegate bitmapDelegate) {
+        this(imageBytes, image.getWidth(), image.getHeight(), bitmapDelegate);
+    }
+
+    private EncodedBitmap(byte[] imageBytes, int width, int height, BitmapDelegate bitmapDelegate) {
+        this.imageBytes = imageBytes;
+        this.width = width;
+        this.height = height;
+        this.bitmapDelegate = bitmapDelegate;
+    }
+
+    /**
+     * Transcode the image file into memory.
+     * The encoded bits are identical to those LazyBitmap.newBitmap() would generate for the same parameters.
+     * Transcodes are looked up in and added to the BitmapCache.
+     */
+    public static EncodedBitmap encode(File imageFile, ImageTranscoder transcoder,
+            Rectangle cropRect, double scale, TranscodeOp op) throws IOException {
+        BitmapCacheEntry cacheEntry = BitmapCacheEntry.create(imageFile, transcoder, cropRect, scale, op);
+        byte[] cacheData = cacheEntry != null ? cacheEntry.read() : null;
+        if (cacheData != null) {
+            return new EncodedBitmap(BitmapCacheEntry.getImageBytes(cacheData),
+                    BitmapCacheEntry.getWidth(cacheData), BitmapCacheEntry.getHeight(cacheData), null);
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream((int)imageFile.length());
+        DecodedImage image = transcoder.transcodeImage(imageFile, null, cropRect, scale, ImageTranscoder.SCALE_BILINEAR, op, bos);
+        EncodedBitmap encodedBitmap = new EncodedBitmap(bos.toByteArray(), image.getImage(), null);
+        if (cacheEntry != null)
+            cacheEntry.write(encodedBitmap.width, encodedBitmap.height, encodedBitmap.imageBytes);
+        return encodedBitmap;
+    }
+
+    /**
+     * Encode the decoded image into memory.
+     * The encoded bits are identical to those the LazyBitmap constructor would generate for the same image.
+     */
+    public static EncodedBitmap encode(DecodedImage image, boolean isHighQuality) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        BitmapDelegate bitmapDelegate = null;
+        if (isHighQuality)
+            bitmapDelegate = LazyBitmap.newBitmapDelegate(image, new DataOutputStream(bos), DeflateSettings.DEFAULT);
+        else
+            ImageCoder.getInstance().encodeImage(image, null, bos);
+        return new EncodedBitmap(bos.toByteArray(), image.getImage(), bitmapDelegate);
+    }
+
+    byte[] getImageBytes() {
+        return imageBytes;
+    }
+
+    BitmapDelegate getBitmapDelegate() {
+        return bitmapDelegate;
+    }
+
+    /**
+     * Bitmap size in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
@@ -33,16 +33,15 @@ import com.photica.photopulse.imageio.ImageCoder;
 
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.zip.Deflater;
 
 /**
  * Helper class for LazyBitmap.
  * Manages encoding highQuality bitmaps. Directly encodes a BufferedImage to a JPEG
- * and zlib compressed alpha channel in the bitmap RAF.
+ * and zlib compressed alpha channel in the bitmap RAF (or memory).
  * Also knows how to encode those bits into SWF as a DefineBitsJPEG3.
  * This class should be used for bitmap encoding whenever transparent regions are introduced via image transformation
  * (e.g. hiQuality mode panzooms).
@@ -51,30 +50,31 @@ public class JPEG3Bitmap implements BitmapDelegate {
 
     private int jpegSize;
 
-    public JPEG3Bitmap(DecodedImage dimage, RandomAccessFile bitmapRAF) throws IOException {
+    public JPEG3Bitmap(DecodedImage dimage, DataOutput out, DeflateSettings deflateSettings) throws IOException {
         BufferedImage image = dimage.getImage();
 
-        long offset = bitmapRAF.getFilePointer();
-        ImageCoder.getInstance().encodeImage(dimage, ImageCoder.FORMAT_JPEG, new FileImageOutputStreamFix(bitmapRAF));
-        jpegSize = (int)(bitmapRAF.getFilePointer() - offset);
+        // Encode the JPEG into memory first, ImageCoder closes the stream it encodes into
+        ByteArrayOutputStream jpegStream = new ByteArrayOutputStream();
+        ImageCoder.getInstance().encodeImage(dimage, ImageCoder.FORMAT_JPEG, jpegStream);
+        jpegSize = jpegStream.size();
+        out.write(jpegStream.toByteArray());
 
-        ColorModel colorModel = image.getColorModel();
+        PixelReader pixelReader = new PixelReader(image);
         int width = image.getWidth();
         int height = image.getHeight();
-        Raster raster = image.getRaster();
-        Object dataEl = null;
+
+        byte scanlineBytes[] = new byte[width];
 
         // If the image has alpha, check for any non-opaque pixels.
         // If all pixels are opaque, then don't write any zlib alpha channel.
         // Flash interprets this as fully opaque.
         boolean needsAlpha = false;
-        if (colorModel.hasAlpha()) {
+        if (pixelReader.hasAlpha()) {
             outerLoop:
             for (int y = 0; y < height; y++) {
+                pixelReader.readAlpha(y, scanlineBytes, 0);
                 for (int x = 0; x < width; x++) {
-                    // Let raster create dataEl the first time, reuse on subsequent calls
-                    dataEl = raster.getDataElements(x, y, dataEl);
-                    if ((byte)0xff != (byte)colorModel.getAlpha(dataEl)) {
+                    if ((byte)0xff != scanlineBytes[x]) {
                         needsAlpha = true;
                         break outerLoop;
                     }
@@ -84,40 +84,45 @@ public class JPEG3Bitmap implements BitmapDelegate {
         if (!needsAlpha)
             return;
 
+        // Pack the whole alpha plane and deflate it in parallel blocks
+        if (deflateSettings.isParallel()) {
+            byte alphaBytes[] = new byte[height * width];
+            for (int y = 0; y < height; y++)
+                pixelReader.readAlpha(y, alphaBytes, y * width);
+            ParallelDeflater.deflate(alphaBytes, alphaBytes.length, deflateSettings.getLevel(), out);
+            return;
+        }
+
         // Set up for compression
-        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        Deflater deflater = new Deflater(deflateSettings.getLevel());
         byte zlibData[] = new byte[width];
 
-        byte scanlineBytes[] = new byte[width];
-
-        for (int y = 0; y < height; y++) {
-            // Populate scanline with alpha data
-            for (int x = 0; x < width; x++) {
-                // Let raster create dataEl the first time, reuse on subsequent calls
-                dataEl = raster.getDataElements(x, y, dataEl);
-                scanlineBytes[x] = (byte)colorModel.getAlpha(dataEl);
-            }
+        try {
+            for (int y = 0; y < height; y++) {
+                // Populate scanline with alpha data
+                pixelReader.readAlpha(y, scanlineBytes, 0);
 
-            // Compress and write scanline to RAF
-            deflater.setInput(scanlineBytes, 0, width);
-            if (y == height - 1)
-                deflater.finish();
-            while (true) {
-                int compressedSize = deflater.deflate(zlibData);
-                if (compressedSize == 0)
-                    break;
-                bitmapRAF.write(zlibData, 0, compressedSize);
+                // Compress and write scanline to stream
+                deflater.setInput(scanlineBytes, 0, width);
+                if (y == height - 1)
+                    deflater.finish();
+                while (true) {
+                    int compressedSize = deflater.deflate(zlibData);
+                    if (compressedSize == 0)
+                        break;
+                    out.write(zlibData, 0, compressedSize);
+                }
             }
+        } finally {
+            deflater.end();
         }
     }
 
-    // imageBytes will contain jpeg and alpha zlib data together
-    public void write(FlashOutput fob, int id, Rectangle2D bounds, byte[] imageBytes) {
-        int tagSize = 2 + 4 + imageBytes.length;
+    public void writeHeader(FlashOutput fob, int id, Rectangle2D bounds, int imageSize) {
+        // Image bytes will contain jpeg and alpha zlib data together
+        int tagSize = 2 + 4 + imageSize;
         fob.writeTag(Tag.DEFINEBITSJPEG3, tagSize);
         fob.writeWord(id);
         fob.writeDWord(jpegSize);
-        // Image and zlib alpha bytes
-        fob.writeArray(imageBytes, 0, imageBytes.length);
     }
 }
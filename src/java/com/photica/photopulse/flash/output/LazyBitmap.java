@@ -26,13 +26,18 @@
  
 package com.photica.photopulse.flash.output;
 
+import EDU.oswego.cs.dl.util.concurrent.Callable;
+import EDU.oswego.cs.dl.util.concurrent.FutureResult;
 import com.iv.flash.api.FlashDef;
 import com.iv.flash.api.FlashItem;
 import com.iv.flash.api.image.Bitmap;
+import com.iv.flash.api.image.JPEGBitmap;
 import com.iv.flash.util.FlashBuffer;
 import com.iv.flash.util.FlashOutput;
 import com.iv.flash.util.IVException;
+import com.iv.flash.util.JPEGHelper;
 import com.iv.flash.util.ScriptCopier;
+import com.iv.flash.util.Tag;
 import com.photica.photopulse.imageio.DecodedImage;
 import com.photica.photopulse.imageio.ImageCoder;
 import com.photica.photopulse.imageio.ImageTranscoder;
@@ -40,11 +45,15 @@ import com.photica.photopulse.imageio.TranscodeOp;
 
 import java.awt.Rectangle;
 import java.awt.geom.Rectangle2D;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 
 public class LazyBitmap extends Bitmap {
@@ -53,39 +62,67 @@ public class LazyBitmap extends Bitmap {
     // Bitmap size in pixels
     private Rectangle bitmapBounds;
 
-    // Offsets of encoded bitmap in RAF
-    private long rafBeginOffset;
-    private long rafEndOffset;
+    // Where our encoded bits are, or the pending result of encoding them on a worker thread
+    private BitmapSlot bitmapSlot;
+    private FutureResult slotResult;
 
     // Offset we need to write our SWF bits in FlashOutput
     private int fobOffset;
 
-    private BitmapDelegate bitmapDelegate;
+    // Large enough for any bitmap tag header
+    private static final int HEADER_SIZE = 32;
+    // Amount of an encoded JPEG read to find its SOF marker
+    private static final int JPEG_PREFIX_SIZE = 4096;
 
     private LazyBitmap() {
     }
 
-    public LazyBitmap(LazyGenerator lazyGenerator, DecodedImage image, boolean isHighQuality) throws IOException {
+    /**
+     * Encode the image. If the generator is parallel, a slot is reserved and the image is
+     * encoded on a worker thread, otherwise it is encoded now.
+     */
+    public LazyBitmap(final LazyGenerator lazyGenerator, final DecodedImage image, final boolean isHighQuality) throws IOException {
         this.lazyGenerator = lazyGenerator;
-        RandomAccessFile raf = lazyGenerator.getBitmapRAF();
-        long pos = raf.getFilePointer();
-        if (isHighQuality) {
-            // Use ZlibBitmap for PNG, it is faster
-            if (ImageTranscoder.FORMAT_PNG.equals(image.getSourceFormat()))
-                bitmapDelegate = new ZlibBitmap(image, raf);
-            // Use JPEG3Bitmap for JPEG, it handles alpha channel
-            else
-                bitmapDelegate = new JPEG3Bitmap(image, raf);
+        this.bitmapBounds = new Rectangle(image.getImage().getWidth(), image.getImage().getHeight());
+        if (!lazyGenerator.isParallel()) {
+            bitmapSlot = encodeSlot(lazyGenerator.getBitmapRAF(), image, isHighQuality, lazyGenerator.getDeflateSettings());
+            return;
+        }
+
+        slotResult = new FutureResult();
+        Runnable task = slotResult.setter(new Callable() {
+            public Object call() throws Exception {
+                return encodeSlot(lazyGenerator.getSegmentRAF(), image, isHighQuality, lazyGenerator.getDeflateSettings());
+            }
+        });
+        try {
+            lazyGenerator.executeEncode(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
         }
-        else
-            ImageCoder.getInstance().encodeImage(image, null, new FileImageOutputStreamFix(raf));
-        init(image.getImage(), pos, raf.getFilePointer());
     }
 
     LazyBitmap(LazyGenerator lazyGenerator, File imageFile, Rectangle cropRect, double scale, ImageTranscoder transcoder, TranscodeOp op) throws IOException {
         this.lazyGenerator = lazyGenerator;
         RandomAccessFile raf = lazyGenerator.getBitmapRAF();
         long pos = raf.getFilePointer();
+
+        // Copy a cached transcode straight into the RAF
+        BitmapCacheEntry cacheEntry = BitmapCacheEntry.create(imageFile, transcoder, cropRect, scale, op);
+        byte[] cacheData = cacheEntry != null ? cacheEntry.read() : null;
+        if (cacheData != null) {
+            try {
+                raf.write(cacheData, BitmapCacheEntry.HEADER_SIZE, cacheData.length - BitmapCacheEntry.HEADER_SIZE);
+            } catch (IOException e) {
+                raf.seek(pos);
+                throw e;
+            }
+            this.bitmapSlot = new BitmapSlot(raf, pos, raf.getFilePointer(), null);
+            this.bitmapBounds = new Rectangle(BitmapCacheEntry.getWidth(cacheData), BitmapCacheEntry.getHeight(cacheData));
+            return;
+        }
+
         DecodedImage image;
         try {
             image = transcoder.transcodeImage(imageFile, null,
@@ -94,13 +131,53 @@ public class LazyBitmap extends Bitmap {
             raf.seek(pos);
             throw e;
         }
-        init(image.getImage(), pos, raf.getFilePointer());
+        this.bitmapSlot = new BitmapSlot(raf, pos, raf.getFilePointer(), null);
+        this.bitmapBounds = new Rectangle(image.getImage().getWidth(), image.getImage().getHeight());
+
+        // Read back the encoded bits to cache them
+        if (cacheEntry != null) {
+            byte[] imageBytes = new byte[(int)(bitmapSlot.endOffset - pos)];
+            if (readFully(raf.getChannel(), pos, imageBytes))
+                cacheEntry.write(bitmapBounds.width, bitmapBounds.height, imageBytes);
+        }
+    }
+
+    LazyBitmap(LazyGenerator lazyGenerator, EncodedBitmap encodedBitmap) throws IOException {
+        this.lazyGenerator = lazyGenerator;
+        RandomAccessFile raf = lazyGenerator.getBitmapRAF();
+        long pos = raf.getFilePointer();
+        raf.write(encodedBitmap.getImageBytes());
+        this.bitmapSlot = new BitmapSlot(raf, pos, raf.getFilePointer(), encodedBitmap.getBitmapDelegate());
+        this.bitmapBounds = new Rectangle(encodedBitmap.getWidth(), encodedBitmap.getHeight());
     }
 
-    private void init(BufferedImage image, long beginOffset, long endOffset) {
-        this.rafBeginOffset = beginOffset;
-        this.rafEndOffset = endOffset;
-        this.bitmapBounds = new Rectangle(image.getWidth(), image.getHeight());
+    /**
+     * Encode the image at the current position of raf.
+     * The calling thread must own raf.
+     */
+    private static BitmapSlot encodeSlot(RandomAccessFile raf, DecodedImage image, boolean isHighQuality,
+            DeflateSettings deflateSettings) throws IOException {
+        long pos = raf.getFilePointer();
+        BitmapDelegate bitmapDelegate = null;
+        if (isHighQuality)
+            bitmapDelegate = newBitmapDelegate(image, raf, deflateSettings);
+        else
+            ImageCoder.getInstance().encodeImage(image, null, new FileImageOutputStreamFix(raf));
+        return new BitmapSlot(raf, pos, raf.getFilePointer(), bitmapDelegate);
+    }
+
+    /**
+     * Encode a high quality image to out.
+     * @param deflateSettings How zlib data is deflated
+     * @return Delegate that writes the encoded bits as SWF
+     */
+    static BitmapDelegate newBitmapDelegate(DecodedImage image, DataOutput out, DeflateSettings deflateSettings) throws IOException {
+        // Use ZlibBitmap for PNG, it is faster
+        if (ImageTranscoder.FORMAT_PNG.equals(image.getSourceFormat()))
+            return new ZlibBitmap(image, out, deflateSettings);
+        // Use JPEG3Bitmap for JPEG, it handles alpha channel
+        else
+            return new JPEG3Bitmap(image, out, deflateSettings);
     }
 
     public static Bitmap newBitmap(LazyGenerator generator, File imageFile,
@@ -108,16 +185,34 @@ public class LazyBitmap extends Bitmap {
             TranscodeOp op) throws IOException, IVException {
 
         // If we aren't generating lazily, then encode image into memory and return Bitmap
-        if (generator == null) {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream((int)imageFile.length());
-            transcoder.transcodeImage(imageFile, null, cropRect, scale, ImageTranscoder.SCALE_BILINEAR, op, bos);
-            return Bitmap.newBitmap(new FlashBuffer(bos.toByteArray()));
-        }
+        if (generator == null)
+            return newBitmap(null, EncodedBitmap.encode(imageFile, transcoder, cropRect, scale, op));
         // Transcode into RAF, return LazyBitmap with offsets
         else
             return new LazyBitmap(generator, imageFile, cropRect, scale, transcoder, op);
     }
 
+    /**
+     * Same as above, but the photo has already been transcoded into memory.
+     */
+    public static Bitmap newBitmap(LazyGenerator generator, EncodedBitmap encodedBitmap) throws IOException, IVException {
+        if (generator == null)
+            return Bitmap.newBitmap(new FlashBuffer(encodedBitmap.getImageBytes()));
+        else
+            return new LazyBitmap(generator, encodedBitmap);
+    }
+
+    /**
+     * Same as above, but the image is decoded and still needs to be encoded.
+     * This may be called on any thread.
+     */
+    public static Bitmap newBitmap(LazyGenerator generator, DecodedImage image, boolean isHighQuality) throws IOException, IVException {
+        if (generator == null)
+            return newBitmap(null, EncodedBitmap.encode(image, isHighQuality));
+        else
+            return new LazyBitmap(generator, image, isHighQuality);
+    }
+
     /**
      * Bitmap size in pixels
      */
@@ -149,31 +244,117 @@ public class LazyBitmap extends Bitmap {
         lazyGenerator.addLazyBitmap(this);
     }
 
-    public FlashOutput lazyWrite() throws IOException, IVException {
-        int bufSize = (int)(rafEndOffset - rafBeginOffset);
+    /**
+     * Return where our encoded bits are, waiting for a worker thread to finish encoding them if necessary.
+     */
+    private BitmapSlot getBitmapSlot() throws IOException {
+        if (bitmapSlot != null)
+            return bitmapSlot;
+        try {
+            bitmapSlot = (BitmapSlot)slotResult.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (InvocationTargetException e) {
+            Throwable t = e.getTargetException();
+            if (t instanceof IOException)
+                throw (IOException)t;
+            else if (t instanceof RuntimeException)
+                throw (RuntimeException)t;
+            else if (t instanceof Error)
+                throw (Error)t;
+            IOException ioe = new IOException("Failed to encode bitmap");
+            ioe.initCause(t);
+            throw ioe;
+        }
+        return bitmapSlot;
+    }
+
+    /**
+     * Write our SWF bitmap definition to rafOutput.
+     * When the tag header is known, only the header is built in memory and the
+     * encoded bits are transferred directly from the bitmap RAF.
+     */
+    void lazyWrite(RandomAccessFile rafOutput) throws IOException, IVException {
+        BitmapSlot slot = getBitmapSlot();
+        int imageSize = (int)(slot.endOffset - slot.beginOffset);
+        FileChannel bitmapChannel = slot.raf.getChannel();
+
+        FlashOutput fobHeader = new LazyFlashOutput(HEADER_SIZE);
+        if (slot.bitmapDelegate != null)
+            slot.bitmapDelegate.writeHeader(fobHeader, getID(), bitmapBounds, imageSize);
+        else if (isVerbatimJPEG(bitmapChannel, slot.beginOffset, imageSize)) {
+            // Same as JPEGBitmap.write() for a baseline 3 component JPEG
+            fobHeader.writeTag(Tag.DEFINEBITSJPEG2, 2 + imageSize);
+            fobHeader.writeDefID(this);
+        }
+        else {
+            FlashOutput fob = lazyWrite(bitmapChannel, slot.beginOffset, imageSize);
+            rafOutput.write(fob.getBuf(), 0, fob.getSize());
+            return;
+        }
+
+        rafOutput.write(fobHeader.getBuf(), 0, fobHeader.getSize());
+        FileChannel outputChannel = rafOutput.getChannel();
+        long position = slot.beginOffset;
+        long remaining = imageSize;
+        while (remaining > 0) {
+            long count = bitmapChannel.transferTo(position, remaining, outputChannel);
+            position += count;
+            remaining -= count;
+        }
+    }
+
+    /**
+     * Return true if our encoded bits are a JPEG that JPEGBitmap would write verbatim
+     * (baseline, 3 components). Only the start of the JPEG is read.
+     */
+    private boolean isVerbatimJPEG(FileChannel bitmapChannel, long beginOffset, int imageSize) throws IOException {
+        byte[] prefix = new byte[Math.min(imageSize, JPEG_PREFIX_SIZE)];
+        if (!readFully(bitmapChannel, beginOffset, prefix))
+            return false;
+        if (prefix.length < 2 || (prefix[0] & 0xff) != 0xff || (prefix[1] & 0xff) != 0xd8)
+            return false;
+        try {
+            JPEGBitmap.JPEGInfo info = JPEGHelper.getInfo(prefix, 0, prefix.length);
+            return info != null && info.type == 0 && info.num_comps == 3;
+        } catch (RuntimeException e) {
+            // Markers extend past the prefix
+            return false;
+        }
+    }
+
+    /**
+     * Read bytes at position without moving the file pointer,
+     * the thread that owns a segment may still be appending to it.
+     * @return false if the end of file was reached
+     */
+    private static boolean readFully(FileChannel channel, long position, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                return false;
+        }
+        return true;
+    }
 
+    private FlashOutput lazyWrite(FileChannel bitmapChannel, long beginOffset, int bufSize) throws IOException, IVException {
         FlashOutput fob = new LazyFlashOutput(bufSize + bufSize/4);
 
         // Read back our encoded bitmap bits
-        RandomAccessFile bitmapRAF = lazyGenerator.getBitmapRAF();
         byte[] imageBytes = new byte[bufSize];
-        bitmapRAF.seek(rafBeginOffset);
-        bitmapRAF.readFully(imageBytes);
+        if (!readFully(bitmapChannel, beginOffset, imageBytes))
+            throw new EOFException();
 
-        if (bitmapDelegate != null) {
-            bitmapDelegate.write(fob, getID(), bitmapBounds, imageBytes);
-        }
-        else {
-            // Construct a real Bitmap using those bits
-            Bitmap bitmap = Bitmap.newBitmap(new FlashBuffer(imageBytes));
-            // Copy our generated ID into the new Bitmap. LazyFlashOutput will write this ID.
-            bitmap.setID(getID());
-            // Must call getBounds() since some Bitmaps defer initialization until it is called.
-            bitmap.getBounds();
-
-            // Make real Bitmap write the SWF bits
-            bitmap.write(fob);
-        }
+        // Construct a real Bitmap using those bits
+        Bitmap bitmap = Bitmap.newBitmap(new FlashBuffer(imageBytes));
+        // Copy our generated ID into the new Bitmap. LazyFlashOutput will write this ID.
+        bitmap.setID(getID());
+        // Must call getBounds() since some Bitmaps defer initialization until it is called.
+        bitmap.getBounds();
+
+        // Make real Bitmap write the SWF bits
+        bitmap.write(fob);
 
         return fob;
     }
@@ -182,8 +363,9 @@ public class LazyBitmap extends Bitmap {
         super.copyInto(item, copier);
         ((LazyBitmap)item).lazyGenerator = lazyGenerator;
         ((LazyBitmap)item).bitmapBounds = (Rectangle)bitmapBounds.clone();
-        ((LazyBitmap)item).rafBeginOffset = rafBeginOffset;
-        ((LazyBitmap)item).rafEndOffset = rafEndOffset;
+        // Copies share the encoded bits, even if they are still being encoded
+        ((LazyBitmap)item).bitmapSlot = bitmapSlot;
+        ((LazyBitmap)item).slotResult = slotResult;
         ((LazyBitmap)item).fobOffset = fobOffset;
         return item;
     }
@@ -193,6 +375,23 @@ public class LazyBitmap extends Bitmap {
     }
 }
 
+/**
+ * Location of a LazyBitmaps encoded bits in a scratch RAF
+ */
+class BitmapSlot {
+    final RandomAccessFile raf;
+    final long beginOffset;
+    final long endOffset;
+    final BitmapDelegate bitmapDelegate;
+
+    BitmapSlot(RandomAccessFile raf, long beginOffset, long endOffset, BitmapDelegate bitmapDelegate) {
+        this.raf = raf;
+        this.beginOffset = beginOffset;
+        this.endOffset = endOffset;
+        this.bitmapDelegate = bitmapDelegate;
+    }
+}
+
 /**
  * FlashOutput that writes the def ID stored in a def, instead of generating one.
  */
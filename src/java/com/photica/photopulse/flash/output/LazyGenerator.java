@@ -26,13 +26,29 @@
  
 package com.photica.photopulse.flash.output;
 
+import EDU.oswego.cs.dl.util.concurrent.BoundedBuffer;
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
+import com.iv.flash.api.FlashFile;
+import com.iv.flash.api.Script;
+import com.iv.flash.api.SetBackgroundColor;
+import com.iv.flash.api.Timeline;
+import com.iv.flash.util.DepsCollector;
 import com.iv.flash.util.FlashOutput;
+import com.iv.flash.util.FontsCollector;
 import com.iv.flash.util.IVException;
+import com.iv.flash.util.IVVector;
+import com.iv.flash.util.Tag;
+import com.photica.photopulse.flash.GenerationContext;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -42,6 +58,7 @@ import java.util.List;
  * First, during FlashFile.processFile(), our commands create LazyBitmap instances.
  * LazyGenerator provides a RAF that the LazyBitmaps can encode their images into.
  * So the image bits are not stored in memory in a Bitmap, but on disk.
+ * Photos already transcoded by a previous export are copied into the RAF from the BitmapCache.
  * The LazyBitmap references the bits on disk (RAF offsets).
  * <p>
  * Later, during FlashFile.generate() when LazyBitmap.write() is called, it does not write
@@ -53,33 +70,147 @@ import java.util.List;
  * Now {@link #writeFlashOutput} must be used to combine the two into a proper SWF.
  * It iterates the ordered LazyBitmap list, writing out chunks of FlashOutput buffer
  * followed by generating the bitmap SWF definition, then seeking back and fixing the SWF size
- * bits in the file (requires a RAF). LazyBitmap generates the bitmap SWF definition from the temp
- * bitmap RAF by creating a concrete Bitmap subclass and forcing it to write into a temp FlashOutput.
+ * bits in the file (requires a RAF). LazyBitmap writes the bitmap SWF tag header and transfers the
+ * encoded bits from the temp bitmap RAF to the output channel. If the header is not known
+ * it creates a concrete Bitmap subclass and forces it to write into a temp FlashOutput.
  * <p>
  * {@link #writeFlashOutput} is static, if it is passed a non-null LazyGenerator instance, it uses
  * it to properly create the SWF. Otherwise it assumes the FlashOutput is complete and just writes it out.
+ * <p>
+ * The non bitmap part of a long show (mostly per frame tween PlaceObjects) can still be large.
+ * So instead of FlashFile.generate(), {@link #generate} can be used to defer generation.
+ * Then {@link #writeFlashOutput} generates the SWF one frame at a time into a reused FlashOutput,
+ * splicing in that frames bitmaps and writing it to the RAF. Peak memory is then one frames worth
+ * of tags instead of the whole show. Since frames are generated while the exporter is writing,
+ * the GenerationContext is checked between frames and {@link #writeFlashOutput} throws
+ * GenerationAbortedException if generation was canceled or jgenerator logged errors,
+ * so exporters never go on to use a broken SWF.
+ * <p>
+ * On multiprocessor machines, LazyBitmaps constructed from decoded images reserve a slot and
+ * are encoded on a pool of worker threads. Each thread that encodes bitmaps writes them into its own
+ * scratch segment file, so workers never contend for a file pointer. Bitmaps are still spliced
+ * in the order they were written to the FlashOutput, {@link #writeFlashOutput} only waits for
+ * each bitmap as it is about to be spliced. So the SWF is identical to one encoded serially.
  */
 public class LazyGenerator {
+    // Initial size of the reused frame buffer when streaming
+    private static final int FRAME_BUFFER_SIZE = 64 * 1024;
+    // Decoded images queued for encoding per worker thread, bounds memory held by pending bitmaps.
+    // When the queue is full the thread constructing the LazyBitmap encodes it itself.
+    private static final int ENCODE_QUEUE_PER_THREAD = 2;
+
+    private File exportDir;
+
+    // Checked between streamed frames, may be null
+    private GenerationContext genContext;
+
     private BitmapRAF bitmapRAF;
 
+    // Worker pool encoding LazyBitmaps, null if not encoding in parallel
+    private PooledExecutor encodePool;
+    // Scratch segment of each thread that has encoded bitmaps, and all segments for cleanup
+    private ThreadLocal<BitmapRAF> segmentRAF = new ThreadLocal<BitmapRAF>();
+    private List<BitmapRAF> segmentList = new ArrayList<BitmapRAF>();
+    private boolean isCleanedUp = false;
+
+    private DeflateSettings deflateSettings = DeflateSettings.DEFAULT;
+
     private List<LazyBitmap> lazyBitmapList;
 
+    // Placeholder FlashOutput returned by generate(), and the file it defers
+    private FlashOutput deferredOutput;
+    private FlashFile deferredFile;
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        public Thread newThread(Runnable command) {
+            Thread thread = new Thread(command, "LazyBitmapEncoder");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
     public LazyGenerator(File exportFile) throws IOException {
-        File exportDir = exportFile;
+        this(exportFile, null);
+    }
+
+    /**
+     * @param genContext Checked for cancellation and logged errors while streaming frames, may be null
+     */
+    public LazyGenerator(File exportFile, GenerationContext genContext) throws IOException {
+        this.genContext = genContext;
+        exportDir = exportFile;
         if (!exportDir.isDirectory())
             exportDir = exportFile.getParentFile();
         bitmapRAF = new BitmapRAF(File.createTempFile("lbm", ".tmp", exportDir));
 
         lazyBitmapList = new LinkedList<LazyBitmap>();
+
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        if (threadCount > 1) {
+            encodePool = new PooledExecutor(new BoundedBuffer(threadCount * ENCODE_QUEUE_PER_THREAD), threadCount);
+            encodePool.setMinimumPoolSize(threadCount);
+            encodePool.setThreadFactory(new DaemonThreadFactory());
+            encodePool.runWhenBlocked();
+        }
     }
 
     /**
-     * Shared scratch file for LazyBitmaps to stash their encoded bitmap bits
+     * Shared scratch file for LazyBitmaps to stash their encoded bitmap bits.
+     * Only used by the thread processing the FlashFile.
      */
     RandomAccessFile getBitmapRAF() {
         return bitmapRAF;
     }
 
+    /**
+     * Scratch segment for LazyBitmaps encoded on the current thread.
+     * Each thread appends to its own segment, other threads only read it at known offsets.
+     */
+    RandomAccessFile getSegmentRAF() throws IOException {
+        BitmapRAF raf = segmentRAF.get();
+        if (raf == null) {
+            File segmentFile = File.createTempFile("lbs", ".tmp", exportDir);
+            synchronized (segmentList) {
+                if (isCleanedUp) {
+                    segmentFile.delete();
+                    throw new IOException("LazyGenerator has been cleaned up");
+                }
+                raf = new BitmapRAF(segmentFile);
+                segmentList.add(raf);
+            }
+            segmentRAF.set(raf);
+        }
+        return raf;
+    }
+
+    /**
+     * Set how high quality LazyBitmaps deflate their zlib data
+     */
+    public void setDeflateSettings(DeflateSettings deflateSettings) {
+        this.deflateSettings = deflateSettings;
+    }
+
+    DeflateSettings getDeflateSettings() {
+        return deflateSettings;
+    }
+
+    /**
+     * Return true if LazyBitmaps should be encoded on the worker pool
+     */
+    boolean isParallel() {
+        return encodePool != null;
+    }
+
+    /**
+     * Run an encode task on the worker pool.
+     * If the pool is saturated, the task is run on the calling thread.
+     */
+    void executeEncode(Runnable task) throws InterruptedException {
+        if (genContext != null)
+            task = genContext.bind(task);
+        encodePool.execute(task);
+    }
+
     /**
      * When LazyBitmap.write() is called, it adds itself to our list for deferred writing.
      */
@@ -87,6 +218,19 @@ public class LazyGenerator {
         lazyBitmapList.add(bitmap);
     }
 
+    /**
+     * Generate file for writing with {@link #writeFlashOutput}.
+     * Uncompressed files are not generated now, the returned FlashOutput only carries the FlashFile
+     * and the SWF is streamed when written. Compressed files are generated normally.
+     */
+    public FlashOutput generate(FlashFile file) throws IVException {
+        if (file.isCompressed())
+            return file.generate();
+        deferredFile = file;
+        deferredOutput = new FlashOutput(file, 0);
+        return deferredOutput;
+    }
+
     /**
      * Write swf output using lazyGenerator if not null.
      * @return Size of swf written
@@ -104,6 +248,97 @@ public class LazyGenerator {
     private int writeFlashOutput(FlashOutput fob, RandomAccessFile rafOutput) throws IOException, IVException {
         long beginOutputOffset = rafOutput.getFilePointer();
 
+        if (fob == deferredOutput)
+            fob = streamFlashFile(deferredFile, rafOutput);
+        else
+            writeChunk(fob, rafOutput);
+        // Bitmaps spliced into the last chunk may have logged while encoding
+        checkAborted();
+
+        // Fixup the SWF size record.
+        // First write into the buffer, then copy that to the RAF.
+        // Fixup RAF position afterwords.
+        long endOutputOffset = rafOutput.getFilePointer();
+        int size = (int)(endOutputOffset - beginOutputOffset);
+        fob.writeDWordAt(size, 4);
+        rafOutput.seek(beginOutputOffset + 4);
+        rafOutput.write(fob.getBuf(), 4, 4);
+        rafOutput.seek(endOutputOffset);
+
+        // Preemptively cleanup RAF
+        cleanup();
+
+        return size;
+    }
+
+    /**
+     * Generate file the same as FlashFile.generate() and Script.generate(),
+     * but write each frame to the RAF as it is generated.
+     * @return Frame buffer, reset to hold just the SWF header
+     */
+    private FlashOutput streamFlashFile(FlashFile file, RandomAccessFile rafOutput) throws IOException, IVException {
+        // All frames are generated into the same FlashOutput, so def IDs and JPEG tables are shared
+        FlashOutput fob = new FlashOutput(file, FRAME_BUFFER_SIZE);
+
+        // Header, size is fixed up later
+        fob.writeByte('F');
+        fob.writeByte('W');
+        fob.writeByte('S');
+        fob.writeByte(file.getVersion());
+        fob.skip(4);
+        fob.write(file.getFrameSize());
+        fob.writeWord(file.getFrameRate());
+
+        Script script = file.getMainScript();
+        Timeline timeline = script.getTimeline();
+        int frameCount = timeline.getFrameCount();
+        fob.writeWord(frameCount);
+
+        FontsCollector fontsCollector = new FontsCollector();
+        script.collectFonts(fontsCollector);
+        SetBackgroundColor bkgColor = script.getBackgroundColor();
+        if (bkgColor != null)
+            bkgColor.write(fob);
+        mergeFonts(fontsCollector.getFonts());
+
+        // Keep the header bytes so the size can be fixed up
+        byte[] header = new byte[fob.getSize()];
+        System.arraycopy(fob.getBuf(), 0, header, 0, header.length);
+
+        DepsCollector depsCollector = new DepsCollector(fontsCollector);
+        for (int i = 0; i < frameCount; i++) {
+            timeline.getFrameAt(i).generate(fob, depsCollector);
+            checkAborted();
+            writeChunk(fob, rafOutput);
+            fob.setPos(0);
+            fob.setSize(0);
+        }
+        Tag.END_TAG.write(fob);
+        writeChunk(fob, rafOutput);
+
+        fob.setPos(0);
+        fob.setSize(0);
+        fob.writeArray(header, 0, header.length);
+        return fob;
+    }
+
+    /**
+     * Fail if generation was canceled or jgenerator logged errors generating or encoding bitmaps.
+     */
+    private void checkAborted() throws GenerationAbortedException {
+        if (genContext == null)
+            return;
+        if (genContext.isCanceled())
+            throw new GenerationAbortedException("Generation canceled");
+        StringWriter logWriter = genContext.getLogWriter();
+        if (logWriter != null && logWriter.getBuffer().length() > 0)
+            throw new GenerationAbortedException("Errors logged generating frames");
+    }
+
+    /**
+     * Write fob to the RAF, generating the LazyBitmaps written into it at their offsets.
+     */
+    private void writeChunk(FlashOutput fob, RandomAccessFile rafOutput) throws IOException, IVException {
         byte[] buf = fob.getBuf();
         int bufSize = fob.getSize();
         int bufOffset = 0;
@@ -116,33 +351,50 @@ public class LazyGenerator {
                 bufOffset = bitmapOffset;
             }
             // Now generate the Bitmap and write its bits
-            FlashOutput fobBitmap = lazyBitmap.lazyWrite();
-            rafOutput.write(fobBitmap.getBuf(), 0, fobBitmap.getSize());
+            lazyBitmap.lazyWrite(rafOutput);
         }
         // Write any remaining FlashOutput bits after the last Bitmap
         if (bufOffset < bufSize)
             rafOutput.write(buf, bufOffset, bufSize - bufOffset);
 
-        // Fixup the SWF size record.
-        // First write into the buffer, then copy that to the RAF.
-        // Fixup RAF position afterwords.
-        long endOutputOffset = rafOutput.getFilePointer();
-        int size = (int)(endOutputOffset - beginOutputOffset);
-        fob.writeDWordAt(size, 4);
-        rafOutput.seek(beginOutputOffset + 4);
-        rafOutput.write(buf, 4, 4);
-        rafOutput.seek(endOutputOffset);
-
-        // Preemptively cleanup RAF
-        cleanup();
+        lazyBitmapList.clear();
+    }
 
-        return size;
+    /**
+     * Script.mergeFonts is protected, Script.generate() calls it before generating the timeline.
+     */
+    private static void mergeFonts(IVVector fonts) throws IVException {
+        try {
+            Method method = Script.class.getDeclaredMethod("mergeFonts", new Class[] { IVVector.class });
+            method.setAccessible(true);
+            method.invoke(null, new Object[] { fonts });
+        } catch (InvocationTargetException e) {
+            throw new IVException(e.getTargetException());
+        } catch (Exception e) {
+            throw new IVException(e);
+        }
     }
 
     /**
      * This must be called after constructing a LazyGenerator to clean up temp files.
      */
     public void cleanup() {
+        if (encodePool != null) {
+            // Pending bitmaps can no longer be written
+            encodePool.shutdownNow();
+            encodePool.drain();
+            encodePool = null;
+        }
+        synchronized (segmentList) {
+            isCleanedUp = true;
+            for (BitmapRAF raf : segmentList) {
+                try {
+                    raf.cleanup();
+                } catch (IOException e) {
+                }
+            }
+            segmentList.clear();
+        }
         if (bitmapRAF != null) {
             try {
                 bitmapRAF.cleanup();
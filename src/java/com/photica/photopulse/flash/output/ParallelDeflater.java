@@ -0,0 +1,270 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.flash.output;
+
+import EDU.oswego.cs.dl.util.concurrent.Callable;
+import EDU.oswego.cs.dl.util.concurrent.FutureResult;
+import EDU.oswego.cs.dl.util.concurrent.LinkedQueue;
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates a buffer into a single zlib stream using multiple threads, the same way pigz does.
+ * The input is split into fixed size blocks which are raw deflated independently,
+ * each primed with the 32K of input preceding it as a preset dictionary so compression
+ * barely suffers. Every block but the last ends with a sync flush, which byte aligns it
+ * without ending the stream, so the blocks can simply be concatenated between a zlib header
+ * and the Adler-32 of the whole input.
+ * <p>
+ * Sync flush requires Deflater.deflate(byte[],int,int,int), which only exists in Java 7 and later.
+ * It is found with reflection, if it is not available {@link #isSupported} returns false
+ * and {@link #deflate} deflates serially.
+ */
+public class ParallelDeflater {
+    // Uncompressed bytes per block, as in pigz
+    private static final int BLOCK_SIZE = 128 * 1024;
+    // Deflate window size, each block is primed with this much of the preceding input
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    // Deflater.SYNC_FLUSH
+    private static final int SYNC_FLUSH = 2;
+    private static final Method DEFLATE_FLUSH_METHOD;
+
+    // Shared by all parallel deflates
+    private static PooledExecutor threadPool;
+
+    static {
+        Method method = null;
+        try {
+            method = Deflater.class.getMethod("deflate", new Class[] { byte[].class, int.class, int.class, int.class });
+        } catch (NoSuchMethodException e) {
+        }
+        DEFLATE_FLUSH_METHOD = method;
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        public Thread newThread(Runnable command) {
+            Thread thread = new Thread(command, "ParallelDeflater");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private ParallelDeflater() {
+    }
+
+    /**
+     * Return true if this JRE can sync flush a Deflater
+     */
+    public static boolean isSupported() {
+        return DEFLATE_FLUSH_METHOD != null;
+    }
+
+    private static synchronized PooledExecutor getThreadPool() {
+        if (threadPool == null) {
+            int threadCount = Runtime.getRuntime().availableProcessors();
+            threadPool = new PooledExecutor(new LinkedQueue(), threadCount);
+            threadPool.setMinimumPoolSize(threadCount);
+            threadPool.setThreadFactory(new DaemonThreadFactory());
+        }
+        return threadPool;
+    }
+
+    /**
+     * Deflate length bytes of data into a zlib stream written to out.
+     * Inputs of a single block, or when parallel deflate is not supported, are deflated serially.
+     * @param level Deflater compression level, or Deflater.DEFAULT_COMPRESSION
+     */
+    public static void deflate(byte[] data, int length, int level, DataOutput out) throws IOException {
+        if (length <= BLOCK_SIZE || !isSupported()) {
+            deflateSerial(data, length, level, out);
+            return;
+        }
+
+        // Deflate all blocks but the first on the pool
+        int blockCount = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        FutureResult[] results = new FutureResult[blockCount];
+        PooledExecutor pool = getThreadPool();
+        try {
+            for (int i = 1; i < blockCount; i++) {
+                results[i] = new FutureResult();
+                pool.execute(results[i].setter(new BlockDeflater(data, length, i * BLOCK_SIZE, level)));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        // Meanwhile deflate the first block and checksum the input here
+        byte[] firstBlock = deflateBlock(data, length, 0, level);
+        Adler32 adler32 = new Adler32();
+        adler32.update(data, 0, length);
+
+        writeHeader(level, out);
+        out.write(firstBlock);
+        for (int i = 1; i < blockCount; i++) {
+            try {
+                out.write((byte[])results[i].get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (InvocationTargetException e) {
+                throw toIOException(e.getTargetException());
+            }
+        }
+        out.writeInt((int)adler32.getValue());
+    }
+
+    /**
+     * Deflate data as a single zlib stream on the calling thread
+     */
+    static void deflateSerial(byte[] data, int length, int level, DataOutput out) throws IOException {
+        Deflater deflater = new Deflater(level);
+        try {
+            byte[] zlibData = new byte[Math.min(Math.max(length, 64), BLOCK_SIZE)];
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int compressedSize = deflater.deflate(zlibData);
+                out.write(zlibData, 0, compressedSize);
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static class BlockDeflater implements Callable {
+        private final byte[] data;
+        private final int length;
+        private final int blockOffset;
+        private final int level;
+
+        BlockDeflater(byte[] data, int length, int blockOffset, int level) {
+            this.data = data;
+            this.length = length;
+            this.blockOffset = blockOffset;
+            this.level = level;
+        }
+
+        public Object call() throws Exception {
+            return deflateBlock(data, length, blockOffset, level);
+        }
+    }
+
+    /**
+     * Raw deflate the block at blockOffset, primed with the preceding input.
+     * The last block finishes the deflate stream, others are sync flushed.
+     */
+    private static byte[] deflateBlock(byte[] data, int length, int blockOffset, int level) throws IOException {
+        int blockSize = Math.min(BLOCK_SIZE, length - blockOffset);
+        boolean isLast = blockOffset + blockSize == length;
+
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (blockOffset > 0) {
+                int dictionarySize = Math.min(DICTIONARY_SIZE, blockOffset);
+                deflater.setDictionary(data, blockOffset - dictionarySize, dictionarySize);
+            }
+            deflater.setInput(data, blockOffset, blockSize);
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(blockSize / 2);
+            byte[] zlibData = new byte[blockSize / 4 + 64];
+            if (isLast) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int compressedSize = deflater.deflate(zlibData);
+                    bos.write(zlibData, 0, compressedSize);
+                }
+            }
+            else {
+                // A full output buffer means there may be more pending output
+                int compressedSize;
+                do {
+                    compressedSize = deflateSyncFlush(deflater, zlibData);
+                    bos.write(zlibData, 0, compressedSize);
+                } while (compressedSize == zlibData.length);
+            }
+            return bos.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int deflateSyncFlush(Deflater deflater, byte[] zlibData) throws IOException {
+        try {
+            Object result = DEFLATE_FLUSH_METHOD.invoke(deflater, new Object[] {
+                    zlibData, Integer.valueOf(0), Integer.valueOf(zlibData.length), Integer.valueOf(SYNC_FLUSH) });
+            return ((Integer)result).intValue();
+        } catch (IllegalAccessException e) {
+            throw toIOException(e);
+        } catch (InvocationTargetException e) {
+            throw toIOException(e.getTargetException());
+        }
+    }
+
+    /**
+     * Write the 2 byte zlib header the same as zlib deflateInit() would for level
+     */
+    private static void writeHeader(int level, DataOutput out) throws IOException {
+        if (level == Deflater.DEFAULT_COMPRESSION)
+            level = 6;
+        int levelFlags;
+        if (level < 2)
+            levelFlags = 0;
+        else if (level < 6)
+            levelFlags = 1;
+        else if (level == 6)
+            levelFlags = 2;
+        else
+            levelFlags = 3;
+        // Deflate, 32K window
+        int header = (0x78 << 8) | (levelFlags << 6);
+        header += 31 - (header % 31);
+        out.writeShort(header);
+    }
+
+    private static IOException toIOException(Throwable t) {
+        if (t instanceof IOException)
+            return (IOException)t;
+        else if (t instanceof RuntimeException)
+            throw (RuntimeException)t;
+        else if (t instanceof Error)
+            throw (Error)t;
+        IOException e = new IOException("Deflate failed");
+        e.initCause(t);
+        return e;
+    }
+}
@@ -0,0 +1,186 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.flash.output;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * Reads scanlines of a BufferedImage for ZlibBitmap and JPEG3Bitmap.
+ * TYPE_INT_ARGB, TYPE_INT_RGB and TYPE_3BYTE_BGR images are read directly from their
+ * DataBuffer banks. Other types fall back to per pixel Raster.getDataElements() and ColorModel
+ * calls, which return the same values but are much slower.
+ */
+public class PixelReader {
+    private static final int LAYOUT_GENERIC = 0;
+    private static final int LAYOUT_INT_ARGB = 1;
+    private static final int LAYOUT_INT_RGB = 2;
+    private static final int LAYOUT_3BYTE_BGR = 3;
+
+    private int layout = LAYOUT_GENERIC;
+    private int width;
+    private int minX;
+    private int minY;
+
+    // Direct access
+    private int[] intData;
+    private byte[] byteData;
+    // Offset of pixel (0,0) in the bank, and bank elements per scanline and per pixel
+    private int baseOffset;
+    private int scanlineStride;
+    private int pixelStride;
+    // Offsets of the red, green and blue bytes within a TYPE_3BYTE_BGR pixel
+    private int redOffset;
+    private int greenOffset;
+    private int blueOffset;
+
+    // Generic access
+    private ColorModel colorModel;
+    private Raster raster;
+    private Object dataEl = null;
+
+    public PixelReader(BufferedImage image) {
+        colorModel = image.getColorModel();
+        raster = image.getRaster();
+        width = image.getWidth();
+        minX = raster.getMinX();
+        minY = raster.getMinY();
+
+        SampleModel sampleModel = raster.getSampleModel();
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        int translateX = raster.getSampleModelTranslateX();
+        int translateY = raster.getSampleModelTranslateY();
+        switch (image.getType()) {
+        case BufferedImage.TYPE_INT_ARGB:
+        case BufferedImage.TYPE_INT_RGB:
+            if (sampleModel instanceof SinglePixelPackedSampleModel && dataBuffer instanceof DataBufferInt
+                    && dataBuffer.getNumBanks() == 1) {
+                SinglePixelPackedSampleModel packedModel = (SinglePixelPackedSampleModel)sampleModel;
+                intData = ((DataBufferInt)dataBuffer).getData();
+                scanlineStride = packedModel.getScanlineStride();
+                pixelStride = 1;
+                baseOffset = dataBuffer.getOffset() + packedModel.getOffset(minX - translateX, minY - translateY);
+                layout = image.getType() == BufferedImage.TYPE_INT_ARGB ? LAYOUT_INT_ARGB : LAYOUT_INT_RGB;
+            }
+            break;
+        case BufferedImage.TYPE_3BYTE_BGR:
+            if (sampleModel instanceof ComponentSampleModel && dataBuffer instanceof DataBufferByte
+                    && dataBuffer.getNumBanks() == 1) {
+                ComponentSampleModel componentModel = (ComponentSampleModel)sampleModel;
+                int[] bandOffsets = componentModel.getBandOffsets();
+                byteData = ((DataBufferByte)dataBuffer).getData();
+                scanlineStride = componentModel.getScanlineStride();
+                pixelStride = componentModel.getPixelStride();
+                // ComponentSampleModel.getOffset() would include the first band offset
+                baseOffset = dataBuffer.getOffset()
+                        + (minY - translateY) * scanlineStride + (minX - translateX) * pixelStride;
+                redOffset = bandOffsets[0];
+                greenOffset = bandOffsets[1];
+                blueOffset = bandOffsets[2];
+                layout = LAYOUT_3BYTE_BGR;
+            }
+            break;
+        }
+    }
+
+    public boolean hasAlpha() {
+        return colorModel.hasAlpha();
+    }
+
+    /**
+     * Return true if the image is read directly from its DataBuffer
+     */
+    public boolean isDirect() {
+        return layout != LAYOUT_GENERIC;
+    }
+
+    /**
+     * Read scanline y as non-premultiplied ARGB, the same as ColorModel.getRGB()
+     */
+    public void readARGB(int y, int[] argb) {
+        switch (layout) {
+        case LAYOUT_INT_ARGB:
+            System.arraycopy(intData, baseOffset + y * scanlineStride, argb, 0, width);
+            break;
+        case LAYOUT_INT_RGB: {
+            int offset = baseOffset + y * scanlineStride;
+            for (int x = 0; x < width; x++)
+                argb[x] = 0xff000000 | intData[offset++];
+            break;
+        }
+        case LAYOUT_3BYTE_BGR: {
+            int offset = baseOffset + y * scanlineStride;
+            for (int x = 0; x < width; x++, offset += pixelStride) {
+                argb[x] = 0xff000000
+                        | ((byteData[offset + redOffset] & 0xff) << 16)
+                        | ((byteData[offset + greenOffset] & 0xff) << 8)
+                        | (byteData[offset + blueOffset] & 0xff);
+            }
+            break;
+        }
+        default:
+            for (int x = 0; x < width; x++) {
+                // Let raster create dataEl the first time, reuse on subsequent calls
+                dataEl = raster.getDataElements(minX + x, minY + y, dataEl);
+                argb[x] = colorModel.getRGB(dataEl);
+            }
+            break;
+        }
+    }
+
+    /**
+     * Read the alpha of scanline y into alpha at offset, the same as ColorModel.getAlpha()
+     */
+    public void readAlpha(int y, byte[] alpha, int offset) {
+        switch (layout) {
+        case LAYOUT_INT_ARGB: {
+            int dataOffset = baseOffset + y * scanlineStride;
+            for (int x = 0; x < width; x++)
+                alpha[offset++] = (byte)(intData[dataOffset++] >>> 24);
+            break;
+        }
+        case LAYOUT_INT_RGB:
+        case LAYOUT_3BYTE_BGR:
+            for (int x = 0; x < width; x++)
+                alpha[offset++] = (byte)0xff;
+            break;
+        default:
+            for (int x = 0; x < width; x++) {
+                dataEl = raster.getDataElements(minX + x, minY + y, dataEl);
+                alpha[offset++] = (byte)colorModel.getAlpha(dataEl);
+            }
+            break;
+        }
+    }
+}
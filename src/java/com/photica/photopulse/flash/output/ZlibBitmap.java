@@ -32,17 +32,15 @@ import com.photica.photopulse.imageio.DecodedImage;
 
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.awt.image.Raster;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.zip.Deflater;
 
 
 /**
  * Helper class for LazyBitmap.
  * Manages encoding highQuality bitmaps. Directly encodes a BufferedImage to a zlib
- * compressed RGB[A] stream in the bitmap RAF.
+ * compressed RGB[A] stream in the bitmap RAF (or memory).
  * Also knows how to encode those bits into SWF.
  * This class should be used for bitmap encoding whenever highQuality mode is used.
  * It is much faster than encoding to PNG and avoids QuickTime SWF color issues.
@@ -53,34 +51,92 @@ class ZlibBitmap implements BitmapDelegate {
 
     private static final float ALPHA_SCALE = 1.0f / 0xff;
 
-    public ZlibBitmap(DecodedImage dimage, RandomAccessFile bitmapRAF) throws IOException {
+    // Pre-multiplied color component, indexed by (alpha << 8) | component.
+    // Computed with the same float math as the per pixel computation it replaces, so results are identical.
+    private static final byte[] PREMULTIPLY = new byte[256 * 256];
+    static {
+        for (int alpha = 0; alpha < 256; alpha++) {
+            float normAlpha = alpha * ALPHA_SCALE;
+            for (int component = 0; component < 256; component++)
+                PREMULTIPLY[(alpha << 8) | component] = (byte)(normAlpha * component + 0.5f);
+        }
+    }
+
+    // Scanlines packed and deflated per batch when deflating serially
+    private static final int SCANLINE_COUNT = 30;
+
+    public ZlibBitmap(DecodedImage dimage, DataOutput out, DeflateSettings deflateSettings) throws IOException {
         BufferedImage image = dimage.getImage();
-        ColorModel colorModel = image.getColorModel();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        ScanlinePacker packer = new ScanlinePacker(image);
 
-        boolean hasAlpha = colorModel.hasAlpha();
+        // Pack the whole image and deflate it in parallel blocks
+        if (deflateSettings.isParallel()) {
+            byte imageBytes[] = new byte[height * width * 4];
+            packer.pack(0, height, imageBytes);
+            ParallelDeflater.deflate(imageBytes, imageBytes.length, deflateSettings.getLevel(), out);
+            return;
+        }
 
-        final int scanlineCount = 30;
-        int scanlineSize = scanlineCount * image.getWidth() * 4;
+        int scanlineSize = SCANLINE_COUNT * width * 4;
 
         // Set up for compression
-        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        Deflater deflater = new Deflater(deflateSettings.getLevel());
         byte zlibData[] = new byte[scanlineSize];
 
         // Set up for [A]RGB image decoding
         byte scanlineBytes[] = new byte[scanlineSize];
-        int width = image.getWidth();
-        int height = image.getHeight();
-        Raster raster = image.getRaster();
-        Object dataEl = null;
 
-        for (int y = 0; y < height; y++) {
+        try {
+            for (int y = 0; y < height; y++) {
+                int scanCount = (y + SCANLINE_COUNT < height) ? SCANLINE_COUNT : height - y;
+                int scanX = packer.pack(y, scanCount, scanlineBytes);
+                y += scanCount - 1;
+
+                // Compress and write scanline to stream
+                deflater.setInput(scanlineBytes, 0, scanX);
+                if (y == height - 1)
+                    deflater.finish();
+                while (true) {
+                    int compressedSize = deflater.deflate(zlibData);
+                    if (compressedSize == 0)
+                        break;
+                    out.write(zlibData, 0, compressedSize);
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Packs image scanlines as ARGB, pre-multiplied alpha
+     */
+    private static class ScanlinePacker {
+        private PixelReader pixelReader;
+        private boolean hasAlpha;
+        private int width;
+        private int[] argb;
+
+        ScanlinePacker(BufferedImage image) {
+            pixelReader = new PixelReader(image);
+            hasAlpha = pixelReader.hasAlpha();
+            width = image.getWidth();
+            argb = new int[width];
+        }
+
+        /**
+         * Pack scanCount scanlines starting at y into scanlineBytes
+         * @return Number of bytes packed
+         */
+        int pack(int y, int scanCount, byte[] scanlineBytes) {
             int scanX = 0;
-            int scanCount = (y + scanlineCount < height) ? scanlineCount : height - y;
             for (int scanY = 0; scanY < scanCount; scanY++) {
                 // Populate scanlines with [A]RGB data
+                pixelReader.readARGB(y + scanY, argb);
                 for (int x = 0; x < width; x++) {
-                    // Let raster create dataEl the first time, reuse on subsequent calls
-                    int pixel = colorModel.getRGB((dataEl = raster.getDataElements(x, y + scanY, dataEl)));
+                    int pixel = argb[x];
 
                     // Store as ARGB, pre-multiplied alpha. Optimize 0x0 and 0xff cases
                     byte alpha = hasAlpha ? (byte)(pixel >> 24) : (byte)0xff;
@@ -97,32 +153,21 @@ class ZlibBitmap implements BitmapDelegate {
                         scanlineBytes[scanX++] = (byte)(pixel);
                     }
                     else {
-                        float normAlpha = (alpha & 0xff) * ALPHA_SCALE;
+                        int alphaRow = (alpha & 0xff) << 8;
                         scanlineBytes[scanX++] = alpha;
-                        scanlineBytes[scanX++] = (byte)(normAlpha * ((pixel >>> 16) & 0xff) + 0.5f);
-                        scanlineBytes[scanX++] = (byte)(normAlpha * ((pixel >>> 8) & 0xff) + 0.5f);
-                        scanlineBytes[scanX++] = (byte)(normAlpha * ((pixel) & 0xff) + 0.5f);
+                        scanlineBytes[scanX++] = PREMULTIPLY[alphaRow | ((pixel >>> 16) & 0xff)];
+                        scanlineBytes[scanX++] = PREMULTIPLY[alphaRow | ((pixel >>> 8) & 0xff)];
+                        scanlineBytes[scanX++] = PREMULTIPLY[alphaRow | ((pixel) & 0xff)];
                     }
                 }
             }
-            y += scanCount - 1;
-
-            // Compress and write scanline to RAF
-            deflater.setInput(scanlineBytes, 0, scanX);
-            if (y == height - 1)
-                deflater.finish();
-            while (true) {
-                int compressedSize = deflater.deflate(zlibData);
-                if (compressedSize == 0)
-                    break;
-                bitmapRAF.write(zlibData, 0, compressedSize);
-            }
+            return scanX;
         }
     }
 
     // See com.iv.flash.api.image.LLBitmap.write()
-    public void write(FlashOutput fob, int id, Rectangle2D bounds, byte[] imageBytes) {
-        int tagSize = 2 + 1 + 4 + imageBytes.length;
+    public void writeHeader(FlashOutput fob, int id, Rectangle2D bounds, int imageSize) {
+        int tagSize = 2 + 1 + 4 + imageSize;
         // We never use Tag.DEFINEBITSLOSSLESS - flash player does not composite other
         // elements with alpha properly if underlying image is not Tag.DEFINEBITSLOSSLESS2
         fob.writeLongTag(Tag.DEFINEBITSLOSSLESS2, tagSize);
@@ -130,6 +175,5 @@ class ZlibBitmap implements BitmapDelegate {
         fob.writeByte(FORMAT_32);
         fob.writeWord((int)bounds.getWidth());
         fob.writeWord((int)bounds.getHeight());
-        fob.writeArray(imageBytes, 0, imageBytes.length);
     }
 }
@@ -0,0 +1,229 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.imageio;
+
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shared pool of ImageReaders and ImageWriters.
+ * Service providers are resolved once (per class prefix and format), and only the chosen
+ * provider ever creates an instance. So competing (e.g. JAI native) codecs are not
+ * created and disposed for every image.
+ * Released instances are reset and kept idle for reuse by any thread. The number kept idle
+ * per service provider is bounded, the rest are disposed when released.
+ * Codecs are not tied to threads, so worker threads that exit (e.g. per export pools)
+ * do not strand native codec state.
+ */
+public class CodecPool {
+
+    // Reader providers in preference order, keyed by class prefix
+    private final Map<String,List<ImageReaderSpi>> readerSpis = new HashMap<String,List<ImageReaderSpi>>();
+    // Writer provider keyed by class prefix and format name
+    private final Map<String,ImageWriterSpi> writerSpis = new HashMap<String,ImageWriterSpi>();
+
+    // Idle instances keyed by provider, guarded by this
+    private final Map<Object,LinkedList<Object>> idleCodecs = new IdentityHashMap<Object,LinkedList<Object>>();
+    // Idle instances kept per provider, enough for every processor to be decoding or encoding
+    private final int maxIdlePerProvider = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    /**
+     * Return a reader that can decode the stream, preferring readers whose class name starts with classPrefix.
+     * The stream is not set as the readers input.
+     * @param classPrefix Implementation class prefix - null to use first available
+     * @return reader, or null if no reader can decode the stream
+     */
+    ImageReader getReader(ImageInputStream iis, String classPrefix) throws IOException {
+        for (ImageReaderSpi spi : getReaderSpis(classPrefix)) {
+            if (spi.canDecodeInput(iis)) {
+                ImageReader reader = (ImageReader)getIdleCodec(spi);
+                if (reader == null)
+                    reader = spi.createReaderInstance();
+                return reader;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return a writer for the format, preferring writers whose class name starts with classPrefix.
+     * @return writer, or null if the format is not supported
+     */
+    ImageWriter getWriter(String formatName, String classPrefix) throws IOException {
+        ImageWriterSpi spi = getWriterSpi(formatName, classPrefix);
+        if (spi == null)
+            return null;
+        ImageWriter writer = (ImageWriter)getIdleCodec(spi);
+        if (writer == null)
+            writer = spi.createWriterInstance();
+        return writer;
+    }
+
+    /**
+     * Reset the reader and keep it for reuse.
+     * The caller must close the readers input first.
+     */
+    void release(ImageReader reader) {
+        try {
+            reader.reset();
+        } catch (RuntimeException e) {
+            reader.dispose();
+            return;
+        }
+        releaseCodec(reader.getOriginatingProvider(), reader);
+    }
+
+    /**
+     * Reset the writer and keep it for reuse.
+     * The caller must close the writers output first.
+     */
+    void release(ImageWriter writer) {
+        try {
+            writer.reset();
+        } catch (RuntimeException e) {
+            writer.dispose();
+            return;
+        }
+        releaseCodec(writer.getOriginatingProvider(), writer);
+    }
+
+    private synchronized Object getIdleCodec(Object spi) {
+        LinkedList<Object> idle = idleCodecs.get(spi);
+        if (idle != null && !idle.isEmpty()) {
+            hitCount++;
+            return idle.removeFirst();
+        }
+        missCount++;
+        return null;
+    }
+
+    private void releaseCodec(Object spi, Object codec) {
+        if (spi != null) {
+            synchronized (this) {
+                LinkedList<Object> idle = idleCodecs.get(spi);
+                if (idle == null) {
+                    idle = new LinkedList<Object>();
+                    idleCodecs.put(spi, idle);
+                }
+                if (idle.size() < maxIdlePerProvider) {
+                    idle.addFirst(codec);
+                    return;
+                }
+            }
+        }
+
+        // Pool is full, free the native resources now
+        if (codec instanceof ImageReader)
+            ((ImageReader)codec).dispose();
+        else
+            ((ImageWriter)codec).dispose();
+    }
+
+    private synchronized List<ImageReaderSpi> getReaderSpis(String classPrefix) {
+        List<ImageReaderSpi> spis = readerSpis.get(classPrefix);
+        if (spis == null) {
+            // Preferred providers first, otherwise in registry order
+            spis = new ArrayList<ImageReaderSpi>();
+            List<ImageReaderSpi> otherSpis = new ArrayList<ImageReaderSpi>();
+            Iterator<ImageReaderSpi> iter = IIORegistry.getDefaultInstance().getServiceProviders(ImageReaderSpi.class, true);
+            while (iter.hasNext()) {
+                ImageReaderSpi spi = iter.next();
+                if (classPrefix == null || spi.getPluginClassName().startsWith(classPrefix))
+                    spis.add(spi);
+                else
+                    otherSpis.add(spi);
+            }
+            spis.addAll(otherSpis);
+            readerSpis.put(classPrefix, spis);
+        }
+        return spis;
+    }
+
+    private synchronized ImageWriterSpi getWriterSpi(String formatName, String classPrefix) {
+        String key = classPrefix + ":" + formatName;
+        if (writerSpis.containsKey(key))
+            return writerSpis.get(key);
+
+        ImageWriterSpi firstSpi = null;
+        ImageWriterSpi preferredSpi = null;
+        Iterator<ImageWriterSpi> iter = IIORegistry.getDefaultInstance().getServiceProviders(ImageWriterSpi.class, true);
+        while (iter.hasNext() && preferredSpi == null) {
+            ImageWriterSpi spi = iter.next();
+            if (!supportsFormat(spi, formatName))
+                continue;
+            if (classPrefix == null || spi.getPluginClassName().startsWith(classPrefix))
+                preferredSpi = spi;
+            else if (firstSpi == null)
+                firstSpi = spi;
+        }
+        ImageWriterSpi spi = preferredSpi != null ? preferredSpi : firstSpi;
+        writerSpis.put(key, spi);
+        return spi;
+    }
+
+    private static boolean supportsFormat(ImageWriterSpi spi, String formatName) {
+        String[] formatNames = spi.getFormatNames();
+        for (int i = 0; i < formatNames.length; i++) {
+            if (formatNames[i].equals(formatName))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Number of requests satisfied by an idle instance
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Number of requests that created a new instance
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized String toString() {
+        return "hits:" + hitCount + " misses:" + missCount;
+    }
+}
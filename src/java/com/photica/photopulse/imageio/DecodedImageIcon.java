@@ -26,10 +26,8 @@
  
 package com.photica.photopulse.imageio;
 
-import com.photica.photopulse.PhotoPulse;
 import com.photica.photopulse.model.Photo;
 
-import javax.imageio.ImageReader;
 import javax.swing.Icon;
 import javax.swing.UIManager;
 import java.awt.BasicStroke;
@@ -38,7 +36,6 @@ import java.awt.Component;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.io.IOException;
 
 /**
  * Loads a subsampled thumbnail on a background thread.
@@ -46,7 +43,7 @@ import java.io.IOException;
  * Renders a broken image if loading fails.
  * Renders the image once loaded.
  */
-public class DecodedImageIcon implements Runnable, Icon {
+public class DecodedImageIcon implements Icon {
     private DecodedImage decodedImage;
 
     private Photo photo;
@@ -58,12 +55,18 @@ public class DecodedImageIcon implements Runnable, Icon {
     private Component observer;
     private float percentLoaded = 0;
 
-    DecodedImageIcon(Photo photo, int width, int height, ThumbnailDecoder decoder, Component observer) {
+    // Decodes this icon, null if already loaded
+    private ThumbnailScheduler scheduler;
+    // Scheduled request, guarded by scheduler. Null if not scheduled.
+    private ThumbnailScheduler.Request request;
+
+    DecodedImageIcon(Photo photo, int width, int height, ThumbnailDecoder decoder, Component observer, ThumbnailScheduler scheduler) {
         this.photo = photo;
         this.thumbnailWidth = width;
         this.thumbnailHeight = height;
         this.decoder = decoder;
         this.observer = observer;
+        this.scheduler = scheduler;
     }
 
     DecodedImageIcon(Photo photo, int width, int height, DecodedImage decodedImage) {
@@ -92,10 +95,55 @@ public class DecodedImageIcon implements Runnable, Icon {
      * Return true if the image is loaded or failed to load.
      * Return false if still loading
      */
-    public boolean isLoaded() {
+    public synchronized boolean isLoaded() {
         return isLoaded;
     }
 
+    /**
+     * Stop loading this icon if it is no longer displayed.
+     * Loading resumes if the icon is painted again.
+     */
+    public void cancel() {
+        ThumbnailScheduler tScheduler = scheduler;
+        if (tScheduler != null)
+            tScheduler.cancel(this);
+    }
+
+    ThumbnailDecoder getDecoder() {
+        return decoder;
+    }
+
+    Component getObserver() {
+        return observer;
+    }
+
+    ThumbnailScheduler.Request getRequest() {
+        return request;
+    }
+
+    void setRequest(ThumbnailScheduler.Request request) {
+        this.request = request;
+    }
+
+    synchronized void setLoaded(DecodedImage decodedImage) {
+        this.decodedImage = decodedImage;
+        this.isLoaded = true;
+        decoder = null;
+        scheduler = null;
+    }
+
+    void setPercentLoaded(float percentLoaded) {
+        synchronized (this) {
+            this.percentLoaded = percentLoaded;
+        }
+        repaintObserver();
+    }
+
+    void repaintObserver() {
+        if (observer != null)
+            observer.repaint();
+    }
+
     public void paintIcon(Component c, Graphics g, int x, int y) {
         BufferedImage tImage;
         boolean tIsLoaded;
@@ -124,6 +172,11 @@ public class DecodedImageIcon implements Runnable, Icon {
         }
         // Image not loaded yet
         else {
+            // Raise priority while visible
+            ThumbnailScheduler tScheduler = scheduler;
+            if (tScheduler != null)
+                tScheduler.touch(this);
+
             int size = thumbnailHeight/20;
             // Draw progress border
             g.setColor(c.getForeground());
@@ -145,60 +198,4 @@ public class DecodedImageIcon implements Runnable, Icon {
     public int getIconHeight() {
         return thumbnailHeight;
     }
-
-    public void run() {
-        // Just in case we were constructed with an image, but someone still stuck us on a thread
-        if (isLoaded)
-            return;
-
-        DecodedImage dimage = null;
-        try {
-            dimage = decoder.decodeThumbnail(photo, thumbnailWidth, thumbnailHeight, new ImageReadListener(), false);
-        } catch (IOException e) {
-            return;
-        } catch (Throwable e) {
-            PhotoPulse.logException(e);
-            return;
-        } finally {
-            synchronized (this) {
-                decodedImage = dimage;
-                isLoaded = true;
-            }
-            decoder = null;
-
-            // Repaint the observer to draw the new state
-            if (observer != null)
-                observer.repaint();
-        }
-    }
-
-    private class ImageReadListener implements IIOReadListener {
-        public void sequenceStarted(ImageReader reader, int minIndex) {}
-        public void sequenceComplete(ImageReader reader) {}
-
-        public void imageStarted(ImageReader reader, int index) {
-            if (observer != null)
-                observer.repaint();
-        }
-
-        // XXX The JAI ImageIO plugin does not report progress very frequently
-        public synchronized void imageProgress(ImageReader reader, float percent) {
-            // Convert to 0->1.0 percentage
-            percentLoaded = percent / 100.0f;
-            if (observer != null)
-                observer.repaint();
-        }
-
-        public void imageComplete(ImageReader reader) {}
-        public void thumbnailStarted(ImageReader reader, int imageIndex, int thumbnailIndex) {}
-        public void thumbnailProgress(ImageReader reader, float percent) {}
-        public void thumbnailComplete(ImageReader reader) {}
-        public void readAborted(ImageReader reader) {}
-        public void passStarted(ImageReader reader, BufferedImage image, int pass, int minPass, int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {}
-        public void imageUpdate(ImageReader reader, BufferedImage image, int minX, int minY, int width, int height, int periodX, int periodY, int[] bands) {}
-        public void passComplete(ImageReader reader, BufferedImage image) {}
-        public void thumbnailPassStarted(ImageReader reader, BufferedImage thumbnail, int pass, int minPass, int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {}
-        public void thumbnailUpdate(ImageReader reader, BufferedImage thumbnail, int minX, int minY, int width, int height, int periodX, int periodY, int[] bands) {}
-        public void thumbnailPassComplete(ImageReader reader, BufferedImage thumbnail) {}
-    }
 }
@@ -0,0 +1,267 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.imageio;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads the image size and the EXIF thumbnail from the header of a JPEG file,
+ * without decoding any image data. Markers are scanned from SOI up to the first SOF.
+ * Only the APP1 EXIF segment is read, everything else is skipped.
+ */
+class ExifReader {
+
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_APP1 = 0xE1;
+
+    private static final int TAG_COMPRESSION = 0x0103;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT = 0x0201;
+    private static final int TAG_JPEG_INTERCHANGE_FORMAT_LENGTH = 0x0202;
+    private static final int COMPRESSION_JPEG = 6;
+
+    private static final int TYPE_SHORT = 3;
+    private static final int TYPE_LONG = 4;
+
+    private static final byte[] EXIF_HEADER = { 'E', 'x', 'i', 'f', 0, 0 };
+
+    private int imageWidth = -1;
+    private int imageHeight = -1;
+    private byte[] thumbnailData;
+
+    private ExifReader() {
+    }
+
+    /**
+     * Read the JPEG file header.
+     * @return reader, or null if the file is not a JPEG
+     */
+    static ExifReader read(File imageFile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(imageFile), 8192));
+        try {
+            if (in.readUnsignedByte() != 0xFF || in.readUnsignedByte() != MARKER_SOI)
+                return null;
+            ExifReader reader = new ExifReader();
+            reader.readMarkers(in);
+            return reader;
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void readMarkers(DataInputStream in) throws IOException {
+        while (true) {
+            if (in.readUnsignedByte() != 0xFF)
+                return;
+            int marker = in.readUnsignedByte();
+            // Skip fill bytes
+            while (marker == 0xFF)
+                marker = in.readUnsignedByte();
+
+            if (marker == MARKER_SOS || marker == MARKER_EOI)
+                return;
+            // Standalone markers have no length
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7))
+                continue;
+
+            int length = in.readUnsignedShort() - 2;
+            if (length < 0)
+                return;
+
+            if (isSOF(marker)) {
+                in.readUnsignedByte(); // precision
+                imageHeight = in.readUnsignedShort();
+                imageWidth = in.readUnsignedShort();
+                // The thumbnail must precede the image data
+                return;
+            }
+            else if (marker == MARKER_APP1 && thumbnailData == null) {
+                byte[] segment = new byte[length];
+                in.readFully(segment);
+                if (startsWith(segment, EXIF_HEADER))
+                    thumbnailData = readTIFFThumbnail(segment, EXIF_HEADER.length);
+            }
+            else
+                skipFully(in, length);
+        }
+    }
+
+    private static boolean isSOF(int marker) {
+        // C4, C8 and CC are DHT, JPG and DAC
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0)
+                throw new EOFException();
+            length -= skipped;
+        }
+    }
+
+    /**
+     * Extract the JPEG thumbnail from IFD1 of the TIFF structure in the EXIF segment.
+     * @return thumbnail data, or null if there is no JPEG thumbnail
+     */
+    private static byte[] readTIFFThumbnail(byte[] segment, int tiffStart) {
+        TIFFData tiff = new TIFFData(segment, tiffStart);
+        try {
+            boolean isLittleEndian;
+            if (tiff.getByte(0) == 'I' && tiff.getByte(1) == 'I')
+                isLittleEndian = true;
+            else if (tiff.getByte(0) == 'M' && tiff.getByte(1) == 'M')
+                isLittleEndian = false;
+            else
+                return null;
+            tiff.isLittleEndian = isLittleEndian;
+            if (tiff.getShort(2) != 42)
+                return null;
+
+            // Skip IFD0 to find IFD1
+            int ifd0 = tiff.getInt(4);
+            int ifd1 = tiff.getInt(ifd0 + 2 + tiff.getShort(ifd0) * 12);
+            if (ifd1 == 0)
+                return null;
+
+            int thumbnailOffset = -1;
+            int thumbnailLength = -1;
+            int compression = COMPRESSION_JPEG;
+            int entryCount = tiff.getShort(ifd1);
+            for (int i = 0; i < entryCount; i++) {
+                int entry = ifd1 + 2 + i * 12;
+                int tag = tiff.getShort(entry);
+                int type = tiff.getShort(entry + 2);
+                int value;
+                if (type == TYPE_SHORT)
+                    value = tiff.getShort(entry + 8);
+                else if (type == TYPE_LONG)
+                    value = tiff.getInt(entry + 8);
+                else
+                    continue;
+
+                if (tag == TAG_JPEG_INTERCHANGE_FORMAT)
+                    thumbnailOffset = value;
+                else if (tag == TAG_JPEG_INTERCHANGE_FORMAT_LENGTH)
+                    thumbnailLength = value;
+                else if (tag == TAG_COMPRESSION)
+                    compression = value;
+            }
+
+            if (compression != COMPRESSION_JPEG || thumbnailOffset <= 0 || thumbnailLength <= 0)
+                return null;
+            return tiff.getBytes(thumbnailOffset, thumbnailLength);
+        } catch (IndexOutOfBoundsException e) {
+            // Corrupt offsets
+            return null;
+        }
+    }
+
+    /**
+     * Bounds checked access to TIFF data, with offsets relative to the TIFF header
+     */
+    private static class TIFFData {
+        private final byte[] data;
+        private final int start;
+        boolean isLittleEndian;
+
+        TIFFData(byte[] data, int start) {
+            this.data = data;
+            this.start = start;
+        }
+
+        private int index(int offset, int length) {
+            if (offset < 0 || (long)start + offset + length > data.length)
+                throw new IndexOutOfBoundsException();
+            return start + offset;
+        }
+
+        int getByte(int offset) {
+            return data[index(offset, 1)] & 0xff;
+        }
+
+        int getShort(int offset) {
+            int i = index(offset, 2);
+            int b0 = data[i] & 0xff;
+            int b1 = data[i + 1] & 0xff;
+            return isLittleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+        }
+
+        int getInt(int offset) {
+            int i = index(offset, 4);
+            int b0 = data[i] & 0xff;
+            int b1 = data[i + 1] & 0xff;
+            int b2 = data[i + 2] & 0xff;
+            int b3 = data[i + 3] & 0xff;
+            return isLittleEndian ? (b3 << 24) | (b2 << 16) | (b1 << 8) | b0 : (b0 << 24) | (b1 << 16) | (b2 << 8) | b3;
+        }
+
+        byte[] getBytes(int offset, int length) {
+            // Check bounds before allocating, a corrupt length can be huge
+            int i = index(offset, length);
+            byte[] bytes = new byte[length];
+            System.arraycopy(data, i, bytes, 0, length);
+            return bytes;
+        }
+    }
+
+    /**
+     * Width of the main image, or -1 if no SOF marker was found
+     */
+    int getImageWidth() {
+        return imageWidth;
+    }
+
+    int getImageHeight() {
+        return imageHeight;
+    }
+
+    /**
+     * Encoded JPEG thumbnail, or null if there is none
+     */
+    byte[] getThumbnailData() {
+        return thumbnailData;
+    }
+}
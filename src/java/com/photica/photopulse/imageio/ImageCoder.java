@@ -26,14 +26,17 @@
  
 package com.photica.photopulse.imageio;
 
-import EDU.oswego.cs.dl.util.concurrent.LinkedNode;
+import EDU.oswego.cs.dl.util.concurrent.CountDown;
 import EDU.oswego.cs.dl.util.concurrent.LinkedQueue;
-import EDU.oswego.cs.dl.util.concurrent.QueuedExecutor;
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.SynchronizedInt;
 import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
 import com.photica.photopulse.PhotoPulse;
 import com.photica.photopulse.Util;
 import com.photica.photopulse.SystemMessages;
 import com.photica.photopulse.flash.ShowGenerator;
+import com.photica.photopulse.imageio.cache.PhotoIndex;
+import com.photica.photopulse.imageio.cache.ThumbnailCache;
 import com.photica.photopulse.model.Photo;
 import com.iv.flash.util.FlashBuffer;
 
@@ -48,6 +51,7 @@ import javax.imageio.spi.IIORegistry;
 import javax.imageio.spi.ImageReaderSpi;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Graphics;
@@ -63,6 +67,7 @@ import java.awt.image.DirectColorModel;
 import java.awt.image.ImagingOpException;
 import java.awt.image.RasterFormatException;
 import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -84,48 +89,43 @@ public class ImageCoder implements ThumbnailDecoder, ImageTranscoder {
 
     private static List<String> IMAGE_SUFFIXES;
 
-    private QueuedExecutor threadPool;
+    // Maximum relative difference between embedded thumbnail and image aspect ratios
+    private static final double THUMBNAIL_ASPECT_TOLERANCE = 0.02;
 
-    private static ImageCoder instance = new ImageCoder();
+    // Photo validation threads per processor, validation mostly waits on file I/O
+    private static final int VALIDATE_THREADS_PER_PROCESSOR = 2;
 
-    /**
-     * Create daemon threads for pool
-     */
-    private static class DaemonThreadFactory implements ThreadFactory {
-        public Thread newThread(Runnable command) {
-            Thread thread = new Thread(command, "ImageCoder");
-            thread.setDaemon(true);
-            return thread;
-        }
-    }
+    private ThumbnailScheduler thumbnailScheduler = new ThumbnailScheduler();
 
-    /**
-     * Implement a stack Channel - we want LIFO so the most recent image is thumbnailed first
-     */
-    private static class LinkedStack extends LinkedQueue {
-        protected void insert(Object object) {
-            synchronized (putLock_) {
-                LinkedNode node = new LinkedNode(object);
-                synchronized (head_) {
-                    node.next = head_.next;
-                    head_.next = node;
-                }
-                if (waitingForTake_ > 0)
-                    putLock_.notify();
-            }
-        }
-    }
+    // Created on first use, threads exit when idle
+    private PooledExecutor validatePool;
+
+    private CodecPool codecPool = new CodecPool();
+
+    private static ImageCoder instance = new ImageCoder();
 
     public static ImageCoder getInstance() {
         return instance;
     }
 
     private ImageCoder() {
-        threadPool = new QueuedExecutor(new LinkedStack());
-        threadPool.setThreadFactory(new DaemonThreadFactory());
         ImageIO.setUseCache(false);
     }
 
+    /**
+     * Schedules background thumbnail decodes, exposes queue and latency statistics
+     */
+    public ThumbnailScheduler getThumbnailScheduler() {
+        return thumbnailScheduler;
+    }
+
+    /**
+     * Pool of readers and writers, exposes hit/miss statistics
+     */
+    public CodecPool getCodecPool() {
+        return codecPool;
+    }
+
     /**
      * Decode the image file.
      * @param imageFile Image to decode
@@ -134,15 +134,35 @@ public class ImageCoder implements ThumbnailDecoder, ImageTranscoder {
      * @param scaleWidth Size of bounding box to scale image to.
      * @param scaleHeight Size of bounding box to scale image to.
      *   If width and height are >0 then scaleFactor is ignored and size is used to compute scaling.
-     * @param scaleType SCALE_SUBSAMPLE, SCALE_NEAREST_NEIGHBOR, SCALE_BILINEAR. Subsampling may result in a slightly smaller image.
+     * @param scaleType SCALE_SUBSAMPLE, SCALE_NEAREST_NEIGHBOR, SCALE_BILINEAR, SCALE_SUBSAMPLE_BILINEAR.
+     *   Subsampling may result in a slightly smaller image.
      * @param listener May be null.
      * @return decoded image, never null
      * @throws IOException
      */
     public DecodedImage decodeImage(File imageFile, Rectangle cropRect,
             double scaleFactor, int scaleWidth, int scaleHeight, int scaleType, IIOReadListener listener) throws IOException {
+        return decodeImage(imageFile, imageFile, cropRect, scaleFactor, scaleWidth, scaleHeight, scaleType, listener);
+    }
+
+    /**
+     * Decode an encoded image held in memory, without cropping or scaling.
+     * @param imageData Encoded image bits
+     * @param sourceFile File the image bits were derived from, used to identify the DecodedImage
+     * @param listener May be null.
+     * @return decoded image, never null
+     * @throws IOException
+     */
+    public DecodedImage decodeImage(byte[] imageData, File sourceFile, IIOReadListener listener) throws IOException {
+        // Use a memory cached stream explicitly, ImageIO may otherwise cache the stream in a temp file
+        ImageInputStream iis = new MemoryCacheImageInputStream(new ByteArrayInputStream(imageData));
+        return decodeImage(iis, sourceFile, null, 1.0, 0, 0, SCALE_BILINEAR, listener);
+    }
+
+    private DecodedImage decodeImage(Object input, File imageFile, Rectangle cropRect,
+            double scaleFactor, int scaleWidth, int scaleHeight, int scaleType, IIOReadListener listener) throws IOException {
 
-        ImageReader reader = getImageReader(imageFile, CLASSPREFIX_BUILTIN, true, true);
+        ImageReader reader = getImageReader(input, CLASSPREFIX_BUILTIN, true, true);
         if (reader == null)
             throw new IOException(SystemMessages.getMessage(SystemMessages.ERR_IMAGE_DECODE, imageFile.getName()));
 
@@ -164,12 +184,24 @@ public class ImageCoder implements ThumbnailDecoder, ImageTranscoder {
 
             formatName = reader.getFormatName().toLowerCase();
 
+            // Subsample as much as possible while staying at or above the target size,
+            // then finish with bilinear scaling below
+            int subsample = 1;
+            if (scaleType == SCALE_SUBSAMPLE_BILINEAR && needScaling) {
+                if (scaleWidth > 0 && scaleHeight > 0)
+                    scaleFactor = Math.min((float)scaleWidth / imageWidth, (float)scaleHeight / imageHeight);
+                while (subsample * 2 * scaleFactor <= 1.0)
+                    subsample *= 2;
+            }
+
             // Read in the cropped/subsampled image
             ImageReadParam readParam = null;
-            if ((scaleType == SCALE_SUBSAMPLE && needScaling) || cropRect != null) {
+            if ((scaleType == SCALE_SUBSAMPLE && needScaling) || subsample > 1 || cropRect != null) {
                 readParam = reader.getDefaultReadParam();
                 if (cropRect != null)
                     readParam.setSourceRegion(cropRect);
+                if (subsample > 1)
+                    readParam.setSourceSubsampling(subsample, subsample, 0, 0);
                 if (scaleType == SCALE_SUBSAMPLE) {
                     if (scaleFactor < 1.0 && scaleFactor > 0) {
                         readParam.setSourceSubsampling((int)Math.ceil(imageWidth / (imageWidth * scaleFactor)),
@@ -190,7 +222,7 @@ public class ImageCoder implements ThumbnailDecoder, ImageTranscoder {
             throw (IOException)new IOException(SystemMessages.getMessage(SystemMessages.ERR_IMAGE_DECODE, imageFile.getName())).initCause(e);
         } finally {
             // XXX Workaround JDK ImageReader native leak
-            dispose(reader);
+            release(reader);
             reader = null;
         }
 
@@ -200,44 +232,116 @@ public class ImageCoder implements ThumbnailDecoder, ImageTranscoder {
             // Override scaleFactor if width and height are specified
             if (scaleWidth > 0 && scaleHeight > 0)
                 scaleFactor = Math.min((float)scaleWidth / imageWidth, (float)scaleHeight / imageHeight);
-
-            // If the image is not "standard", draw it into an image that is.
-            // Otherwise the scale below takes forever doing colorspace conversion.
-            int type = image.getType();
-            if (type != BufferedImage.TYPE_INT_RGB || type != BufferedImage.TYPE_INT_ARGB) {
-                BufferedImage rgbImage = new BufferedImage(image.getWidth(), image.getHeight(),
-                        image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
-                Graphics g = rgbImage.getGraphics();
-                g.drawImage(image, 0, 0, null);
-                g.dispose();
-                image = rgbImage;
+            if (scaleType == SCALE_SUBSAMPLE_BILINEAR) {
+                // Scale the rest of the way from the subsampled size
+                int sourceWidth = cropRect != null ? cropRect.width : imageWidth;
+                int sourceHeight = cropRect != null ? cropRect.height : imageHeight;
+                scaleFactor = Math.min(sourceWidth * scaleFactor / image.getWidth(),
+                        sourceHeight * scaleFactor / image.getHeight());
+                scaleType = SCALE_BILINEAR;
+                if (scaleFactor < 1.0)
+                    image = scaleImage(image, scaleFactor, scaleType, imageFile);
             }
-
-            // TYPE_BILINEAR scaling will introduce an alpha channel that corrupts encoding to JPEG if not removed
-            // http://developer.java.sun.com/developer/bugParade/bugs/4503132.html
-            AffineTransform atxScale = AffineTransform.getScaleInstance(scaleFactor, scaleFactor);
-            // Since scaleType is not SCALE_SUBSAMPLE, it is one of the AffineTransformOp types
-            AffineTransformOp op = null;
-            try {
-                op = new AffineTransformOp(atxScale, scaleType);
-            } catch (ImagingOpException e) {
-                PhotoPulse.logException(e);
-                throw (IOException)new IOException(SystemMessages.getMessage(SystemMessages.ERR_IMAGE_DECODE, imageFile.getName())).initCause(e);
-            }
-            image = transformImage(op, image);
-            if (image == null)
-                throw new IOException(SystemMessages.getMessage(SystemMessages.ERR_IMAGE_DECODE, imageFile.getName()));
+            else
+                image = scaleImage(image, scaleFactor, scaleType, imageFile);
         }
 
         return new DecodedImage(imageFile, formatName, image);
     }
 
+    /**
+     * Scale the image using one of the AffineTransformOp types
+     */
+    private BufferedImage scaleImage(BufferedImage image, double scaleFactor, int scaleType, File imageFile) throws IOException {
+        // If the image is not "standard", draw it into an image that is.
+        // Otherwise the scale below takes forever doing colorspace conversion.
+        int type = image.getType();
+        if (type != BufferedImage.TYPE_INT_RGB || type != BufferedImage.TYPE_INT_ARGB) {
+            BufferedImage rgbImage = new BufferedImage(image.getWidth(), image.getHeight(),
+                    image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+            Graphics g = rgbImage.getGraphics();
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+            image = rgbImage;
+        }
+
+        // TYPE_BILINEAR scaling will introduce an alpha channel that corrupts encoding to JPEG if not removed
+        // http://developer.java.sun.com/developer/bugParade/bugs/4503132.html
+        AffineTransform atxScale = AffineTransform.getScaleInstance(scaleFactor, scaleFactor);
+        // Since scaleType is not SCALE_SUBSAMPLE, it is one of the AffineTransformOp types
+        AffineTransformOp op = null;
+        try {
+            op = new AffineTransformOp(atxScale, scaleType);
+        } catch (ImagingOpException e) {
+            PhotoPulse.logException(e);
+            throw (IOException)new IOException(SystemMessages.getMessage(SystemMessages.ERR_IMAGE_DECODE, imageFile.getName())).initCause(e);
+        }
+        image = transformImage(op, image);
+        if (image == null)
+            throw new IOException(SystemMessages.getMessage(SystemMessages.ERR_IMAGE_DECODE, imageFile.getName()));
+        return image;
+    }
+
     public DecodedImage decodeThumbnail(Photo photo, int scaleWidth, int scaleHeight, IIOReadListener listener, boolean fastDecode) throws IOException {
+        // Nothing is cached in memory, and even the embedded thumbnail requires reading the file.
+        // So don't decode on the calling thread (e.g. the event dispatch thread).
         if (fastDecode)
-            throw new IOException(SystemMessages.getMessage(SystemMessages.ERR_IMAGE_DECODE, photo.getFile().getName()));
+            return null;
+        DecodedImage image = decodeEmbeddedThumbnail(photo.getFile(), 0, scaleWidth, scaleHeight);
+        if (image != null)
+            return image;
         return decodeImage(photo.getFile(), null, 0, scaleWidth, scaleHeight, SCALE_SUBSAMPLE, listener);
     }
 
+    /**
+     * Decode the EXIF thumbnail embedded in a JPEG file, if it is at least as large as
+     * the image would be when scaled down and has the same aspect ratio.
+     * This avoids decoding the full image.
+     * @param imageFile Image to decode the thumbnail of
+     * @param scaleFactor Scale factor (greater than 0.0, less than or equal to 1.0)
+     * @param scaleWidth Size of bounding box to scale image to.
+     * @param scaleHeight Size of bounding box to scale image to.
+     *   If width and height are >0 then scaleFactor is ignored and size is used to compute scaling.
+     * @return thumbnail scaled to the size the image would be scaled to, or null if there is no suitable thumbnail
+     */
+    public DecodedImage decodeEmbeddedThumbnail(File imageFile, double scaleFactor, int scaleWidth, int scaleHeight) {
+        try {
+            ExifReader exif = ExifReader.read(imageFile);
+            if (exif == null || exif.getThumbnailData() == null || exif.getImageWidth() <= 0 || exif.getImageHeight() <= 0)
+                return null;
+            int imageWidth = exif.getImageWidth();
+            int imageHeight = exif.getImageHeight();
+
+            if (scaleWidth > 0 && scaleHeight > 0)
+                scaleFactor = Math.min((double)scaleWidth / imageWidth, (double)scaleHeight / imageHeight);
+            // Never useful unless the image is being scaled down
+            if (scaleFactor <= 0 || scaleFactor >= 1.0)
+                return null;
+            int targetWidth = Math.max(1, (int)Math.round(imageWidth * scaleFactor));
+            int targetHeight = Math.max(1, (int)Math.round(imageHeight * scaleFactor));
+
+            DecodedImage thumbnail = decodeImage(exif.getThumbnailData(), imageFile, null);
+            BufferedImage image = thumbnail.getImage();
+            if (image.getWidth() < targetWidth || image.getHeight() < targetHeight)
+                return null;
+
+            // Thumbnails are often letterboxed to 4:3, those are not usable for other aspect ratios
+            double imageAspect = (double)imageWidth / imageHeight;
+            double thumbnailAspect = (double)image.getWidth() / image.getHeight();
+            if (Math.abs(thumbnailAspect - imageAspect) > imageAspect * THUMBNAIL_ASPECT_TOLERANCE)
+                return null;
+
+            if (image.getWidth() > targetWidth || image.getHeight() > targetHeight) {
+                double thumbnailScale = Math.min((double)targetWidth / image.getWidth(), (double)targetHeight / image.getHeight());
+                image = scaleImage(image, thumbnailScale, SCALE_BILINEAR, imageFile);
+            }
+            return new DecodedImage(imageFile, thumbnail.getSourceFormat(), image);
+        } catch (IOException e) {
+            // Fall back to decoding the image
+            return null;
+        }
+    }
+
     /**
      * Transform image.
      * @param op Operation
@@ -333,7 +437,7 @@ public class ImageCoder implements ThumbnailDecoder, ImageTranscoder {
             writer.write(null, new IIOImage(sourceImage, null, null), writeParam);
         } finally {
             // XXX Workaround JDK ImageWriter leak
-            dispose(writer);
+            release(writer);
         }
     }
 
@@ -352,8 +456,9 @@ public class ImageCoder implements ThumbnailDecoder, ImageTranscoder {
     }
 
     /**
-     * Spawns a thread to load a subsampled thumbnail of the specified image file.
+     * Schedules a subsampled thumbnail of the specified image file to be loaded in the background.
      * An Icon is returned which will render the image once loaded.
+     * Call DecodedImageIcon.cancel if the icon is discarded before it loads.
      * @param observer A Component that will be repainted as the image is loaded
      * @param decoder Used to decode the thumbnail. If null, the ImageCoder singleton will be used.
      */
@@ -371,11 +476,8 @@ public class ImageCoder implements ThumbnailDecoder, ImageTranscoder {
             return new DecodedImageIcon(photo, width, height, decodedImage);
 
         // Otherwise decode on background thread
-        DecodedImageIcon icon = new DecodedImageIcon(photo, width, height, decoder, observer);
-        try {
-            threadPool.execute(icon);
-        } catch (InterruptedException e) {
-        }
+        DecodedImageIcon icon = new DecodedImageIcon(photo, width, height, decoder, observer, thumbnailScheduler);
+        thumbnailScheduler.submit(icon);
         return icon;
     }
 
@@ -388,24 +490,138 @@ public class ImageCoder implements ThumbnailDecoder, ImageTranscoder {
 
     /**
      * @param photoFiles Image files to valdate
-     * @return List of Photo objects
+     * @return List of Photo objects, in the same order as photoFiles
      */
     public List<Photo> validatePhotoFiles(File[] photoFiles) {
         // Validate the photo files
+        Photo[] photos = validatePhotos(photoFiles);
         ArrayList<Photo> photoList = new ArrayList<Photo>(photoFiles.length);
-        for (int i = 0; i < photoFiles.length; i++) {
-            Photo photo = validatePhotoFile(photoFiles[i]);
-            if (photo != null)
-                photoList.add(photo);
+        for (int i = 0; i < photos.length; i++) {
+            if (photos[i] != null)
+                photoList.add(photos[i]);
         }
 
         return photoList;
     }
 
     /**
-     * Return a Photo object for the file, or null if not a valid image
+     * Validate photo files in parallel.
+     * Files that are unchanged since they were last validated are looked up in the ThumbnailCache photo index.
+     * @param photoFiles Image files to valdate
+     * @return Array parallel to photoFiles, elements are null for files that are not valid images
+     */
+    public Photo[] validatePhotos(final File[] photoFiles) {
+        final Photo[] photos = new Photo[photoFiles.length];
+        final PhotoIndex index = ThumbnailCache.getPhotoIndex();
+
+        // Look up unchanged files first, only the rest need to be opened
+        final int[] missIndexes = new int[photoFiles.length];
+        int missCount = 0;
+        for (int i = 0; i < photoFiles.length; i++) {
+            photos[i] = index.getPhoto(photoFiles[i]);
+            if (photos[i] == null)
+                missIndexes[missCount++] = i;
+        }
+        if (missCount == 0)
+            return photos;
+
+        // Each thread claims the next file to validate.
+        // Results are stored by index so order is preserved.
+        final int totalMissCount = missCount;
+        final SynchronizedInt nextMiss = new SynchronizedInt(0);
+        final Runnable validator = new Runnable() {
+            public void run() {
+                int miss;
+                while ((miss = nextMiss.increment() - 1) < totalMissCount) {
+                    int i = missIndexes[miss];
+                    photos[i] = validatePhotoFile(photoFiles[i], index);
+                }
+            }
+        };
+
+        // This thread validates too
+        int threadCount = Math.min(totalMissCount,
+                Runtime.getRuntime().availableProcessors() * VALIDATE_THREADS_PER_PROCESSOR);
+        final CountDown done = new CountDown(threadCount - 1);
+        for (int t = 1; t < threadCount; t++) {
+            try {
+                getValidatePool().execute(new Runnable() {
+                    public void run() {
+                        try {
+                            validator.run();
+                        } finally {
+                            done.release();
+                        }
+                    }
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                done.release();
+            }
+        }
+        validator.run();
+
+        // Wait for the other threads to finish their files, the results are needed
+        boolean isInterrupted = false;
+        while (true) {
+            try {
+                done.acquire();
+                break;
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        if (isInterrupted)
+            Thread.currentThread().interrupt();
+
+        try {
+            index.flush();
+        } catch (IOException e) {
+            PhotoPulse.logException(e);
+        }
+        return photos;
+    }
+
+    private synchronized PooledExecutor getValidatePool() {
+        if (validatePool == null) {
+            int threadCount = Runtime.getRuntime().availableProcessors() * VALIDATE_THREADS_PER_PROCESSOR;
+            validatePool = new PooledExecutor(new LinkedQueue(), threadCount);
+            validatePool.setMinimumPoolSize(threadCount);
+            validatePool.setThreadFactory(new ThreadFactory() {
+                public Thread newThread(Runnable command) {
+                    Thread thread = new Thread(command, "ImageCoderValidate");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return validatePool;
+    }
+
+    /**
+     * Return a Photo object for the file, or null if not a valid image.
+     * Files that are unchanged since they were last validated are looked up in the ThumbnailCache photo index.
      */
     public Photo validatePhotoFile(File photoFile) {
+        PhotoIndex index = ThumbnailCache.getPhotoIndex();
+        Photo photo = index.getPhoto(photoFile);
+        if (photo != null)
+            return photo;
+        return validatePhotoFile(photoFile, index);
+    }
+
+    // Open the file to validate it, remember valid photos in index
+    private Photo validatePhotoFile(File photoFile, PhotoIndex index) {
+        // Stamp before reading, so a file modified while it is read is validated again next time
+        long lastModified = photoFile.lastModified();
+        long length = photoFile.length();
+        Photo photo = readPhotoFile(photoFile);
+        if (photo != null)
+            index.putPhoto(photo, lastModified, length);
+        return photo;
+    }
+
+    private Photo readPhotoFile(File photoFile) {
         ImageReader reader = null;
         try {
             // Do not ignore metadata when pinging for size
@@ -419,14 +635,15 @@ public class ImageCoder implements ThumbnailDecoder, ImageTranscoder {
         } catch (IndexOutOfBoundsException e) {
         } catch (IOException e) {
         } finally {
-            dispose(reader);
+            release(reader);
         }
         return null;
     }
 
     public Photo validateFlashPhotoFile(File photoFile) {
+        InputStream stream = null;
         try {
-            InputStream stream = new FileInputStream(photoFile);
+            stream = new FileInputStream(photoFile);
 
             byte[] headerBuf = new byte[3];
             int size = Util.readFully(stream, headerBuf);
@@ -463,6 +680,13 @@ public class ImageCoder implements ThumbnailDecoder, ImageTranscoder {
                     true);
         } catch (IOException e) {
             return null;
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                }
+            }
         }
     }
 
@@ -500,15 +724,15 @@ public class ImageCoder implements ThumbnailDecoder, ImageTranscoder {
     }
 
     /**
-     * Dispose of the reader (required to release native resources).
-     * Close the ImageInputStream associated with the reader
+     * Close the ImageInputStream associated with the reader (required to release native resources),
+     * and return the reader to the pool.
      * http://developer.java.sun.com/developer/bugParade/bugs/4697126.html
      */
-    private void dispose(ImageReader reader) {
+    private void release(ImageReader reader) {
         if (reader == null)
             return;
 
-        // Close the stream before calling dispose to free native resources
+        // Close the stream before resetting to free native resources
         Object input = reader.getInput();
         if (input != null && input instanceof ImageInputStream) {
             try {
@@ -518,19 +742,19 @@ public class ImageCoder implements ThumbnailDecoder, ImageTranscoder {
             }
         }
 
-        reader.dispose();
+        codecPool.release(reader);
     }
 
     /**
-     * Dispose of the writer (required to release native resources).
-     * Close the ImageOutputStream associated with the writer
+     * Close the ImageOutputStream associated with the writer (required to release native resources),
+     * and return the writer to the pool.
      * http://developer.java.sun.com/developer/bugParade/bugs/4697126.html
      */
-    private void dispose(ImageWriter writer) {
+    private void release(ImageWriter writer) {
         if (writer == null)
             return;
 
-        // Close the stream before calling dispose to free native resources
+        // Close the stream before resetting to free native resources
         Object output = writer.getOutput();
         if (output != null && output instanceof ImageOutputStream) {
             try {
@@ -540,60 +764,35 @@ public class ImageCoder implements ThumbnailDecoder, ImageTranscoder {
             }
         }
 
-        writer.dispose();
+        codecPool.release(writer);
     }
 
     /**
-     * Choose an ImageReader, giving preference to JAI readers.
-     * Caller must close the ImageInputStream associated with the reader
+     * Choose an ImageReader from the pool, giving preference to classPrefix readers.
+     * Caller must release the reader, which closes the ImageInputStream associated with it
      * @param classPrefix Implementation class prefix - null to use first available
      */
-    private ImageReader getImageReader(File imageFile, String classPrefix, boolean seekForwardOnly, boolean ignoreMetadata) throws IOException {
-        ImageInputStream iis = ImageIO.createImageInputStream(imageFile);
+    private ImageReader getImageReader(Object input, String classPrefix, boolean seekForwardOnly, boolean ignoreMetadata) throws IOException {
+        ImageInputStream iis;
+        if (input instanceof ImageInputStream)
+            iis = (ImageInputStream)input;
+        else
+            iis = ImageIO.createImageInputStream(input);
         if (iis == null)
             return null;
-        ImageReader reader = (ImageReader)getReaderWriter(ImageIO.getImageReaders(iis), classPrefix);
-        if (reader == null)
+        ImageReader reader = codecPool.getReader(iis, classPrefix);
+        if (reader == null) {
+            iis.close();
             return null;
+        }
         reader.setInput(iis, seekForwardOnly, ignoreMetadata);
         return reader;
     }
 
     /**
-     * Choose an ImageWriter, giving preference to JAI readers.
+     * Choose an ImageWriter from the pool, giving preference to classPrefix writers.
      */
-    private ImageWriter getImageWriter(String formatName, String classPrefix) {
-        return (ImageWriter)getReaderWriter(ImageIO.getImageWritersByFormatName(formatName), classPrefix);
-    }
-
-    private Object getReaderWriter(Iterator iter, String classPrefix) {
-        Object firstRW = null;
-        while (iter.hasNext()) {
-            Object rw = iter.next();
-            // Return the first one found if we don't care
-            if (classPrefix == null)
-                return rw;
-            // Return it if we found what we wanted
-            if (rw.getClass().getName().startsWith(classPrefix)) {
-                // Dispose of the first one since we won't use it
-                if (firstRW != null)
-                    disposeReaderWriter(firstRW);
-                return rw;
-            }
-            // Save the first one in case we don't find one we want
-            if (firstRW == null)
-                firstRW = rw;
-            // If we aren't using this one, we must dispose of it
-            else
-                disposeReaderWriter(rw);
-        }
-        return firstRW;
-    }
-
-    private void disposeReaderWriter(Object rw) {
-        if (rw instanceof ImageReader)
-            ((ImageReader)rw).dispose();
-        else
-            ((ImageWriter)rw).dispose();
+    private ImageWriter getImageWriter(String formatName, String classPrefix) throws IOException {
+        return codecPool.getWriter(formatName, classPrefix);
     }
 }
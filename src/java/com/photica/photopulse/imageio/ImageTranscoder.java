@@ -41,6 +41,10 @@ public interface ImageTranscoder {
     public static final int SCALE_NEAREST_NEIGHBOR = AffineTransformOp.TYPE_NEAREST_NEIGHBOR;
     public static final int SCALE_BILINEAR = AffineTransformOp.TYPE_BILINEAR;
     public static final int SCALE_BICUBIC = AffineTransformOp.TYPE_BICUBIC;
+    // Subsample by the largest power of two that keeps the image at or above the target size, then scale bilinear.
+    // Avoids building and converting a full size raster for large reductions, but subsampling drops pixels
+    // instead of averaging them so fine detail can alias. Fine for thumbnails, use SCALE_BILINEAR for show photos.
+    public static final int SCALE_SUBSAMPLE_BILINEAR = SCALE_SUBSAMPLE + 1;
 
     /**
      * Transcode an image into the target format, applying cropping and scaling.
@@ -49,7 +53,7 @@ public interface ImageTranscoder {
      *   If null, then an appropriate format will be chosen based on the input format.
      * @param cropRect Region to crop from source image
      * @param scaleFactor Scaling factor greater than 0.0, less than or equal to 1.0
-     * @param scaleType SCALE_SUBSAMPLE, SCALE_NEAREST_NEIGHBOR, SCALE_BILINEAR
+     * @param scaleType SCALE_SUBSAMPLE, SCALE_NEAREST_NEIGHBOR, SCALE_BILINEAR, SCALE_SUBSAMPLE_BILINEAR
      * @param op Operation to perform on image after decoding but before encoding
      * @param output Destination File, OutputStream etc.
      * @return Decoded source image, or null if transcode fails.
@@ -0,0 +1,386 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.imageio;
+
+import com.photica.photopulse.PhotoPulse;
+import com.photica.photopulse.model.Photo;
+
+import javax.imageio.ImageReader;
+import java.awt.Component;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes DecodedImageIcon thumbnails on a pool of worker threads.
+ * <p>
+ * Requests are prioritized by recency - an icon is touched each time it is painted while loading,
+ * so icons visible on screen are decoded before icons that were scrolled past.
+ * A pending request that has not been painted for STALE_MILLIS is dropped and its observers repainted -
+ * if an icon is still visible it is painted, which resubmits it.
+ * Icons for the same photo, size and decoder share a single in-flight request.
+ * <p>
+ * Worker count is set with the "photopulse.thumbnail.threads" system property
+ * and defaults to the number of processors. Set "photopulse.thumbnail.stats" to true
+ * to print statistics to System.err each time the queue drains.
+ */
+public class ThumbnailScheduler {
+    private static final String PROPERTY_THREADS = "photopulse.thumbnail.threads";
+    private static final String PROPERTY_STATS = "photopulse.thumbnail.stats";
+
+    // Pending requests not painted for this long are dropped
+    private static final long STALE_MILLIS = 1000;
+
+    private final int threadCount;
+    private final boolean isStatisticsReported;
+    private boolean isStarted = false;
+
+    // Pending requests, unordered. The highest priority request is found when taken.
+    private final List<Request> pendingList = new ArrayList<Request>();
+    // Pending and running requests
+    private final Map<RequestKey,Request> requestMap = new HashMap<RequestKey, Request>();
+
+    // Incremented on each touch, requests with higher sequence run first
+    private long touchSequence = 0;
+
+    // Statistics
+    private long submitCount = 0;
+    private long dedupeCount = 0;
+    private long staleCount = 0;
+    private long cancelCount = 0;
+    private long completeCount = 0;
+    private long failCount = 0;
+    private int maxQueueDepth = 0;
+    private long totalWaitMillis = 0;
+    private long maxWaitMillis = 0;
+    private long totalDecodeMillis = 0;
+    private long maxDecodeMillis = 0;
+
+    ThumbnailScheduler() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        try {
+            String value = System.getProperty(PROPERTY_THREADS);
+            if (value != null)
+                threads = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+        } catch (SecurityException e) {
+        }
+        threadCount = Math.max(1, threads);
+        isStatisticsReported = Boolean.getBoolean(PROPERTY_STATS);
+    }
+
+    /**
+     * Identifies requests that produce the same thumbnail
+     */
+    private static class RequestKey {
+        private final File file;
+        private final int width;
+        private final int height;
+        private final ThumbnailDecoder decoder;
+
+        RequestKey(Photo photo, int width, int height, ThumbnailDecoder decoder) {
+            this.file = photo.getFile();
+            this.width = width;
+            this.height = height;
+            this.decoder = decoder;
+        }
+
+        public int hashCode() {
+            return file.hashCode() ^ (width * 31 + height) ^ System.identityHashCode(decoder);
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof RequestKey))
+                return false;
+            RequestKey key = (RequestKey)o;
+            return file.equals(key.file) && width == key.width && height == key.height && decoder == key.decoder;
+        }
+    }
+
+    /**
+     * A thumbnail decode shared by one or more icons.
+     * All fields are guarded by the scheduler.
+     */
+    class Request implements IIOReadListener {
+        private final RequestKey key;
+        private final Photo photo;
+        private final List<DecodedImageIcon> iconList = new ArrayList<DecodedImageIcon>(1);
+        private long sequence;
+        private long touchTime;
+        private final long submitTime;
+        private boolean isRunning = false;
+
+        Request(RequestKey key, Photo photo, long submitTime) {
+            this.key = key;
+            this.photo = photo;
+            this.submitTime = submitTime;
+        }
+
+        // True if nothing has painted this request for a while
+        private boolean isStale(long now) {
+            if (now - touchTime < STALE_MILLIS)
+                return false;
+            // Only icons that repaint an observer can be resubmitted
+            for (DecodedImageIcon icon : iconList) {
+                if (icon.getObserver() == null)
+                    return false;
+            }
+            return true;
+        }
+
+        private List<DecodedImageIcon> getIcons() {
+            synchronized (ThumbnailScheduler.this) {
+                return new ArrayList<DecodedImageIcon>(iconList);
+            }
+        }
+
+        public void imageStarted(ImageReader reader, int index) {
+            for (DecodedImageIcon icon : getIcons())
+                icon.repaintObserver();
+        }
+
+        // XXX The JAI ImageIO plugin does not report progress very frequently
+        public void imageProgress(ImageReader reader, float percent) {
+            // Convert to 0->1.0 percentage
+            for (DecodedImageIcon icon : getIcons())
+                icon.setPercentLoaded(percent / 100.0f);
+        }
+
+        public void sequenceStarted(ImageReader reader, int minIndex) {}
+        public void sequenceComplete(ImageReader reader) {}
+        public void imageComplete(ImageReader reader) {}
+        public void thumbnailStarted(ImageReader reader, int imageIndex, int thumbnailIndex) {}
+        public void thumbnailProgress(ImageReader reader, float percent) {}
+        public void thumbnailComplete(ImageReader reader) {}
+        public void readAborted(ImageReader reader) {}
+        public void passStarted(ImageReader reader, BufferedImage image, int pass, int minPass, int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {}
+        public void imageUpdate(ImageReader reader, BufferedImage image, int minX, int minY, int width, int height, int periodX, int periodY, int[] bands) {}
+        public void passComplete(ImageReader reader, BufferedImage image) {}
+        public void thumbnailPassStarted(ImageReader reader, BufferedImage thumbnail, int pass, int minPass, int maxPass, int minX, int minY, int periodX, int periodY, int[] bands) {}
+        public void thumbnailUpdate(ImageReader reader, BufferedImage theThumbnail, int minX, int minY, int width, int height, int periodX, int periodY, int[] bands) {}
+        public void thumbnailPassComplete(ImageReader reader, BufferedImage thumbnail) {}
+        public void warningOccurred(ImageReader source, String warning) {}
+    }
+
+    private class Worker implements Runnable {
+        public void run() {
+            try {
+                while (true)
+                    decode(take());
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    /**
+     * Schedule icon to be decoded, sharing an in-flight request for the same thumbnail if there is one.
+     */
+    synchronized void submit(DecodedImageIcon icon) {
+        if (icon.getRequest() != null || icon.isLoaded())
+            return;
+
+        long now = System.currentTimeMillis();
+        RequestKey key = new RequestKey(icon.getPhoto(), icon.getIconWidth(), icon.getIconHeight(), icon.getDecoder());
+        Request request = requestMap.get(key);
+        if (request != null)
+            dedupeCount++;
+        else {
+            request = new Request(key, icon.getPhoto(), now);
+            requestMap.put(key, request);
+            pendingList.add(request);
+            maxQueueDepth = Math.max(maxQueueDepth, pendingList.size());
+            submitCount++;
+            start();
+            notify();
+        }
+        request.iconList.add(icon);
+        icon.setRequest(request);
+        touch(request, now);
+    }
+
+    /**
+     * Icon was painted while loading, raise its priority.
+     * If it is not scheduled (it was dropped or canceled) it is resubmitted.
+     */
+    synchronized void touch(DecodedImageIcon icon) {
+        Request request = icon.getRequest();
+        if (request == null)
+            submit(icon);
+        else
+            touch(request, System.currentTimeMillis());
+    }
+
+    private void touch(Request request, long now) {
+        request.sequence = ++touchSequence;
+        request.touchTime = now;
+    }
+
+    /**
+     * Icon is no longer needed. Its request is dropped if no other icon shares it.
+     * The icon will be resubmitted if it is painted again.
+     */
+    synchronized void cancel(DecodedImageIcon icon) {
+        Request request = icon.getRequest();
+        if (request == null)
+            return;
+        icon.setRequest(null);
+        request.iconList.remove(icon);
+        if (request.iconList.isEmpty() && !request.isRunning) {
+            pendingList.remove(request);
+            requestMap.remove(request.key);
+            cancelCount++;
+        }
+    }
+
+    private void start() {
+        if (isStarted)
+            return;
+        isStarted = true;
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(new Worker(), "ImageCoder");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // Return the most recently touched pending request, dropping stale requests
+    private Request take() throws InterruptedException {
+        List<DecodedImageIcon> staleIcons = new ArrayList<DecodedImageIcon>();
+        Request request = null;
+        synchronized (this) {
+            while (request == null) {
+                while (pendingList.isEmpty())
+                    wait();
+
+                int bestIndex = 0;
+                for (int i = 1; i < pendingList.size(); i++) {
+                    if (pendingList.get(i).sequence > pendingList.get(bestIndex).sequence)
+                        bestIndex = i;
+                }
+                request = pendingList.remove(bestIndex);
+
+                long now = System.currentTimeMillis();
+                if (request.isStale(now)) {
+                    // Unschedule, icons still visible will be resubmitted when repainted
+                    for (DecodedImageIcon icon : request.iconList) {
+                        icon.setRequest(null);
+                        staleIcons.add(icon);
+                    }
+                    requestMap.remove(request.key);
+                    staleCount++;
+                    request = null;
+                }
+                else {
+                    request.isRunning = true;
+                    long waitMillis = now - request.submitTime;
+                    totalWaitMillis += waitMillis;
+                    maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+                }
+            }
+        }
+
+        for (DecodedImageIcon icon : staleIcons)
+            icon.repaintObserver();
+        return request;
+    }
+
+    private void decode(Request request) {
+        long startTime = System.currentTimeMillis();
+        DecodedImage dimage = null;
+        boolean isFailed = false;
+        try {
+            dimage = request.key.decoder.decodeThumbnail(request.photo, request.key.width, request.key.height, request, false);
+        } catch (IOException e) {
+            isFailed = true;
+        } catch (Throwable e) {
+            isFailed = true;
+            PhotoPulse.logException(e);
+        }
+
+        long decodeMillis = System.currentTimeMillis() - startTime;
+        List<DecodedImageIcon> icons;
+        boolean isDrained;
+        synchronized (this) {
+            requestMap.remove(request.key);
+            icons = request.iconList;
+            // Mark loaded before unscheduling, so a concurrent paint does not resubmit
+            for (DecodedImageIcon icon : icons) {
+                icon.setLoaded(dimage);
+                icon.setRequest(null);
+            }
+            if (isFailed)
+                failCount++;
+            else
+                completeCount++;
+            totalDecodeMillis += decodeMillis;
+            maxDecodeMillis = Math.max(maxDecodeMillis, decodeMillis);
+            isDrained = requestMap.isEmpty();
+        }
+
+        // Repaint observers to draw the new state
+        for (DecodedImageIcon icon : icons)
+            icon.repaintObserver();
+
+        if (isDrained && isStatisticsReported)
+            System.err.println("ThumbnailScheduler: " + getSummary());
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * @return Number of requests waiting for a worker
+     */
+    public synchronized int getQueueDepth() {
+        return pendingList.size();
+    }
+
+    /**
+     * @return statistics formatted as "name=value name=value"
+     */
+    public synchronized String getSummary() {
+        long decoded = completeCount + failCount;
+        return "threads=" + threadCount
+                + " queued=" + pendingList.size()
+                + " maxQueued=" + maxQueueDepth
+                + " submitted=" + submitCount
+                + " deduped=" + dedupeCount
+                + " stale=" + staleCount
+                + " canceled=" + cancelCount
+                + " completed=" + completeCount
+                + " failed=" + failCount
+                + " avgWaitMillis=" + (decoded > 0 ? totalWaitMillis / decoded : 0)
+                + " maxWaitMillis=" + maxWaitMillis
+                + " avgDecodeMillis=" + (decoded > 0 ? totalDecodeMillis / decoded : 0)
+                + " maxDecodeMillis=" + maxDecodeMillis;
+    }
+}
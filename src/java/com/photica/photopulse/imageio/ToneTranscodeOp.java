@@ -0,0 +1,63 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.imageio;
+
+import com.photica.photopulse.model.effects.ToneEffect;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * TranscodeOp that applies a ToneOp to the decoded image.
+ */
+public class ToneTranscodeOp implements TranscodeOp {
+    private boolean isSepia;
+    private ToneOp op;
+
+    public ToneTranscodeOp(boolean isSepia) {
+        this.isSepia = isSepia;
+        op = new ToneOp(isSepia);
+    }
+
+    /**
+     * Return a ToneTranscodeOp for the tone spec (ToneEffect.Tone string), or null if no toning.
+     */
+    public static TranscodeOp newToneOp(String toneSpec) {
+        if (ToneEffect.Tone.SEPIA.toString().equals(toneSpec))
+            return new ToneTranscodeOp(true);
+        else if (ToneEffect.Tone.GRAY.toString().equals(toneSpec))
+            return new ToneTranscodeOp(false);
+        return null;
+    }
+
+    public BufferedImage filter(BufferedImage srcImage) {
+        return op.filter(srcImage, null);
+    }
+
+    public String getOpName() {
+        return getClass().getName() + (isSepia ? "sepia" : "gray");
+    }
+}
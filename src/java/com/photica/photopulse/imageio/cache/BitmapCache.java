@@ -0,0 +1,198 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.imageio.cache;
+
+import EDU.oswego.cs.dl.util.concurrent.QueuedExecutor;
+import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
+import com.photica.photopulse.PhotoPulse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.prefs.Preferences;
+
+/**
+ * Disk cache of photos transcoded for shows, so re-exporting a show does not decode, crop,
+ * scale and encode photos again. Entries are stored in a PackStore in the thumbnail cache directory.
+ * The key is a hash of a fingerprint of the photo contents (see FingerprintIndex) and a description
+ * of the transcode, each entry is stamped with the size of the photo.
+ *
+ * The store is bounded by the CacheMaxBitmapBytes preference, setting it to 0 disables the cache.
+ * It is swept on a background thread when a write takes it over its limit.
+ */
+public class BitmapCache {
+
+    /**
+     * Default value for number of bytes to store on disk
+     */
+    public static final long defaultMaxDiskCacheBytes = 200000000L; // 200 Meg
+
+    private static final String PREF_CACHE_MAX_BITMAP_BYTES = "CacheMaxBitmapBytes";
+    private static final String PACK_STORE_NAME = "bitmaps";
+    // Space left free below the limit when sweeping, so sweeps are not run for every write once full
+    private static final long SWEEP_HEADROOM_BYTES = PackStore.SEGMENT_MAX_BYTES * 4;
+
+    private static final boolean DEBUG = false;
+
+    private static BitmapCache instance = null;
+    private static boolean isInitialized = false;
+
+    private final PackStore packStore;
+    private final PackCompactor compactor;
+    private final FingerprintIndex fingerprintIndex;
+
+    // Runs sweeps off the writing threads, at most one is queued at a time
+    private final QueuedExecutor sweeper;
+    private boolean isSweepScheduled = false;
+
+    private BitmapCache(PackStore packStore, long maxBytes) {
+        this.packStore = packStore;
+        this.compactor = new PackCompactor(packStore, maxBytes);
+        this.fingerprintIndex = ThumbnailCache.getSharedFingerprintIndex();
+        this.sweeper = new QueuedExecutor();
+        this.sweeper.setThreadFactory(new ThreadFactory() {
+            public Thread newThread(Runnable command) {
+                Thread thread = new Thread(command, "BitmapCacheSweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Open the cache on first use.
+     * @return cache, or null if it is disabled or unavailable (e.g. in use by another process)
+     */
+    public synchronized static BitmapCache getInstance() {
+        if (isInitialized)
+            return instance;
+        isInitialized = true;
+
+        Preferences prefs = Preferences.userNodeForPackage(BitmapCache.class);
+        long maxBytes = prefs.getLong(PREF_CACHE_MAX_BITMAP_BYTES, defaultMaxDiskCacheBytes);
+        if (maxBytes <= 0)
+            return null;
+
+        PackStore store = new PackStore(ThumbnailCache.getSharedCacheRoot(), PACK_STORE_NAME);
+        try {
+            if (!store.open())
+                return null;
+        } catch (IOException ex) {
+            PhotoPulse.logException(ex);
+            return null;
+        }
+        instance = new BitmapCache(store, maxBytes);
+
+        // Flush batched access times and fingerprints on exit
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                try {
+                    instance.packStore.close();
+                    instance.fingerprintIndex.flush();
+                } catch (IOException ex) {
+                    PhotoPulse.logException(ex);
+                }
+            }
+        });
+        return instance;
+    }
+
+    /**
+     * Compute the key for a transcode of a photo. This reads the photo if its fingerprint is not known.
+     * @param transcode Description of the transcode, it must differ whenever the transcoded bits would
+     */
+    public PackKey computeKey(File photoFile, String transcode) throws IOException {
+        return PackKey.digest(fingerprintIndex.getFingerprint(photoFile) + File.separator + transcode);
+    }
+
+    /**
+     * Read the transcoded photo stored for key.
+     * @return data, or null if there is no entry or it could not be read
+     */
+    public byte[] read(PackKey key, File photoFile) {
+        try {
+            byte[] data = packStore.read(key, photoFile.length());
+            if (DEBUG) System.out.println("BITMAP " + (data != null ? "HIT " : "MISS ") + photoFile.getName());
+            return data;
+        } catch (IOException ex) {
+            PhotoPulse.logException(ex);
+            return null;
+        }
+    }
+
+    /**
+     * Store a transcoded photo, logging any errors.
+     * If the store needs sweeping, a sweep is scheduled on the sweeper thread.
+     */
+    public void write(PackKey key, File photoFile, byte[] data) {
+        try {
+            packStore.write(key, photoFile.length(), data);
+        } catch (IOException ex) {
+            PhotoPulse.logException(ex);
+            return;
+        }
+        if (compactor.isSweepNeeded())
+            scheduleSweep();
+    }
+
+    /**
+     * Sweep on the sweeper thread, if a sweep is not already scheduled
+     */
+    private void scheduleSweep() {
+        synchronized (this) {
+            if (isSweepScheduled)
+                return;
+            isSweepScheduled = true;
+        }
+        try {
+            sweeper.execute(new Runnable() {
+                public void run() {
+                    synchronized (BitmapCache.this) {
+                        isSweepScheduled = false;
+                    }
+                    try {
+                        compactor.sweep(SWEEP_HEADROOM_BYTES);
+                        if (DEBUG) System.out.println("BITMAP SWEEP " + compactor);
+                    } catch (IOException ex) {
+                        PhotoPulse.logException(ex);
+                    }
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            synchronized (this) {
+                isSweepScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * Disk store, exposes byte/entry/eviction/sweep statistics
+     */
+    public PackCompactor getCompactor() {
+        return compactor;
+    }
+}
@@ -0,0 +1,256 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.imageio.cache;
+
+import com.photica.photopulse.PhotoPulse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Content fingerprints of image files, so cached thumbnails can be keyed on content instead of path.
+ * A fingerprint is the MD5 of the file size, the first FINGERPRINT_BLOCK_SIZE bytes
+ * and the last FINGERPRINT_BLOCK_SIZE bytes of the file.
+ *
+ * Fingerprints are remembered by path along with the files last modified time and size,
+ * so a file is only read again if it changes. The most recently used MAX_ENTRIES paths
+ * are persisted to the index file when flushed.
+ *
+ * Index file:
+ * magic   ->int
+ * version ->byte
+ * count   ->int
+ * then count records of:
+ * path            ->UTF
+ * lastModified    ->long
+ * length          ->long
+ * fingerprintHigh ->long
+ * fingerprintLow  ->long
+ */
+class FingerprintIndex {
+
+    private static final int INDEX_MAGIC = 0x50504650;
+    private static final byte INDEX_VERSION = 1;
+
+    static final int FINGERPRINT_BLOCK_SIZE = 64 * 1024;
+    static final int MAX_ENTRIES = 20000;
+
+    private static final boolean DEBUG = false;
+
+    private final File indexFile;
+    private boolean isLoaded = false;
+    private boolean isDirty = false;
+    // Serializes flushes, without blocking lookups
+    private final Object flushLock = new Object();
+
+    private final LinkedHashMap<String,Fingerprint> index = new LinkedHashMap<String,Fingerprint>(1024, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String,Fingerprint> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private static class Fingerprint {
+        final long lastModified;
+        final long length;
+        final PackKey key;
+
+        Fingerprint(long lastModified, long length, PackKey key) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.key = key;
+        }
+    }
+
+    FingerprintIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Return the fingerprint of the file if it is known and the file has not changed, otherwise null.
+     * Never reads the file contents.
+     */
+    synchronized PackKey getKnownFingerprint(File file) {
+        loadIndex();
+        Fingerprint fingerprint = index.get(file.getAbsolutePath());
+        if (fingerprint == null)
+            return null;
+        if (fingerprint.lastModified != file.lastModified() || fingerprint.length != file.length())
+            return null;
+        return fingerprint.key;
+    }
+
+    /**
+     * Return the fingerprint of the file, reading the file if it is not known or has changed.
+     */
+    PackKey getFingerprint(File file) throws IOException {
+        PackKey key = getKnownFingerprint(file);
+        if (key != null)
+            return key;
+
+        // Compute outside the lock
+        long lastModified = file.lastModified();
+        long length = file.length();
+        key = computeFingerprint(file);
+
+        synchronized (this) {
+            index.put(file.getAbsolutePath(), new Fingerprint(lastModified, length, key));
+            isDirty = true;
+        }
+        return key;
+    }
+
+    static PackKey computeFingerprint(File file) throws IOException {
+        MessageDigest md = null;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            assert(false);
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            for (int shift = 56; shift >= 0; shift -= 8)
+                md.update((byte)(length >>> shift));
+
+            byte[] buffer = new byte[FINGERPRINT_BLOCK_SIZE];
+            int headLength = (int)Math.min(length, FINGERPRINT_BLOCK_SIZE);
+            raf.readFully(buffer, 0, headLength);
+            md.update(buffer, 0, headLength);
+
+            // Tail block, not overlapping the head
+            long tailOffset = Math.max(headLength, length - FINGERPRINT_BLOCK_SIZE);
+            int tailLength = (int)(length - tailOffset);
+            if (tailLength > 0) {
+                raf.seek(tailOffset);
+                raf.readFully(buffer, 0, tailLength);
+                md.update(buffer, 0, tailLength);
+            }
+        } finally {
+            raf.close();
+        }
+        return PackKey.valueOf(md.digest());
+    }
+
+    private void loadIndex() {
+        if (isLoaded)
+            return;
+        isLoaded = true;
+        if (!indexFile.exists())
+            return;
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (in.readInt() != INDEX_MAGIC || in.readByte() != INDEX_VERSION)
+                    return;
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String path = in.readUTF();
+                    long lastModified = in.readLong();
+                    long length = in.readLong();
+                    PackKey key = new PackKey(in.readLong(), in.readLong());
+                    index.put(path, new Fingerprint(lastModified, length, key));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (EOFException e) {
+            // Truncated, keep whatever was read
+        } catch (IOException e) {
+            PhotoPulse.logException(e);
+        }
+        if (DEBUG) System.out.println("FingerprintIndex loaded " + index.size() + " fingerprints");
+    }
+
+    /**
+     * Write the index if it has changed
+     */
+    void flush() throws IOException {
+        synchronized (flushLock) {
+            flushIndex();
+        }
+    }
+
+    private void flushIndex() throws IOException {
+        Map<String,Fingerprint> snapshot;
+        synchronized (this) {
+            if (!isDirty)
+                return;
+            // Copy in least recently used first order, so reloading preserves the order
+            snapshot = new LinkedHashMap<String,Fingerprint>(index);
+            isDirty = false;
+        }
+
+        // Write outside the lock
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        boolean isWritten = false;
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(INDEX_MAGIC);
+                out.writeByte(INDEX_VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String,Fingerprint> entry : snapshot.entrySet()) {
+                    Fingerprint fingerprint = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(fingerprint.lastModified);
+                    out.writeLong(fingerprint.length);
+                    out.writeLong(fingerprint.key.getHigh());
+                    out.writeLong(fingerprint.key.getLow());
+                }
+            } finally {
+                out.close();
+            }
+
+            // Rename may fail to overwrite
+            indexFile.delete();
+            if (!tempFile.renameTo(indexFile))
+                throw new IOException("Failed to rename " + tempFile);
+            isWritten = true;
+        } finally {
+            if (!isWritten) {
+                tempFile.delete();
+                synchronized (this) {
+                    isDirty = true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.imageio.cache;
+
+import com.photica.photopulse.imageio.DecodedImage;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In memory LRU cache of decoded images, bounded by the total size of the decoded rasters.
+ * The cache is split into independently locked segments (keys are distributed by hash),
+ * each with an equal share of the byte budget and its own LRU order.
+ * So concurrent lookups of different images rarely contend.
+ */
+public class ImageMemoryCache<K> {
+    private static final int SEGMENT_COUNT = 8;
+
+    private final Segment<K>[] segments;
+    private final long maxBytes;
+
+    private static class Segment<K> {
+        private final long maxBytes;
+        private long bytes = 0;
+
+        private long hitCount = 0;
+        private long missCount = 0;
+        private long evictionCount = 0;
+
+        // Access ordered, eldest entry is least recently used
+        private final LinkedHashMap<K,DecodedImage> map = new LinkedHashMap<K,DecodedImage>(16, 0.75f, true);
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized DecodedImage get(K key) {
+            DecodedImage image = map.get(key);
+            if (image == null)
+                missCount++;
+            else
+                hitCount++;
+            return image;
+        }
+
+        synchronized boolean containsKey(K key) {
+            return map.containsKey(key);
+        }
+
+        synchronized void put(K key, DecodedImage image) {
+            long imageBytes = computeImageBytes(image.getImage());
+
+            DecodedImage oldImage = map.remove(key);
+            if (oldImage != null)
+                bytes -= computeImageBytes(oldImage.getImage());
+
+            // Don't cache images that would flush the entire segment
+            if (imageBytes > maxBytes)
+                return;
+
+            map.put(key, image);
+            bytes += imageBytes;
+
+            // Evict least recently used until we fit
+            Iterator<Map.Entry<K,DecodedImage>> iter = map.entrySet().iterator();
+            while (bytes > maxBytes && iter.hasNext()) {
+                Map.Entry<K,DecodedImage> entry = iter.next();
+                bytes -= computeImageBytes(entry.getValue().getImage());
+                iter.remove();
+                evictionCount++;
+            }
+        }
+
+        synchronized void remove(K key) {
+            DecodedImage image = map.remove(key);
+            if (image != null)
+                bytes -= computeImageBytes(image.getImage());
+        }
+
+        synchronized void clear() {
+            map.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * @param maxBytes Maximum total bytes of decoded image rasters to retain
+     */
+    @SuppressWarnings("unchecked")
+    public ImageMemoryCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < segments.length; i++)
+            segments[i] = new Segment<K>(maxBytes / SEGMENT_COUNT);
+    }
+
+    private Segment<K> segmentFor(K key) {
+        // Spread the hash so keys with similar hashcodes land in different segments
+        int hash = key.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return segments[hash & (SEGMENT_COUNT - 1)];
+    }
+
+    /**
+     * Return the cached image and mark it most recently used, or null if not cached.
+     */
+    public DecodedImage get(K key) {
+        return segmentFor(key).get(key);
+    }
+
+    public boolean containsKey(K key) {
+        return segmentFor(key).containsKey(key);
+    }
+
+    /**
+     * Cache the image, evicting least recently used images if necessary to stay within the byte limit.
+     */
+    public void put(K key, DecodedImage image) {
+        segmentFor(key).put(key, image);
+    }
+
+    public void remove(K key) {
+        segmentFor(key).remove(key);
+    }
+
+    public void clear() {
+        for (Segment<K> segment : segments)
+            segment.clear();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Total bytes of decoded image rasters currently cached
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (Segment<K> segment : segments) {
+            synchronized (segment) {
+                bytes += segment.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    public int getEntryCount() {
+        int count = 0;
+        for (Segment<K> segment : segments) {
+            synchronized (segment) {
+                count += segment.map.size();
+            }
+        }
+        return count;
+    }
+
+    public long getHitCount() {
+        long count = 0;
+        for (Segment<K> segment : segments) {
+            synchronized (segment) {
+                count += segment.hitCount;
+            }
+        }
+        return count;
+    }
+
+    public long getMissCount() {
+        long count = 0;
+        for (Segment<K> segment : segments) {
+            synchronized (segment) {
+                count += segment.missCount;
+            }
+        }
+        return count;
+    }
+
+    public long getEvictionCount() {
+        long count = 0;
+        for (Segment<K> segment : segments) {
+            synchronized (segment) {
+                count += segment.evictionCount;
+            }
+        }
+        return count;
+    }
+
+    public String toString() {
+        return "entries:" + getEntryCount()
+                + " bytes:" + getBytes() + "/" + maxBytes
+                + " hits:" + getHitCount()
+                + " misses:" + getMissCount()
+                + " evictions:" + getEvictionCount();
+    }
+
+    /**
+     * Return the number of bytes used by the images raster data
+     */
+    static long computeImageBytes(BufferedImage image) {
+        DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        return (long)dataBuffer.getSize() * dataBuffer.getNumBanks()
+                * (DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8);
+    }
+}
@@ -0,0 +1,167 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.imageio.cache;
+
+import java.io.IOException;
+
+/**
+ * Keeps a PackStore within its byte limit. Each sweep evicts least recently used entries,
+ * moves live entries out of sparse segments, and writes out batched access times.
+ * The limit applies to live bytes. Space held by removed entries is reclaimed separately,
+ * by compacting whenever it is more than MAX_DEAD_RATIO of the disk bytes.
+ * Sweeps are intended to run on a background thread, they only hold the store lock
+ * briefly so readers of the store are not blocked.
+ */
+public class PackCompactor {
+
+    /**
+     * Maximum bytes moved out of sparse segments per sweep
+     */
+    public static final long MAX_COMPACT_BYTES_PER_SWEEP = PackStore.SEGMENT_MAX_BYTES * 4;
+
+    /**
+     * Maximum fraction of the disk bytes held by removed entries before the store is compacted
+     */
+    public static final double MAX_DEAD_RATIO = 0.25;
+
+    /**
+     * Minimum time between the end of one sweep and isSweepNeeded() requesting another.
+     * A sweep that can't get the store back within its limits is not retried on every write.
+     */
+    public static final long MIN_SWEEP_INTERVAL_MILLIS = 10000;
+
+    private final PackStore store;
+    private final long maxBytes;
+
+    private long sweepCount = 0;
+    private long lastSweepMillis = 0;
+    private long totalSweepMillis = 0;
+    private long lastSweepEndMillis = 0;
+
+    /**
+     * @param store Store to compact
+     * @param maxBytes Maximum bytes of live entries to keep in the store
+     */
+    public PackCompactor(PackStore store, long maxBytes) {
+        this.store = store;
+        this.maxBytes = maxBytes;
+    }
+
+    public PackStore getStore() {
+        return store;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Return true if the store needs a sweep to get back within its limit, or to reclaim dead space.
+     * Returns false within MIN_SWEEP_INTERVAL_MILLIS of the last sweep.
+     */
+    public boolean isSweepNeeded() {
+        synchronized (this) {
+            if (sweepCount > 0 && System.currentTimeMillis() - lastSweepEndMillis < MIN_SWEEP_INTERVAL_MILLIS)
+                return false;
+        }
+        return store.getBytes() > maxBytes || isDeadSpaceHigh();
+    }
+
+    /**
+     * Return true if removed entries hold more than MAX_DEAD_RATIO of the disk bytes
+     */
+    private boolean isDeadSpaceHigh() {
+        long diskBytes = store.getDiskBytes();
+        long deadBytes = diskBytes - store.getBytes();
+        return deadBytes > PackStore.SEGMENT_MAX_BYTES && deadBytes > diskBytes * MAX_DEAD_RATIO;
+    }
+
+    /**
+     * Evict, compact and flush the store.
+     * Sweeps are serialized, but do not block readers or writers of the store for the whole sweep.
+     * @param headRoom Leave headRoom bytes of space below the limit
+     */
+    public synchronized void sweep(long headRoom) throws IOException {
+        long startMillis = System.currentTimeMillis();
+        try {
+            store.evict(maxBytes - headRoom);
+            long copiedBytes = store.compact(MAX_COMPACT_BYTES_PER_SWEEP);
+            // Dead space may be spread over segments that are mostly live, compact those too
+            if (isDeadSpaceHigh() && copiedBytes < MAX_COMPACT_BYTES_PER_SWEEP)
+                store.compact(MAX_COMPACT_BYTES_PER_SWEEP - copiedBytes, 1.0 - MAX_DEAD_RATIO);
+            store.flush();
+        } finally {
+            lastSweepEndMillis = System.currentTimeMillis();
+            lastSweepMillis = lastSweepEndMillis - startMillis;
+            totalSweepMillis += lastSweepMillis;
+            sweepCount++;
+        }
+    }
+
+    public synchronized long getSweepCount() {
+        return sweepCount;
+    }
+
+    /**
+     * Duration of the most recent sweep
+     */
+    public synchronized long getLastSweepMillis() {
+        return lastSweepMillis;
+    }
+
+    public synchronized long getTotalSweepMillis() {
+        return totalSweepMillis;
+    }
+
+    /**
+     * Total bytes of live entries in the store
+     */
+    public long getBytes() {
+        return store.getBytes();
+    }
+
+    public int getEntryCount() {
+        return store.getEntryCount();
+    }
+
+    public long getEvictionCount() {
+        return store.getEvictionCount();
+    }
+
+    public String toString() {
+        long sweeps;
+        long lastMillis;
+        long totalMillis;
+        synchronized (this) {
+            sweeps = sweepCount;
+            lastMillis = lastSweepMillis;
+            totalMillis = totalSweepMillis;
+        }
+        return store + " maxBytes:" + maxBytes
+                + " sweeps:" + sweeps + " lastSweepMillis:" + lastMillis + " totalSweepMillis:" + totalMillis;
+    }
+}
@@ -0,0 +1,112 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.imageio.cache;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 128 bit key identifying an entry in a PackStore.
+ * Keys are the MD5 digest of a string naming the entry (e.g. a file path and scale).
+ */
+public final class PackKey {
+    private final long high;
+    private final long low;
+
+    public PackKey(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * Create a key from the MD5 digest of the string
+     */
+    public static PackKey digest(String name) {
+        MessageDigest md = null;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            assert(false);
+        }
+
+        byte[] digested = null;
+        try {
+            digested = md.digest(name.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            assert(false);
+        }
+        return valueOf(digested);
+    }
+
+    /**
+     * Create a key from the first 16 bytes of a digest
+     */
+    public static PackKey valueOf(byte[] digested) {
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 8; i++) {
+            high = (high << 8) | (digested[i] & 0xff);
+            low = (low << 8) | (digested[i + 8] & 0xff);
+        }
+        return new PackKey(high, low);
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof PackKey))
+            return false;
+        PackKey key = (PackKey)o;
+        return high == key.high && low == key.low;
+    }
+
+    public int hashCode() {
+        // Digest bits are already well distributed
+        return (int)low;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder(32);
+        appendHex(sb, high);
+        appendHex(sb, low);
+        return sb.toString();
+    }
+
+    private static void appendHex(StringBuilder sb, long value) {
+        for (int shift = 60; shift >= 0; shift -= 4)
+            sb.append(Character.forDigit((int)(value >>> shift) & 0x0f, 16));
+    }
+}
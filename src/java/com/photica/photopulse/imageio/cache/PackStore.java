@@ -0,0 +1,906 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.imageio.cache;
+
+import com.photica.photopulse.PhotoPulse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disk store of small blobs (e.g. encoded thumbnails) packed into append only segment files,
+ * with a compact index of all entries held in memory.
+ * Each entry is keyed by a PackKey and stamped with the last modified time
+ * of the source it was derived from, so stale entries can be detected.
+ *
+ * The following files are kept in the store directory:
+ * name.lck  - held locked while the store is open, so only one VM uses the store
+ * name.idx  - index journal, header followed by add/remove records
+ * name-N.pk - segment data files, appended to until they reach SEGMENT_MAX_BYTES
+ *
+ * Index header:
+ * magic   ->int
+ * version ->byte
+ *
+ * Index add record:
+ * RECORD_ADD      ->byte
+ * keyHigh         ->long
+ * keyLow          ->long
+ * segment         ->int
+ * offset          ->int
+ * length          ->int
+ * srcLastModified ->long
+ * lastAccessed    ->long
+ *
+ * Index remove record:
+ * RECORD_REMOVE ->byte
+ * keyHigh       ->long
+ * keyLow        ->long
+ *
+ * The in memory index is kept in access order. Accesses are only recorded in memory,
+ * they are written out in a batch when the index is flushed. Flushing rewrites the index
+ * as a snapshot of add records in access order, so access order survives a restart.
+ * Adds and removes are appended to the index as they happen.
+ *
+ * Segments are read using positional FileChannel reads, so concurrent readers
+ * do not contend for a file pointer. Segment space is reclaimed when a segment no
+ * longer holds any live entries, compact() moves live entries out of sparse segments
+ * so they can be reclaimed.
+ *
+ * The store lock is only held for index updates and appends, never while reading
+ * segments or writing index snapshots. Eviction and compaction release the lock
+ * periodically so readers are not blocked for the whole operation.
+ */
+public class PackStore {
+
+    private static final int INDEX_MAGIC = 0x50504958;
+    private static final byte INDEX_VERSION = 1;
+
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    private static final String LOCK_SUFFIX = ".lck";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String INDEX_TEMP_SUFFIX = ".idx.tmp";
+    private static final String SEGMENT_SUFFIX = ".pk";
+
+    /**
+     * Segments are not appended to once they exceed this size
+     */
+    public static final long SEGMENT_MAX_BYTES = 4000000L; // 4 Meg
+
+    // Rewrite the index on flush when it holds this many records more than there are live entries
+    private static final int MAX_DEAD_RECORDS = 4096;
+
+    // Maximum entries evicted per acquisition of the store lock
+    private static final int EVICT_BATCH_SIZE = 256;
+
+    // Segments with less than this fraction of live bytes are compacted
+    private static final double COMPACT_LIVE_RATIO = 0.5;
+
+    private static final boolean DEBUG = false;
+
+    private final File root;
+    private final String name;
+
+    private boolean isOpen = false;
+    private RandomAccessFile lockRAF;
+    private FileLock lock;
+    private RandomAccessFile indexRAF;
+    private int indexRecordCount = 0;
+    private boolean isAccessDirty = false;
+    // Records appended while a snapshot is being written, non-null while snapshotting
+    private ByteArrayOutputStream snapshotRecords;
+    private int snapshotRecordCount;
+
+    // Access ordered, eldest entry is least recently used
+    private final LinkedHashMap<PackKey,Entry> index = new LinkedHashMap<PackKey,Entry>(1024, 0.75f, true);
+    private final Map<Integer,Segment> segments = new HashMap<Integer,Segment>();
+    private Segment activeSegment;
+    private long bytes = 0;
+    private long evictionCount = 0;
+    private long compactedBytes = 0;
+
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(recordBuffer);
+
+    private static class Entry {
+        final PackKey key;
+        // Location changes if the entry is moved by compaction
+        Segment segment;
+        int offset;
+        final int length;
+        final long srcLastModified;
+        long lastAccessed;
+        boolean isRemoved = false;
+
+        Entry(PackKey key, Segment segment, int offset, int length, long srcLastModified, long lastAccessed) {
+            this.key = key;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.srcLastModified = srcLastModified;
+            this.lastAccessed = lastAccessed;
+        }
+    }
+
+    private static class Segment {
+        final int id;
+        final File file;
+        private FileChannel channel;
+        private boolean isDeleted = false;
+        // Total bytes appended, including dead entries
+        long length;
+        long liveBytes = 0;
+        int liveCount = 0;
+
+        Segment(int id, File file) {
+            this.id = id;
+            this.file = file;
+            this.length = file.length();
+        }
+
+        /**
+         * Return an open channel, or null if the segment was deleted.
+         * A channel is closed if a thread is interrupted during IO on it, so reopen if necessary.
+         */
+        synchronized FileChannel getChannel() throws IOException {
+            if (isDeleted)
+                return null;
+            if (channel == null || !channel.isOpen())
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            return channel;
+        }
+
+        synchronized void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    PhotoPulse.logException(e);
+                }
+                channel = null;
+            }
+        }
+
+        synchronized void delete() {
+            close();
+            isDeleted = true;
+            file.delete();
+        }
+
+        synchronized boolean isDeleted() {
+            return isDeleted;
+        }
+    }
+
+    /**
+     * @param root Directory to store files in
+     * @param name Base name of the store files
+     */
+    public PackStore(File root, String name) {
+        this.root = root;
+        this.name = name;
+    }
+
+    /**
+     * Return true if the store has been created on disk
+     */
+    public boolean exists() {
+        return getIndexFile().exists() || getIndexTempFile().exists();
+    }
+
+    /**
+     * Open the store, loading the index.
+     * @return false if the store is in use by another process
+     */
+    public synchronized boolean open() throws IOException {
+        if (isOpen)
+            return true;
+
+        root.mkdirs();
+        lockRAF = new RandomAccessFile(new File(root, name + LOCK_SUFFIX), "rw");
+        try {
+            lock = lockRAF.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Already open in this VM
+            lock = null;
+        }
+        if (lock == null) {
+            lockRAF.close();
+            lockRAF = null;
+            return false;
+        }
+
+        try {
+            loadIndex();
+        } catch (IOException e) {
+            closeFiles();
+            throw e;
+        }
+        isOpen = true;
+        return true;
+    }
+
+    private File getIndexFile() {
+        return new File(root, name + INDEX_SUFFIX);
+    }
+
+    private File getIndexTempFile() {
+        return new File(root, name + INDEX_TEMP_SUFFIX);
+    }
+
+    private File getSegmentFile(int id) {
+        return new File(root, name + "-" + id + SEGMENT_SUFFIX);
+    }
+
+    private void loadIndex() throws IOException {
+        File indexFile = getIndexFile();
+        File indexTempFile = getIndexTempFile();
+
+        // Finish an interrupted snapshot
+        if (!indexFile.exists() && indexTempFile.exists())
+            indexTempFile.renameTo(indexFile);
+        else
+            indexTempFile.delete();
+
+        loadSegments();
+
+        boolean isIndexValid = false;
+        if (indexFile.exists()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                isIndexValid = in.readInt() == INDEX_MAGIC && in.readByte() == INDEX_VERSION;
+                if (isIndexValid)
+                    loadRecords(in);
+            } catch (EOFException e) {
+                // Truncated, keep whatever records were read
+            } finally {
+                in.close();
+            }
+        }
+
+        if (!isIndexValid) {
+            // Missing or incompatible index, the segments are useless without it
+            for (Segment segment : segments.values())
+                segment.delete();
+            segments.clear();
+            index.clear();
+            bytes = 0;
+        }
+        else {
+            // Records appended by compaction are not in access order, so restore it
+            List<Entry> entries = new ArrayList<Entry>(index.values());
+            Collections.sort(entries, new Comparator<Entry>() {
+                public int compare(Entry e1, Entry e2) {
+                    if (e1.lastAccessed == e2.lastAccessed) return 0;
+                    return e1.lastAccessed < e2.lastAccessed ? -1 : 1;
+                }
+            });
+            index.clear();
+            for (Entry entry : entries)
+                index.put(entry.key, entry);
+        }
+
+        // Delete segments no entry refers to
+        for (Iterator<Segment> iter = segments.values().iterator(); iter.hasNext(); ) {
+            Segment segment = iter.next();
+            if (segment.liveCount == 0) {
+                segment.delete();
+                iter.remove();
+            }
+            else if (activeSegment == null || segment.id > activeSegment.id)
+                activeSegment = segment;
+        }
+
+        // Compact the journal into a snapshot and open it for appending
+        writeIndexFile(serializeSnapshot(), null);
+        indexRecordCount = index.size();
+
+        if (DEBUG) System.out.println("PackStore " + name + " loaded " + index.size() + " entries, " + bytes + " bytes");
+    }
+
+    private void loadSegments() {
+        String prefix = name + "-";
+        String[] fileNames = root.list();
+        if (fileNames == null)
+            return;
+        for (String fileName : fileNames) {
+            if (!fileName.startsWith(prefix) || !fileName.endsWith(SEGMENT_SUFFIX))
+                continue;
+            try {
+                int id = Integer.parseInt(fileName.substring(prefix.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+                segments.put(Integer.valueOf(id), new Segment(id, new File(root, fileName)));
+            } catch (NumberFormatException e) {
+                // Not ours
+            }
+        }
+    }
+
+    private void loadRecords(DataInputStream in) throws IOException {
+        while (true) {
+            int recordType = in.read();
+            if (recordType == -1)
+                break;
+            PackKey key = new PackKey(in.readLong(), in.readLong());
+            if (recordType == RECORD_ADD) {
+                int segmentId = in.readInt();
+                int offset = in.readInt();
+                int length = in.readInt();
+                long srcLastModified = in.readLong();
+                long lastAccessed = in.readLong();
+
+                removeEntry(index.remove(key));
+                // Ignore entries whose data is missing
+                Segment segment = segments.get(Integer.valueOf(segmentId));
+                if (segment != null && (long)offset + length <= segment.length)
+                    addEntry(new Entry(key, segment, offset, length, srcLastModified, lastAccessed));
+            }
+            else if (recordType == RECORD_REMOVE)
+                removeEntry(index.remove(key));
+            else
+                throw new IOException("Corrupt index record " + recordType);
+        }
+    }
+
+    private void addEntry(Entry entry) {
+        index.put(entry.key, entry);
+        entry.segment.liveBytes += entry.length;
+        entry.segment.liveCount++;
+        bytes += entry.length;
+    }
+
+    /**
+     * Account for an entry already removed from the index
+     */
+    private void removeEntry(Entry entry) {
+        if (entry == null)
+            return;
+        entry.isRemoved = true;
+        Segment segment = entry.segment;
+        segment.liveBytes -= entry.length;
+        segment.liveCount--;
+        bytes -= entry.length;
+
+        // Segments may empty temporarily while the index is replayed, empty segments are deleted after loading
+        if (isOpen)
+            deleteIfEmpty(segment);
+    }
+
+    private void deleteIfEmpty(Segment segment) {
+        if (segment.liveCount == 0 && segment != activeSegment) {
+            if (DEBUG) System.out.println("PackStore " + name + " delete segment " + segment.id);
+            segments.remove(Integer.valueOf(segment.id));
+            segment.delete();
+        }
+    }
+
+    /**
+     * Serialize the index header and add records for all live entries, in access order
+     */
+    private byte[] serializeSnapshot() throws IOException {
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream(5 + index.size() * 45);
+        DataOutputStream out = new DataOutputStream(snapshot);
+        out.writeInt(INDEX_MAGIC);
+        out.writeByte(INDEX_VERSION);
+        for (Entry entry : index.values())
+            writeAddRecord(out, entry);
+        out.flush();
+        return snapshot.toByteArray();
+    }
+
+    /**
+     * Write the snapshot to a temp file.
+     * Does not need the store lock.
+     */
+    private void writeIndexTempFile(byte[] snapshot) throws IOException {
+        FileOutputStream out = new FileOutputStream(getIndexTempFile());
+        try {
+            out.write(snapshot);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Replace the index with the temp file, after appending records, and reopen it for appending.
+     * If snapshot is non-null the temp file is written first.
+     */
+    private void writeIndexFile(byte[] snapshot, byte[] records) throws IOException {
+        if (snapshot != null)
+            writeIndexTempFile(snapshot);
+
+        File indexFile = getIndexFile();
+        File indexTempFile = getIndexTempFile();
+        if (records != null && records.length > 0) {
+            RandomAccessFile tempRAF = new RandomAccessFile(indexTempFile, "rw");
+            try {
+                tempRAF.seek(tempRAF.length());
+                tempRAF.write(records);
+            } finally {
+                tempRAF.close();
+            }
+        }
+
+        if (indexRAF != null) {
+            indexRAF.close();
+            indexRAF = null;
+        }
+        // Rename may fail to overwrite
+        indexFile.delete();
+        if (!indexTempFile.renameTo(indexFile))
+            throw new IOException("Failed to rename " + indexTempFile);
+
+        indexRAF = new RandomAccessFile(indexFile, "rw");
+        indexRAF.seek(indexRAF.length());
+    }
+
+    private void writeAddRecord(DataOutputStream out, Entry entry) throws IOException {
+        out.writeByte(RECORD_ADD);
+        out.writeLong(entry.key.getHigh());
+        out.writeLong(entry.key.getLow());
+        out.writeInt(entry.segment.id);
+        out.writeInt(entry.offset);
+        out.writeInt(entry.length);
+        out.writeLong(entry.srcLastModified);
+        out.writeLong(entry.lastAccessed);
+    }
+
+    private void writeRemoveRecord(DataOutputStream out, PackKey key) throws IOException {
+        out.writeByte(RECORD_REMOVE);
+        out.writeLong(key.getHigh());
+        out.writeLong(key.getLow());
+    }
+
+    /**
+     * Append the buffered records to the index
+     */
+    private void appendRecords(int recordCount) throws IOException {
+        recordOut.flush();
+        byte[] records = recordBuffer.toByteArray();
+        recordBuffer.reset();
+        indexRAF.write(records);
+        indexRecordCount += recordCount;
+
+        // The snapshot being written will replace the index, so it needs these records too
+        if (snapshotRecords != null) {
+            snapshotRecords.write(records);
+            snapshotRecordCount += recordCount;
+        }
+    }
+
+    /**
+     * Append data to the active segment, starting a new segment if it is full.
+     * @return offset of the data in the active segment
+     */
+    private long appendData(byte[] data) throws IOException {
+        Segment segment = activeSegment;
+        if (segment == null || (segment.length > 0 && segment.length + data.length > SEGMENT_MAX_BYTES)) {
+            Segment previousSegment = segment;
+            int id = segment == null ? 1 : segment.id + 1;
+            segment = new Segment(id, getSegmentFile(id));
+            segments.put(Integer.valueOf(id), segment);
+            activeSegment = segment;
+            // The previous segment may have emptied while it was active
+            if (previousSegment != null)
+                deleteIfEmpty(previousSegment);
+        }
+
+        // Reserve the space first, so a failed write leaves dead space and not a corrupt entry
+        long offset = segment.length;
+        segment.length += data.length;
+        FileChannel channel = segment.getChannel();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining())
+            channel.write(buffer, offset + buffer.position());
+        return offset;
+    }
+
+    /**
+     * Read data from a segment without holding the store lock.
+     * @return data, or null if the segment has been deleted
+     */
+    private byte[] readData(Segment segment, long offset, int length) throws IOException {
+        FileChannel channel = segment.getChannel();
+        if (channel == null)
+            return null;
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0)
+                    throw new EOFException(segment.file.getName());
+            }
+        } catch (ClosedByInterruptException e) {
+            throw e;
+        } catch (ClosedChannelException e) {
+            // Deleted while reading
+            if (segment.isDeleted())
+                return null;
+            throw e;
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Return true if the store has an entry for the key, which may be stale.
+     * Does not count as an access.
+     */
+    public synchronized boolean contains(PackKey key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Mark the entry most recently used
+     */
+    public synchronized void touch(PackKey key) {
+        Entry entry = index.get(key);
+        if (entry != null) {
+            entry.lastAccessed = System.currentTimeMillis();
+            isAccessDirty = true;
+        }
+    }
+
+    /**
+     * Read the data stored for key and mark it most recently used.
+     * @param srcLastModified Last modified time of the source the data was derived from
+     * @return data, or null if there is no entry or it is stale
+     */
+    public byte[] read(PackKey key, long srcLastModified) throws IOException {
+        Entry entry;
+        Segment segment;
+        long offset;
+        synchronized (this) {
+            entry = index.get(key);
+            if (entry == null || entry.srcLastModified != srcLastModified)
+                return null;
+            entry.lastAccessed = System.currentTimeMillis();
+            isAccessDirty = true;
+            segment = entry.segment;
+            offset = entry.offset;
+        }
+
+        // Read outside the lock, positional reads do not interfere with each other
+        byte[] data = readData(segment, offset, entry.length);
+        if (data == null) {
+            // The entry may have been moved by compaction before its segment was deleted
+            synchronized (this) {
+                if (entry.isRemoved || entry.segment == segment)
+                    return null;
+                segment = entry.segment;
+                offset = entry.offset;
+            }
+            data = readData(segment, offset, entry.length);
+        }
+        return data;
+    }
+
+    /**
+     * Store data for key, replacing any existing entry.
+     * @param srcLastModified Last modified time of the source the data was derived from
+     */
+    public synchronized void write(PackKey key, long srcLastModified, byte[] data) throws IOException {
+        if (!isOpen)
+            throw new IOException("PackStore " + name + " is not open");
+
+        long offset = appendData(data);
+        Entry entry = new Entry(key, activeSegment, (int)offset, data.length, srcLastModified, System.currentTimeMillis());
+        removeEntry(index.remove(key));
+        addEntry(entry);
+
+        writeAddRecord(recordOut, entry);
+        appendRecords(1);
+    }
+
+    /**
+     * Remove the entry for key if it exists
+     */
+    public synchronized void remove(PackKey key) throws IOException {
+        Entry entry = index.remove(key);
+        if (entry == null)
+            return;
+        removeEntry(entry);
+        if (isOpen) {
+            writeRemoveRecord(recordOut, key);
+            appendRecords(1);
+        }
+    }
+
+    /**
+     * Remove least recently used entries until the live data fits in maxBytes.
+     * The cost is proportional to the number of entries evicted.
+     * The store lock is released after each batch of evictions.
+     * @return number of entries evicted
+     */
+    public int evict(long maxBytes) throws IOException {
+        int evictedCount = 0;
+        while (true) {
+            synchronized (this) {
+                int batchCount = 0;
+                Iterator<Entry> iter = index.values().iterator();
+                while (bytes > maxBytes && batchCount < EVICT_BATCH_SIZE && iter.hasNext()) {
+                    Entry entry = iter.next();
+                    iter.remove();
+                    removeEntry(entry);
+                    writeRemoveRecord(recordOut, entry.key);
+                    batchCount++;
+                }
+                if (batchCount > 0 && isOpen)
+                    appendRecords(batchCount);
+                else
+                    recordBuffer.reset();
+                evictedCount += batchCount;
+                evictionCount += batchCount;
+                if (batchCount < EVICT_BATCH_SIZE)
+                    break;
+            }
+        }
+        if (DEBUG) System.out.println("PackStore " + name + " evicted " + evictedCount + " entries");
+        return evictedCount;
+    }
+
+    /**
+     * Move live entries out of sparse segments into the active segment, so the sparse
+     * segments can be deleted. Entries are moved one at a time, reading outside the store lock.
+     * @param maxCopyBytes Stop once this many bytes have been moved
+     * @return number of bytes moved
+     */
+    public long compact(long maxCopyBytes) throws IOException {
+        return compact(maxCopyBytes, COMPACT_LIVE_RATIO);
+    }
+
+    /**
+     * Same as above, but segments are compacted if their fraction of live bytes is below maxLiveRatio.
+     */
+    public long compact(long maxCopyBytes, double maxLiveRatio) throws IOException {
+        long copiedBytes = 0;
+        Segment previousSegment = null;
+        while (copiedBytes < maxCopyBytes) {
+            Segment segment;
+            List<Entry> entries = new ArrayList<Entry>();
+            synchronized (this) {
+                if (!isOpen)
+                    break;
+                // Moving every entry deletes the segment, so seeing it again means no progress
+                segment = findSparseSegment(maxLiveRatio);
+                if (segment == null || segment == previousSegment)
+                    break;
+                previousSegment = segment;
+                for (Entry entry : index.values()) {
+                    if (entry.segment == segment)
+                        entries.add(entry);
+                }
+            }
+
+            if (DEBUG) System.out.println("PackStore " + name + " compact segment " + segment.id + " with " + entries.size() + " entries");
+            for (Entry entry : entries) {
+                long offset;
+                synchronized (this) {
+                    if (entry.isRemoved || entry.segment != segment)
+                        continue;
+                    offset = entry.offset;
+                }
+                byte[] data = readData(segment, offset, entry.length);
+                if (data == null)
+                    break;
+                if (moveEntry(entry, segment, data))
+                    copiedBytes += data.length;
+            }
+        }
+        synchronized (this) {
+            compactedBytes += copiedBytes;
+        }
+        return copiedBytes;
+    }
+
+    /**
+     * Return the non active segment with the lowest fraction of live bytes,
+     * if it is below maxLiveRatio.
+     */
+    private Segment findSparseSegment(double maxLiveRatio) {
+        Segment sparseSegment = null;
+        double sparseRatio = maxLiveRatio;
+        for (Segment segment : segments.values()) {
+            if (segment == activeSegment || segment.length == 0)
+                continue;
+            double ratio = (double)segment.liveBytes / segment.length;
+            if (ratio < sparseRatio) {
+                sparseSegment = segment;
+                sparseRatio = ratio;
+            }
+        }
+        return sparseSegment;
+    }
+
+    /**
+     * Append the entries data to the active segment and point the entry at it,
+     * unless the entry was removed or moved since the data was read.
+     * The entry keeps its position in the access order.
+     */
+    private synchronized boolean moveEntry(Entry entry, Segment segment, byte[] data) throws IOException {
+        if (!isOpen || entry.isRemoved || entry.segment != segment)
+            return false;
+
+        // Never appends to the segment being compacted, it is not the active segment
+        long offset = appendData(data);
+
+        segment.liveBytes -= entry.length;
+        segment.liveCount--;
+        entry.segment = activeSegment;
+        entry.offset = (int)offset;
+        activeSegment.liveBytes += entry.length;
+        activeSegment.liveCount++;
+
+        writeAddRecord(recordOut, entry);
+        appendRecords(1);
+
+        deleteIfEmpty(segment);
+        return true;
+    }
+
+    /**
+     * Write out access times recorded since the last flush, and compact the index journal.
+     * The index is written without holding the store lock.
+     */
+    public void flush() throws IOException {
+        byte[] snapshot;
+        int snapshotEntryCount;
+        synchronized (this) {
+            if (!isOpen || snapshotRecords != null)
+                return;
+            if (!isAccessDirty && indexRecordCount - index.size() <= MAX_DEAD_RECORDS)
+                return;
+            snapshot = serializeSnapshot();
+            snapshotEntryCount = index.size();
+            snapshotRecords = new ByteArrayOutputStream();
+            snapshotRecordCount = 0;
+            isAccessDirty = false;
+        }
+
+        boolean isWritten = false;
+        try {
+            writeIndexTempFile(snapshot);
+            synchronized (this) {
+                if (isOpen) {
+                    writeIndexFile(null, snapshotRecords.toByteArray());
+                    indexRecordCount = snapshotEntryCount + snapshotRecordCount;
+                    isWritten = true;
+                }
+            }
+        } finally {
+            synchronized (this) {
+                snapshotRecords = null;
+                if (!isWritten)
+                    isAccessDirty = true;
+            }
+        }
+    }
+
+    /**
+     * Flush and close the store
+     */
+    public synchronized void close() throws IOException {
+        if (!isOpen)
+            return;
+        try {
+            // If a flush is writing a snapshot, leave the journal as it is
+            if (snapshotRecords == null && (isAccessDirty || indexRecordCount > index.size()))
+                writeIndexFile(serializeSnapshot(), null);
+        } finally {
+            isOpen = false;
+            closeFiles();
+        }
+    }
+
+    private void closeFiles() throws IOException {
+        for (Segment segment : segments.values())
+            segment.close();
+        segments.clear();
+        index.clear();
+        activeSegment = null;
+        bytes = 0;
+
+        if (indexRAF != null) {
+            indexRAF.close();
+            indexRAF = null;
+        }
+        if (lock != null) {
+            lock.release();
+            lock = null;
+        }
+        if (lockRAF != null) {
+            lockRAF.close();
+            lockRAF = null;
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return isOpen;
+    }
+
+    /**
+     * Total bytes of live entries
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Total bytes of all segment files, including space held by removed entries
+     */
+    public synchronized long getDiskBytes() {
+        long diskBytes = 0;
+        for (Segment segment : segments.values())
+            diskBytes += segment.length;
+        return diskBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return index.size();
+    }
+
+    /**
+     * Total entries removed by evict()
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * Total bytes moved by compact()
+     */
+    public synchronized long getCompactedBytes() {
+        return compactedBytes;
+    }
+
+    public synchronized String toString() {
+        return "PackStore " + name + " entries:" + index.size() + " bytes:" + bytes + " diskBytes:" + getDiskBytes()
+                + " segments:" + segments.size() + " evictions:" + evictionCount + " compactedBytes:" + compactedBytes;
+    }
+}
@@ -0,0 +1,218 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.imageio.cache;
+
+import com.photica.photopulse.PhotoPulse;
+import com.photica.photopulse.model.Photo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Dimensions of validated photo files, so unchanged files do not have to be opened again to validate them.
+ * Entries are remembered by path along with the files last modified time and size.
+ * Only valid photos are remembered. The most recently used MAX_ENTRIES paths
+ * are persisted to the index file when flushed.
+ *
+ * Index file:
+ * magic        ->int
+ * version      ->byte
+ * count        ->int
+ * then count records of:
+ * path         ->UTF
+ * lastModified ->long
+ * length       ->long
+ * width        ->int
+ * height       ->int
+ * isFlashPhoto ->boolean
+ */
+public class PhotoIndex {
+
+    private static final int INDEX_MAGIC = 0x50505049;
+    private static final byte INDEX_VERSION = 1;
+
+    static final int MAX_ENTRIES = 20000;
+
+    private static final boolean DEBUG = false;
+
+    private final File indexFile;
+    private boolean isLoaded = false;
+    private boolean isDirty = false;
+    // Serializes flushes, without blocking lookups
+    private final Object flushLock = new Object();
+
+    private final LinkedHashMap<String,Entry> index = new LinkedHashMap<String,Entry>(1024, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private static class Entry {
+        final long lastModified;
+        final long length;
+        final int width;
+        final int height;
+        final boolean isFlashPhoto;
+
+        Entry(long lastModified, long length, int width, int height, boolean isFlashPhoto) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.width = width;
+            this.height = height;
+            this.isFlashPhoto = isFlashPhoto;
+        }
+    }
+
+    PhotoIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Return a Photo for the file if it was validated and has not changed since, otherwise null.
+     * Never reads the file contents.
+     */
+    public synchronized Photo getPhoto(File file) {
+        loadIndex();
+        Entry entry = index.get(file.getAbsolutePath());
+        if (entry == null)
+            return null;
+        if (entry.lastModified != file.lastModified() || entry.length != file.length())
+            return null;
+        return new Photo(file, entry.width, entry.height, entry.isFlashPhoto);
+    }
+
+    /**
+     * Remember a validated photo.
+     * @param lastModified Files last modified time, read before the file was validated
+     * @param length Files size, read before the file was validated
+     */
+    public synchronized void putPhoto(Photo photo, long lastModified, long length) {
+        loadIndex();
+        index.put(photo.getFile().getAbsolutePath(),
+                new Entry(lastModified, length, photo.getWidth(), photo.getHeight(), photo.isFlashPhoto()));
+        isDirty = true;
+    }
+
+    private void loadIndex() {
+        if (isLoaded)
+            return;
+        isLoaded = true;
+        if (!indexFile.exists())
+            return;
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (in.readInt() != INDEX_MAGIC || in.readByte() != INDEX_VERSION)
+                    return;
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String path = in.readUTF();
+                    long lastModified = in.readLong();
+                    long length = in.readLong();
+                    int width = in.readInt();
+                    int height = in.readInt();
+                    boolean isFlashPhoto = in.readBoolean();
+                    index.put(path, new Entry(lastModified, length, width, height, isFlashPhoto));
+                }
+            } finally {
+                in.close();
+            }
+        } catch (EOFException e) {
+            // Truncated, keep whatever was read
+        } catch (IOException e) {
+            PhotoPulse.logException(e);
+        }
+        if (DEBUG) System.out.println("PhotoIndex loaded " + index.size() + " photos");
+    }
+
+    /**
+     * Write the index if it has changed
+     */
+    public void flush() throws IOException {
+        synchronized (flushLock) {
+            flushIndex();
+        }
+    }
+
+    private void flushIndex() throws IOException {
+        Map<String,Entry> snapshot;
+        synchronized (this) {
+            if (!isDirty)
+                return;
+            // Copy in least recently used first order, so reloading preserves the order
+            snapshot = new LinkedHashMap<String,Entry>(index);
+            isDirty = false;
+        }
+
+        // Write outside the lock
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        boolean isWritten = false;
+        try {
+            indexFile.getParentFile().mkdirs();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(INDEX_MAGIC);
+                out.writeByte(INDEX_VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String,Entry> mapEntry : snapshot.entrySet()) {
+                    Entry entry = mapEntry.getValue();
+                    out.writeUTF(mapEntry.getKey());
+                    out.writeLong(entry.lastModified);
+                    out.writeLong(entry.length);
+                    out.writeInt(entry.width);
+                    out.writeInt(entry.height);
+                    out.writeBoolean(entry.isFlashPhoto);
+                }
+            } finally {
+                out.close();
+            }
+
+            // Rename may fail to overwrite
+            indexFile.delete();
+            if (!tempFile.renameTo(indexFile))
+                throw new IOException("Failed to rename " + tempFile);
+            isWritten = true;
+        } finally {
+            if (!isWritten) {
+                tempFile.delete();
+                synchronized (this) {
+                    isDirty = true;
+                }
+            }
+        }
+    }
+}
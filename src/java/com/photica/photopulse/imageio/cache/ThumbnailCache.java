@@ -38,27 +38,20 @@ import com.photica.photopulse.model.Photo;
 
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
-import java.util.Comparator;
 import java.util.prefs.Preferences;
 
 
 /**
- *  A File system based thumbnail cache. Files are mapped
- * to a path on the file system under the cache root. The file name is a hash code based
- * on the path to the file and the size of the thumbnail. The following MetaData
- * is appended to each thumbnail.
-
- * srcLastModified   ->long
- * thumbLastAccessed ->long
- * MDVersion         ->byte
+ *  A File system based thumbnail cache. Thumbnails are stored as JPEG in a PackStore
+ * under the cache root. The key is a hash code based on the path to the file and the size
+ * of the thumbnail, each thumbnail is stamped with the last modified time of its file.
+ *
+ * If the CacheContentKeys preference is set, the key is instead based on a fingerprint
+ * of the file contents (see FingerprintIndex) and each thumbnail is stamped with the file size.
+ * So thumbnails survive moving photos, and are shared between copies of a photo.
  **/
 
 public class ThumbnailCache implements ThumbnailDecoder, ImageTranscoder {
@@ -73,6 +66,8 @@ public class ThumbnailCache implements ThumbnailDecoder, ImageTranscoder {
     private static final long defaultCleanIntervalMillis = 1000L * 60L * 10L; // 10 minutes
     private static final long minCleanIntervalMillis = 1000L * 60L * 5L; // 5 minutes
     private static boolean cleanOnStartUp = false;
+    // Space left free below the limit when cleaning
+    private static final long CLEAN_HEADROOM_BYTES = 1000000L;
 
     private File _root = null;
     // max byte size of disk and ram cache
@@ -81,11 +76,25 @@ public class ThumbnailCache implements ThumbnailDecoder, ImageTranscoder {
     // clean interval in millis
     private long cleanIntervalMillis = defaultCleanIntervalMillis;
 
-    private SoftCache<File,DecodedImage> memoryCache = new SoftCache<File,DecodedImage>();
+    // In memory LRU tier, sized by decoded raster bytes
+    private ImageMemoryCache<PackKey> memoryCache;
+
+    // Disk tier, opened on first use. null if it could not be opened.
+    private volatile PackStore packStore;
+    private PackCompactor compactor;
+    private boolean isPackStoreInitialized = false;
+    // Guarded by ThumbnailCache.class, along with clockDaemon
+    private boolean isCleanScheduled = false;
+
+    // Non-null if thumbnails are keyed on file content instead of path
+    private FingerprintIndex fingerprintIndex;
+    // Fingerprints of files in the cache directory, shared with BitmapCache
+    private FingerprintIndex sharedFingerprintIndex;
 
     private static final boolean DEBUG = false;
-    private static final String CACHE_FILE_PREFIX="ppulse";
-    private static final String CACHE_FILE_SUFFIX=".jpg";
+    private static final String PACK_STORE_NAME = "thumbs";
+    // Suffix of thumbnail files written by the previous file per thumbnail cache
+    private static final String LEGACY_FILE_SUFFIX=".jpg";
 
     // Keep this in sync with uninstaller
     public static final String DEFAULT_DIR_NAME = "PhotoPulseCache";
@@ -97,9 +106,21 @@ public class ThumbnailCache implements ThumbnailDecoder, ImageTranscoder {
      */
     public  static final long defaultMaxDiskCacheBytes = 50000000L; // 50 Meg
 
+    /**
+     * Default value for number of decoded image bytes to store in memory
+     */
+    public  static final long defaultMaxMemoryCacheBytes = 32000000L; // 32 Meg
+
     private static final String PREF_CACHE_MAX_DISK_BYTES = "CacheMaxDiskBytes";
+    private static final String PREF_CACHE_MAX_MEMORY_BYTES = "CacheMaxMemoryBytes";
     private static final String PREF_CACHE_HOME = "CacheHome";
     private static final String PREF_CACHE_CLEAN_INTERVAL = "CacheCleanInterval";
+    private static final String PREF_CACHE_CONTENT_KEYS = "CacheContentKeys";
+
+    private static final String FINGERPRINT_INDEX_NAME = "fingerprints.idx";
+    private static final String PHOTO_INDEX_NAME = "photos.idx";
+
+    private static PhotoIndex photoIndex = null;
 
 
     public synchronized static ThumbnailCache getInstance() {
@@ -115,6 +136,46 @@ public class ThumbnailCache implements ThumbnailDecoder, ImageTranscoder {
     }
 
 
+    /**
+     * Index of validated photo dimensions, stored in the cache directory.
+     * This does not start the cache cleaner.
+     */
+    public synchronized static PhotoIndex getPhotoIndex() {
+        if (photoIndex == null) {
+            photoIndex = new PhotoIndex(new File(instance._root, PHOTO_INDEX_NAME));
+
+            // Flush on exit
+            final PhotoIndex flushIndex = photoIndex;
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    try {
+                        flushIndex.flush();
+                    } catch (IOException ex) {
+                        PhotoPulse.logException(ex);
+                    }
+                }
+            });
+        }
+        return photoIndex;
+    }
+
+
+    /**
+     * Cache directory, without starting the cache cleaner.
+     */
+    static File getSharedCacheRoot() {
+        return instance._root;
+    }
+
+    /**
+     * Fingerprints of files, shared by all the caches in the cache directory keyed on file content.
+     * The caller is responsible for flushing it.
+     */
+    static FingerprintIndex getSharedFingerprintIndex() {
+        return instance.sharedFingerprintIndex;
+    }
+
+
     /**
      * Create a cache using the user.home system property.
      * @see System#getProperties()
@@ -129,12 +190,91 @@ public class ThumbnailCache implements ThumbnailDecoder, ImageTranscoder {
 
         maxBytes = prefs.getLong(PREF_CACHE_MAX_DISK_BYTES, defaultMaxDiskCacheBytes);
         cleanIntervalMillis = prefs.getLong(PREF_CACHE_CLEAN_INTERVAL,defaultCleanIntervalMillis );
+        sharedFingerprintIndex = new FingerprintIndex(new File(_root, FINGERPRINT_INDEX_NAME));
+        if (prefs.getBoolean(PREF_CACHE_CONTENT_KEYS, false))
+            fingerprintIndex = sharedFingerprintIndex;
+
+        // Don't let the memory cache use more than a quarter of the heap
+        long maxMemoryBytes = Math.min(prefs.getLong(PREF_CACHE_MAX_MEMORY_BYTES, defaultMaxMemoryCacheBytes),
+                Runtime.getRuntime().maxMemory() / 4);
+        memoryCache = new ImageMemoryCache<PackKey>(maxMemoryBytes);
+    }
+
+    /**
+     * Open the disk store on first use.
+     * @return store, or null if the disk cache is unavailable (e.g. in use by another process)
+     */
+    private synchronized PackStore getPackStore() {
+        if (isPackStoreInitialized)
+            return packStore;
+        isPackStoreInitialized = true;
+
+        PackStore store = new PackStore(_root, PACK_STORE_NAME);
+        boolean isNewStore = !store.exists();
+        try {
+            if (!store.open())
+                return null;
+        } catch (IOException ex) {
+            PhotoPulse.logException(ex);
+            return null;
+        }
+
+        if (isNewStore)
+            deleteLegacyFiles();
+
+        // Flush batched access times and fingerprints on exit
+        final PackStore closeStore = store;
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                try {
+                    closeStore.close();
+                    if (fingerprintIndex != null)
+                        fingerprintIndex.flush();
+                } catch (IOException ex) {
+                    PhotoPulse.logException(ex);
+                }
+            }
+        });
+
+        compactor = new PackCompactor(store, maxBytes);
+        packStore = store;
+        return packStore;
+    }
+
+    /**
+     * Delete thumbnail files left by the previous file per thumbnail cache
+     */
+    private void deleteLegacyFiles() {
+        File[] files = _root.listFiles();
+        if (files == null)
+            return;
+        for (int x = 0; x < files.length; x++) {
+            if (files[x].getName().endsWith(LEGACY_FILE_SUFFIX))
+                files[x].delete();
+        }
     }
 
     public File getCacheRoot() {
         return _root;
     }
 
+    /**
+     * Disk cache tier, exposes byte/entry/eviction/sweep statistics.
+     * @return compactor, or null if the disk cache is unavailable
+     */
+    public PackCompactor getCompactor() {
+        if (getPackStore() == null)
+            return null;
+        return compactor;
+    }
+
+    /**
+     * In memory cache tier, exposes hit/miss/eviction statistics
+     */
+    public ImageMemoryCache<PackKey> getMemoryCache() {
+        return memoryCache;
+    }
+
     /**
      * Flushes all resources being used for cache optimization. This method basically
      * clears in memory image caches. The in memory cache will be built up again. Call this
@@ -156,50 +296,11 @@ public class ThumbnailCache implements ThumbnailDecoder, ImageTranscoder {
      * @return true if the specified file in is the cache
      */
     public boolean hasCache(File srcPath, double scaleFactor) {
-        File cachePath = resolveDBPath(srcPath, scaleFactor);
+        PackKey key = resolveKey(srcPath, scaleFactor);
         if( DEBUG ) System.out.println("CACHE CK  = " + srcPath.getName() );
-        if( isInMemoryCache(cachePath)) return true;
-        return cachePath.exists();
-        // return cacheFileCurrent(srcPath, cachePath);
-
-    }
-
-    private boolean cacheFileCurrent(File srcFile, File cacheFile)  {
-        RandomAccessFile raf = null;
-        boolean isCurrent = false;
-        try {
-            if( cacheFile.exists() ) {
-                    raf = new RandomAccessFile(cacheFile, "r");
-                    long  sz = raf.length();
-                    if( DEBUG ) System.out.println("CACHPATH SIZE = " + sz );
-                    if( sz > 0 ) {
-                        MetaData md = new MetaData(0,0);
-                        try {
-                            md = md.loadMetaData(raf);
-                            if( DEBUG )System.out.println(md);
-                            long srcLastModified = srcFile.lastModified();
-                            if( srcLastModified == md.getSrcLastModified() ) isCurrent = true;
-                            else cacheFile.delete(); // not current - delete
-                        } catch (MetaDataVersionException ex ) {
-                            // the cachefile exists but is not compatible so delete it
-                            if( DEBUG )System.out.println("DELETE CACHE FOR: "  + srcFile.getName() + "(" + cacheFile.getName() + ")" );
-                            cacheFile.delete();
-                        }
-
-                    }
-                    raf.close();
-                    raf = null;
-                }
-        } catch (IOException ex ) {
-            isCurrent = false;
-        } finally {
-                if (raf != null ) try {
-                    raf.close();
-                } catch(IOException ex ) {
-                    ; // can't do anything more....
-                }
-            }
-        return isCurrent;
+        if( isInMemoryCache(key)) return true;
+        PackStore store = getPackStore();
+        return store != null && store.contains(key);
     }
 
 
@@ -253,9 +354,11 @@ public class ThumbnailCache implements ThumbnailDecoder, ImageTranscoder {
      */
     public DecodedImage fastGet(File srcPath, double scaleFactor)  {
         if( DEBUG ) System.out.println("CACHE FAST GET = " + srcPath.getName() );
-        File cachePath = resolveDBPath(srcPath, scaleFactor);
+        PackKey key = resolveKnownKey(srcPath, scaleFactor);
+        if (key == null)
+            return null;
 
-        return  getFromMemoryCache(cachePath);
+        return  getFromMemoryCache(key);
     }
 
     /**
@@ -273,47 +376,27 @@ public class ThumbnailCache implements ThumbnailDecoder, ImageTranscoder {
      **/
     private DecodedImage get(File srcPath, double scaleFactor, IIOReadListener listener) throws IOException {
         if( DEBUG ) System.out.println("CACHE GET = " + srcPath.getName() );
-        return get(srcPath, resolveDBPath(srcPath, scaleFactor), listener);
+        return get(srcPath, resolveKey(srcPath, scaleFactor), listener);
     }
 
-    private DecodedImage get(File srcPath, File cachePath, IIOReadListener listener) throws IOException {
-        RandomAccessFile raf = null;
-        DecodedImage img = null;
-        try {
-            // check MRU - return if exists
-            img = getFromMemoryCache(cachePath);
-            if (img != null) {
-                if( DEBUG ) System.out.println("USE MRU VERSION FOR " + srcPath.getName());
-                return img;
-            }
-            // check on disk cache ensuring file stil matches disk file
-            if( cachePath.exists() ) {
-                boolean mdVersionOK = true;
-                if( DEBUG ) System.out.println("USE DISK VERSION FOR " + srcPath.getName());
-                raf = new RandomAccessFile(cachePath, "rw");
-                MetaData md = new MetaData( 0L, 0L);
-                try {
-                    md = md.loadMetaData(raf);
-                } catch (MetaDataVersionException ex ) {
-                    mdVersionOK = false;
-                }
-                // Get the image if it's current/correct.
-                // We don't delete invalid images since some combination of clean
-                // and add should take care of this.
-                if (mdVersionOK && md.getSrcLastModified() == srcPath.lastModified()) {
-                    md.setThumbLastAccessed(raf);
-                    raf.close();
-                    raf=null; // no need to close in finally if all goes well
-                    img = ImageCoder.getInstance().decodeImage(cachePath,null,1.0,0,0,ImageTranscoder.SCALE_BILINEAR,listener);
-                    putInMemoryCache(cachePath, img);
-                }
-            }
-        } finally {
-            try {
-                if( raf != null ) raf.close();
-            } catch (IOException ex ) {
-                PhotoPulse.logException(ex);
-            }
+    private DecodedImage get(File srcPath, PackKey key, IIOReadListener listener) throws IOException {
+        // check MRU - return if exists
+        DecodedImage img = getFromMemoryCache(key);
+        if (img != null) {
+            if( DEBUG ) System.out.println("USE MRU VERSION FOR " + srcPath.getName());
+            return img;
+        }
+
+        // check on disk cache ensuring thumbnail still matches disk file.
+        // We don't remove stale thumbnails since add will replace them.
+        PackStore store = getPackStore();
+        if (store == null)
+            return null;
+        byte[] thumbData = store.read(key, getSourceStamp(srcPath));
+        if (thumbData != null) {
+            if( DEBUG ) System.out.println("USE DISK VERSION FOR " + srcPath.getName());
+            img = ImageCoder.getInstance().decodeImage(thumbData, srcPath, listener);
+            putInMemoryCache(key, img);
         }
         return img;
     }
@@ -325,183 +408,158 @@ public class ThumbnailCache implements ThumbnailDecoder, ImageTranscoder {
     public DecodedImage add(File srcPath, double scaleFactor, IIOReadListener listener) throws IOException {
         if( DEBUG ) System.out.println("CACHE ADD  = " + srcPath.getName() );
         DecodedImage img = null;
-        File cachePath = resolveDBPath(srcPath, scaleFactor);
+        PackKey key = resolveKey(srcPath, scaleFactor);
         // call get first - to make sure we don't need to do extra work
         // get will throw an exception if the image exists but is invalid so we overwrite
         // existing images if it fails
         try {
-            img = get(srcPath, cachePath, listener);
+            img = get(srcPath, key, listener);
+            if (img != null)
+                return img;
         } catch (IOException e) {
             // If this fails, fall through and decode from source
         }
 
-        img = ImageCoder.getInstance().decodeImage(srcPath,null,scaleFactor,0,0,ImageTranscoder.SCALE_SUBSAMPLE,listener);
+        // Use the embedded EXIF thumbnail if it is big enough, otherwise decode the image
+        img = ImageCoder.getInstance().decodeEmbeddedThumbnail(srcPath, scaleFactor, 0, 0);
+        if (img == null)
+            img = ImageCoder.getInstance().decodeImage(srcPath,null,scaleFactor,0,0,ImageTranscoder.SCALE_SUBSAMPLE_BILINEAR,listener);
         // put in MRUCache first - if we have disk IO problems we still get some
         // caching
-        putInMemoryCache(cachePath, img);
+        putInMemoryCache(key, img);
         // we have a thumb that can be used - catch exceptions and report errors
         // but retun the valid thumb
-        writeThumb(cachePath, img, srcPath.lastModified());
+        writeThumb(key, img, getSourceStamp(srcPath));
 
         return img;
     }
 
 
     /**
-     * Write the thumbnail image setting lastException if there was an error.
-     * @param cachePath
+     * Write the thumbnail image to the disk store, logging any errors.
+     * @param key
      * @param img
      */
-    private void writeThumb(File cachePath, DecodedImage img, long srcLastModified) {
-        // Override close() as a noop so image encoding does not close us.
-        class UncloseableRandomAccessFile extends RandomAccessFile {
-            public UncloseableRandomAccessFile(File file, String mode) throws FileNotFoundException {
-                super(file, mode);
-            }
-            public void close() throws IOException {
-                // Do nothing
-            }
-            public void reallyClose() throws IOException {
-                super.close();
-            }
-        };
-
-        UncloseableRandomAccessFile thumbRAF = null;
-        File tmpFile = null;
+    private void writeThumb(PackKey key, DecodedImage img, long srcStamp) {
+        PackStore store = getPackStore();
+        if (store == null)
+            return;
         try {
-            if( DEBUG ) System.out.println("MRU PUT " + cachePath.getName());
-            File parent = cachePath.getParentFile();
-            if( parent != null ) parent.mkdirs();
-            // use tmpFile to (hopefully) get atomic create operation for thumb
-
-            tmpFile = File.createTempFile(CACHE_FILE_PREFIX, CACHE_FILE_SUFFIX, parent);
-            thumbRAF = new UncloseableRandomAccessFile(tmpFile, "rw");
-            // Encoding will attempt to close thumbRAF, but can't.
-            // So we can still append metadata and then close.
-            // We want to pass a RAF instead of OutputStream here because it is much more efficient
-            // (avoids ImageIO temp files)
-            ImageCoder.getInstance().encodeImage(img, ImageTranscoder.FORMAT_JPEG, thumbRAF);
-            long now = System.currentTimeMillis();
-            MetaData md = new MetaData(srcLastModified, now );
-            md.appendMetaData(thumbRAF);
-            if( DEBUG ) System.out.print("RENAME...");
-            thumbRAF.reallyClose();
-            // delete the tmpfile if it exists - rename may fail to overwrite
-            // file.
-            if( cachePath.exists() ) cachePath.delete();
-            tmpFile.renameTo(cachePath);
-            // set to null so no close/delete is done in finally
-            thumbRAF = null;
-
-            if (DEBUG ) System.out.println("OK");
+            if( DEBUG ) System.out.println("DISK PUT " + key);
+            ByteArrayOutputStream thumbData = new ByteArrayOutputStream();
+            ImageCoder.getInstance().encodeImage(img, ImageTranscoder.FORMAT_JPEG, thumbData);
+            store.write(key, srcStamp, thumbData.toByteArray());
+            if (compactor.isSweepNeeded())
+                scheduleClean();
         } catch (IOException ex ) {
             if( DEBUG ) ex.printStackTrace();
             PhotoPulse.logException(ex);
-        } finally {
-            // clean up the thumb file if necessary
-            if( thumbRAF != null ) {
-                try {
-                    thumbRAF.reallyClose();
-                    tmpFile.delete();
-                } catch (IOException ex ) {
-                    PhotoPulse.logException(ex);
-                }
-            }
         }
     }
 
 
-    private File resolveDBPath(File realPath, double scaleFactor) {
-        String md5 = getFileMD5(realPath, scaleFactor);
-        return new File(_root, md5 + ".jpg");
+    private PackKey resolveKey(File realPath, double scaleFactor) {
+        if (fingerprintIndex != null) {
+            try {
+                return resolveContentKey(fingerprintIndex.getFingerprint(realPath), scaleFactor);
+            } catch (IOException ex) {
+                // Can't read the file, fall back to the path
+                PhotoPulse.logException(ex);
+            }
+        }
+        return resolvePathKey(realPath, scaleFactor);
     }
 
-    private String getFileMD5(File f, double scaleFactor) {
-        String s = f.getAbsolutePath() + File.separator + scaleFactor;
-
-        MessageDigest md = null;
-        try {
-            md = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException ex) {
-            assert(false);
+    /**
+     * Resolve the key without reading the file.
+     * @return key, or null if the files fingerprint is not already known
+     */
+    private PackKey resolveKnownKey(File realPath, double scaleFactor) {
+        if (fingerprintIndex != null) {
+            PackKey fingerprint = fingerprintIndex.getKnownFingerprint(realPath);
+            return fingerprint != null ? resolveContentKey(fingerprint, scaleFactor) : null;
         }
+        return resolvePathKey(realPath, scaleFactor);
+    }
 
-        byte[] digested = null;
-        try {
-            digested = md.digest(s.getBytes("UTF-8"));
-        } catch (UnsupportedEncodingException e) {
-            assert(false);
-        }
+    private PackKey resolvePathKey(File realPath, double scaleFactor) {
+        return PackKey.digest(realPath.getAbsolutePath() + File.separator + scaleFactor);
+    }
 
-        StringBuilder sb = new StringBuilder();
-        for (int x = 0; x < digested.length; x++) {
-            sb.append(Character.forDigit((digested[x]>>>4) & 0x0f, 16));
-            sb.append(Character.forDigit(digested[x] & 0x0f, 16));
-        }
-        return sb.toString();
+    private PackKey resolveContentKey(PackKey fingerprint, double scaleFactor) {
+        return PackKey.digest(fingerprint + File.separator + scaleFactor);
+    }
+
+    /**
+     * Stamp used to detect stale thumbnails.
+     * Content keyed thumbnails can't be stale unless the fingerprint collides, so use the size as a sanity check.
+     */
+    private long getSourceStamp(File srcPath) {
+        return fingerprintIndex != null ? srcPath.length() : srcPath.lastModified();
     }
 
 
     /**
-     * Calculate the size of the cache directory and delete oldest files until size is
-     * less than max size. This is an expensive (lots of IO - may take a long time)
-     * operation. This method is synchronized to prevent it from running concurrently in two
-     * threads. It may still execute concurrently in 2 vms or if two different instances use the same cache
-     *  - resulting in a larger number
-     * of files being cleaned out.
+     * Evict least recently used thumbnails until the disk cache is less than max size,
+     * reclaim space from evicted thumbnails and write out batched access times.
+     * The cost is proportional to the number of thumbnails evicted, not the size of the cache.
+     * This does not block thumbnail decoding for the duration of the sweep,
+     * it is normally run on the cleaner thread.
      * @param headRoom (leave  headRoom bytes of space when cleaning up)
      */
-    public synchronized void clean(long headRoom) {
-        File [] files = _root.listFiles();
-        long maxSize = maxBytes - headRoom;
-        long sz = 0L;
-        for( int x=0;x<files.length;x++) {
-            sz += files[x].length();
-        }
-        if (sz > maxSize ) {
-            Comparator<File> comp = new Comparator<File>() {
-                public final int compare(File f1, File f2) {
-                    long l1 = f1.lastModified();
-                    long l2 = f2.lastModified();
-                    if(l1==l2) return 0;
-                    if( l1<l2) return -1;
-                    return 1;
-                }
-                public final boolean equals(Object obj) {
-                    return obj == this;
-                }
-            };
-            Arrays.sort(files, comp);
-            int idx = 0;
-            while( sz > maxBytes && idx < files.length ) {
-                File f = files[idx++];
-                if( DEBUG) System.out.println("DELETE " + f.getName());
-                if( !isInMemoryCache(f)) {
-                    sz -= f.length();
-                    f.delete();
-                }
-            }
+    public void clean(long headRoom) {
+        if (getPackStore() == null)
+            return;
+        try {
+            compactor.sweep(headRoom);
+            if (fingerprintIndex != null)
+                fingerprintIndex.flush();
+            if( DEBUG ) System.out.println("CLEAN " + compactor);
+        } catch (IOException ex) {
+            PhotoPulse.logException(ex);
         }
-
     }
 
     private Runnable getCleaner() {
         return new Runnable() {
             public void run() {
-                clean(1000000L);
+                clean(CLEAN_HEADROOM_BYTES);
             }
         };
     }
 
-    private boolean isInMemoryCache(File file) {
-        return memoryCache.containsKey(file);
+    /**
+     * Clean on the cleaner thread as soon as possible, if not already scheduled
+     */
+    private void scheduleClean() {
+        synchronized (ThumbnailCache.class) {
+            if (clockDaemon == null || isCleanScheduled)
+                return;
+            isCleanScheduled = true;
+            clockDaemon.executeAfterDelay(0, new Runnable() {
+                public void run() {
+                    synchronized (ThumbnailCache.class) {
+                        isCleanScheduled = false;
+                    }
+                    clean(CLEAN_HEADROOM_BYTES);
+                }
+            });
+        }
+    }
+
+    private boolean isInMemoryCache(PackKey key) {
+        return memoryCache.containsKey(key);
     }
 
-    private void putInMemoryCache(File key, DecodedImage image) {
+    private void putInMemoryCache(PackKey key, DecodedImage image) {
         memoryCache.put(key, image);
     }
 
-    private DecodedImage getFromMemoryCache(File key) {
-        return memoryCache.get(key);
+    private DecodedImage getFromMemoryCache(PackKey key) {
+        DecodedImage image = memoryCache.get(key);
+        // Keep the disk access order true, memory hits are accesses too
+        if (image != null && packStore != null)
+            packStore.touch(key);
+        return image;
     }
 }
@@ -67,6 +67,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.NoSuchElementException;
 
@@ -445,6 +446,19 @@ public class ModelReader {
         if (sz > 0) {
             errors = new HashSet<File>();
             validated = new HashMap<File,Photo>();
+
+            // Validate all the distinct photo files up front, in parallel
+            LinkedHashSet<File> photoFileSet = new LinkedHashSet<File>();
+            for (int x = 0; x < sz; x++)
+                photoFileSet.add(getPhotoFile((Element)imageList.item(x)));
+            File[] photoFiles = photoFileSet.toArray(new File[photoFileSet.size()]);
+            Photo[] photos = ImageCoder.getInstance().validatePhotos(photoFiles);
+            for (int i = 0; i < photoFiles.length; i++) {
+                if (photos[i] == null)
+                    errors.add(photoFiles[i]);
+                else
+                    validated.put(photoFiles[i], photos[i]);
+            }
         }
         nextPhoto: for (int x = 0; x < sz; x++) {
             Element n = (Element)imageList.item(x);
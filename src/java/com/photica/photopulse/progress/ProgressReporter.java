@@ -30,26 +30,41 @@ import java.util.Stack;
 
 /**
  * Global singleton progress reporter.
+ * A thread may install its own indicator with setThreadProgressIndicator,
+ * so concurrent generations each track their own progress and cancellation.
+ * Threads without their own indicator share the global one.
  */
 public class ProgressReporter {
 
-    private static ProgressIndicator progressIndicator;
+    private static final ProgressState globalState = new ProgressState();
+    private static final ThreadLocal<ProgressState> threadState = new ThreadLocal<ProgressState>();
 
-    private static float absoluteProgress;
-    private static float progressPortionBase;
-    private static float progressPortion;
-    private static Stack<ProgressPortion> progressStack = new Stack<ProgressPortion>();
+    private static ProgressState getState() {
+        ProgressState state = threadState.get();
+        return state != null ? state : globalState;
+    }
 
     /**
      * Register a ProgressIndicator for the reporter to use.
      * Set to null when finished.
      */
     public static void setProgressIndicator(ProgressIndicator pi) {
-        progressIndicator = pi;
-        progressPortionBase = 0;
-        progressPortion = 1.0f;
-        absoluteProgress = 0;
-        progressStack.clear();
+        globalState.reset(pi);
+    }
+
+    /**
+     * Register a ProgressIndicator used only by the calling thread,
+     * overriding the global indicator for that thread.
+     * Set to null when finished.
+     */
+    public static void setThreadProgressIndicator(ProgressIndicator pi) {
+        if (pi == null)
+            threadState.remove();
+        else {
+            ProgressState state = new ProgressState();
+            state.reset(pi);
+            threadState.set(state);
+        }
     }
 
     /**
@@ -57,41 +72,47 @@ public class ProgressReporter {
      * @param portion Percentage 0.0->1.0
      */
     public static void pushProgressPortion(float portion) {
-        progressStack.push(new ProgressPortion(progressPortionBase, portion));
-        progressPortionBase = absoluteProgress;
+        ProgressState state = getState();
+        state.progressStack.push(new ProgressPortion(state.progressPortionBase, portion));
+        state.progressPortionBase = state.absoluteProgress;
 
         // Multiply in portion
         if (portion != 0)
-            progressPortion *= portion;
+            state.progressPortion *= portion;
     }
 
     public static void popProgressPortion() {
-        ProgressPortion popPortion = progressStack.pop();
+        ProgressState state = getState();
+        ProgressPortion popPortion = state.progressStack.pop();
         float portion = popPortion.getPortion();
 
         // Update to 100% of current portion
         if (portion != 0)
-            updateProgress(1.0f);
+            updateProgress(state, 1.0f);
 
         // Reset base
-        progressPortionBase = popPortion.getBase();
+        state.progressPortionBase = popPortion.getBase();
         // Divide out portion
         if (portion != 0)
-            progressPortion /= portion;
+            state.progressPortion /= portion;
     }
 
     /**
      * Report progress as a percentage of the current portion - 0.0->1.0
      */
     public static void updateProgress(float progress) {
-        absoluteProgress = progressPortionBase + (progress * progressPortion);
-        ProgressIndicator pi = progressIndicator;
+        updateProgress(getState(), progress);
+    }
+
+    private static void updateProgress(ProgressState state, float progress) {
+        state.absoluteProgress = state.progressPortionBase + (progress * state.progressPortion);
+        ProgressIndicator pi = state.progressIndicator;
         if (pi != null)
-            pi.updateProgress(absoluteProgress);
+            pi.updateProgress(state.absoluteProgress);
     }
 
     public static boolean isCanceled() {
-        ProgressIndicator pi = progressIndicator;
+        ProgressIndicator pi = getState().progressIndicator;
         if (pi != null)
             return pi.isCanceled();
         else
@@ -99,6 +120,23 @@ public class ProgressReporter {
     }
 }
 
+class ProgressState {
+    ProgressIndicator progressIndicator;
+
+    float absoluteProgress;
+    float progressPortionBase;
+    float progressPortion;
+    Stack<ProgressPortion> progressStack = new Stack<ProgressPortion>();
+
+    void reset(ProgressIndicator pi) {
+        progressIndicator = pi;
+        progressPortionBase = 0;
+        progressPortion = 1.0f;
+        absoluteProgress = 0;
+        progressStack.clear();
+    }
+}
+
 class ProgressPortion {
     private float base;
     private float portion;
@@ -67,6 +67,9 @@ public class Skin {
     private String name;
     private String displayName;
 
+    // Number of outstanding load() calls, so concurrent shows can share a skin
+    private int loadCount;
+
     // Dimensions in pixels (stored in twips internally)
     Skin(SkinSet skinSet, String skinName, String displayName, Map<String,String> skinParams,
             SkinElement[] foregroundElements, SkinElement[] backgroundElements, SkinExternal[] externalElements,
@@ -152,8 +155,15 @@ public class Skin {
     /**
      * This should be called before using a skin.
      * The skin should be unloaded when finished.
+     * Loads are counted, the elements are only loaded by the first load().
      */
-    public void load() throws SkinException {
+    public synchronized void load() throws SkinException {
+        if (loadCount == 0)
+            loadElements();
+        loadCount++;
+    }
+
+    private void loadElements() throws SkinException {
         if (foregroundElements != null) {
             for (int i = 0; i < foregroundElements.length; i++)
                 foregroundElements[i].load();
@@ -171,8 +181,16 @@ public class Skin {
     /**
      * This should be called after using a skin.
      * The skin files may still remain cached.
+     * The elements are only unloaded by the last matching unload().
      */
-    public void unload() {
+    public synchronized void unload() {
+        if (loadCount == 0)
+            return;
+        if (--loadCount == 0)
+            unloadElements();
+    }
+
+    private void unloadElements() {
         if (foregroundElements != null) {
             for (int i = 0; i < foregroundElements.length; i++)
                 foregroundElements[i].unload();
@@ -191,7 +209,7 @@ public class Skin {
      * Should be called once to init a skin, before accessing sizes/name.
      * May safely be called more than once
      */
-    public void init() throws SkinException {
+    public synchronized void init() throws SkinException {
         // If no size, compute from background or foreground skin element
         if (skinSize == null) {
             SkinElement element = backgroundElements != null ? backgroundElements[0] : foregroundElements[0];
@@ -200,7 +218,9 @@ public class Skin {
                 Rectangle2D rect = element.getNativeBounds();
                 skinSize = new Dimension((int)rect.getWidth(), (int)rect.getHeight());
             } finally {
-                element.unload();
+                // Leave the element alone if the skin is in use
+                if (loadCount == 0)
+                    element.unload();
             }
         }
 
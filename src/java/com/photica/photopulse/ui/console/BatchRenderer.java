@@ -0,0 +1,411 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.ui.console;
+
+import EDU.oswego.cs.dl.util.concurrent.BoundedBuffer;
+import EDU.oswego.cs.dl.util.concurrent.PooledExecutor;
+import EDU.oswego.cs.dl.util.concurrent.ThreadFactory;
+import com.iv.flash.util.IVException;
+import com.photica.photopulse.PhotoPulse;
+import com.photica.photopulse.exporter.ExportException;
+import com.photica.photopulse.exporter.ExporterFactory;
+import com.photica.photopulse.exporter.ShowExporter;
+import com.photica.photopulse.flash.GenerationContext;
+import com.photica.photopulse.flash.ShowGenerator;
+import com.photica.photopulse.flash.context.MP3Data;
+import com.photica.photopulse.imageio.ImageCoder;
+import com.photica.photopulse.model.MP3;
+import com.photica.photopulse.model.ShowModel;
+import com.photica.photopulse.model.io.InvalidModelException;
+import com.photica.photopulse.model.io.ModelReader;
+import com.photica.photopulse.progress.ProgressIndicator;
+import com.photica.photopulse.skin.SkinException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+
+/**
+ * Long running batch mode, generates shows from a queue of job descriptors in a single JVM
+ * so JGenerator initialization, skins and codecs are only loaded once.
+ * <p>
+ * A job descriptor is a line of tab separated fields:
+ * <pre>model.ppp [type [output]]</pre>
+ * type is one of exe, htm, swf, mht or wmv. If type or output are omitted the values
+ * saved in the model are used. Blank lines and lines beginning with '#' are ignored.
+ * <p>
+ * Jobs are read from a stream (one job per line) or from a spool directory.
+ * In a spool directory each <code>*.job</code> file holds one job, the file is renamed to
+ * <code>.running</code> while it is processed and then to <code>.done</code> or <code>.failed</code>.
+ * <p>
+ * Up to N jobs are generated concurrently, each with its own GenerationContext
+ * and error log. One line of JSON is printed per finished job, errors never exit the JVM.
+ */
+public class BatchRenderer {
+
+    public static final String JOB_SUFFIX = ".job";
+    private static final String RUNNING_SUFFIX = ".running";
+    private static final String DONE_SUFFIX = ".done";
+    private static final String FAILED_SUFFIX = ".failed";
+
+    private static final char FIELD_SEPARATOR = '\t';
+
+    private final PooledExecutor executor;
+    private final PrintStream out;
+
+    /**
+     * @param threads Number of shows to generate concurrently
+     * @param out Job results are printed here
+     */
+    public BatchRenderer(int threads, PrintStream out) {
+        this.out = out;
+        // Block the job reader when all threads are busy, so the queue is consumed as jobs complete
+        executor = new PooledExecutor(new BoundedBuffer(threads), threads);
+        executor.setMinimumPoolSize(threads);
+        executor.waitWhenBlocked();
+        executor.setThreadFactory(new ThreadFactory() {
+            private int count = 0;
+            public synchronized Thread newThread(Runnable command) {
+                return new Thread(command, "BatchRenderer-" + (++count));
+            }
+        });
+    }
+
+    /**
+     * Generate all jobs read from reader and wait for them to complete.
+     * @param source Describes reader in results, e.g. "stdin"
+     */
+    public void processStream(String source, Reader reader) throws IOException, InterruptedException {
+        BufferedReader br = new BufferedReader(reader);
+        String line;
+        int lineNumber = 0;
+        while ((line = br.readLine()) != null) {
+            lineNumber++;
+            if (isJobLine(line))
+                submit(new Job(source + ":" + lineNumber, line, null));
+        }
+        shutdown();
+    }
+
+    /**
+     * Poll directory for job files and generate them. Never returns unless interrupted.
+     * @param pollMillis How long to wait between scans of an empty directory
+     */
+    public void processDirectory(File directory, long pollMillis) throws InterruptedException {
+        FilenameFilter filter = new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(JOB_SUFFIX);
+            }
+        };
+        while (true) {
+            String[] names = directory.list(filter);
+            if (names == null || names.length == 0) {
+                Thread.sleep(pollMillis);
+                continue;
+            }
+            // Process in name order
+            Arrays.sort(names);
+            for (String name : names) {
+                // Claim the job, another batch process may be sharing the directory
+                File jobFile = new File(directory, name);
+                File runningFile = new File(directory, name + RUNNING_SUFFIX);
+                if (!jobFile.renameTo(runningFile))
+                    continue;
+
+                String jobName = name.substring(0, name.length() - JOB_SUFFIX.length());
+                try {
+                    submit(new Job(jobName, readJobLine(runningFile), runningFile));
+                } catch (IOException e) {
+                    Job job = new Job(jobName, "", runningFile);
+                    job.fail(ConsoleMessages.getMessage(ConsoleMessages.IOEXCEPTION, e.getMessage()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Wait for submitted jobs to complete and stop the worker threads.
+     */
+    public void shutdown() throws InterruptedException {
+        executor.shutdownAfterProcessingCurrentlyQueuedTasks();
+        executor.awaitTerminationAfterShutdown();
+    }
+
+    private void submit(Job job) throws InterruptedException {
+        executor.execute(job);
+    }
+
+    private static boolean isJobLine(String line) {
+        String trimmed = line.trim();
+        return trimmed.length() > 0 && trimmed.charAt(0) != '#';
+    }
+
+    // Return first job line in file, or an empty string
+    private static String readJobLine(File file) throws IOException {
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (isJobLine(line))
+                    return line;
+            }
+            return "";
+        } finally {
+            br.close();
+        }
+    }
+
+    private synchronized void report(String json) {
+        out.println(json);
+        out.flush();
+    }
+
+    /**
+     * Tracks progress of a single job.
+     */
+    private static class JobProgressIndicator implements ProgressIndicator {
+        private volatile float progress;
+
+        public void updateProgress(float progress) {
+            this.progress = progress;
+        }
+
+        public boolean isCanceled() {
+            return false;
+        }
+
+        public float getProgress() {
+            return progress;
+        }
+    }
+
+    private class Job implements Runnable {
+        private final String name;
+        private final String line;
+        private final File jobFile;
+
+        private final long queueTime = System.currentTimeMillis();
+        private long startTime;
+        private long loadMillis;
+        private long generateMillis;
+
+        private File modelFile;
+        private ShowModel.ShowType showType;
+        private File exportFile;
+
+        private final JobProgressIndicator progressIndicator = new JobProgressIndicator();
+
+        public Job(String name, String line, File jobFile) {
+            this.name = name;
+            this.line = line;
+            this.jobFile = jobFile;
+        }
+
+        public void run() {
+            startTime = System.currentTimeMillis();
+            try {
+                String error = generate();
+                if (error == null)
+                    succeed();
+                else
+                    fail(error);
+            } catch (RuntimeException e) {
+                PhotoPulse.logException(e);
+                fail(ConsoleMessages.getMessage(ConsoleMessages.IVEXCEPTION, String.valueOf(e)));
+            }
+        }
+
+        // Return error message, or null if show generated
+        private String generate() {
+            String[] fields = line.trim().split(String.valueOf(FIELD_SEPARATOR));
+            if (fields.length > 3)
+                return ConsoleMessages.getMessage(ConsoleMessages.INVALID_JOB, line);
+            modelFile = new File(fields[0].trim());
+            if (fields.length > 1) {
+                try {
+                    showType = ShowModel.ShowType.valueOf(fields[1].trim().toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    return ConsoleMessages.getMessage(ConsoleMessages.INVALID_ARG, fields[1]);
+                }
+            }
+            if (fields.length > 2)
+                exportFile = new File(fields[2].trim());
+
+            // Load model and MP3
+            ShowModel model;
+            MP3Data mp3Data = null;
+            try {
+                model = new ModelReader().process(modelFile);
+                MP3 mp3 = model.getMP3();
+                if (mp3 != null && model.getMP3Mode() != ShowModel.MP3Mode.NONE)
+                    mp3Data = new MP3Data(model.getFrameRate(), mp3.getFile());
+            } catch (FileNotFoundException e) {
+                return ConsoleMessages.getMessage(ConsoleMessages.IOEXCEPTION, e.getMessage());
+            } catch (InvalidModelException e) {
+                return ConsoleMessages.getMessage(ConsoleMessages.INVALID_MODEL, modelFile, e.getMessage());
+            } catch (IOException e) {
+                return ConsoleMessages.getMessage(ConsoleMessages.IOEXCEPTION, e.getMessage());
+            } catch (URISyntaxException e) {
+                return ConsoleMessages.getMessage(ConsoleMessages.INVALID_MP3, e.getMessage());
+            } catch (IVException e) {
+                return ConsoleMessages.getMessage(ConsoleMessages.INVALID_MP3, e.getMessage());
+            }
+
+            // Job fields override what was in the model
+            if (showType != null)
+                model.setShowType(showType);
+            else
+                showType = model.getShowType();
+            if (exportFile != null) {
+                model.setExportFile(exportFile);
+                model.setExportDirectory(exportFile.getParentFile());
+            }
+            else
+                exportFile = model.getExportFile();
+            if (exportFile == null)
+                return ConsoleMessages.getMessage(ConsoleMessages.NO_OUTPUT);
+
+            loadMillis = System.currentTimeMillis() - startTime;
+
+            // Generate Flash
+            try {
+                ShowExporter exporter = ExporterFactory.getExporter(showType, exportFile);
+                StringWriter swLogErrors = new StringWriter();
+                GenerationContext genContext = new GenerationContext(swLogErrors, progressIndicator);
+                boolean isGenerated = ShowGenerator.generate(model, mp3Data, exporter, ImageCoder.getInstance(), genContext);
+                generateMillis = System.currentTimeMillis() - startTime - loadMillis;
+                if (!isGenerated) {
+                    String errors = swLogErrors.toString();
+                    return ConsoleMessages.getMessage(ConsoleMessages.LOGMESSAGES, errors.length() > 0 ? errors : "");
+                }
+                return null;
+            } catch (SkinException e) {
+                return ConsoleMessages.getMessage(ConsoleMessages.IVEXCEPTION, e.getMessage());
+            } catch (IVException e) {
+                return ConsoleMessages.getMessage(ConsoleMessages.IVEXCEPTION, e.getMessage());
+            } catch (ExportException e) {
+                return ConsoleMessages.getMessage(ConsoleMessages.IVEXCEPTION, e.getMessage());
+            } catch (IOException e) {
+                return ConsoleMessages.getMessage(ConsoleMessages.IOEXCEPTION, e.getMessage());
+            }
+        }
+
+        private void succeed() {
+            finishJobFile(DONE_SUFFIX);
+            StringBuilder sb = beginReport("ok");
+            appendField(sb, "outputBytes", exportFile.length());
+            report(sb.append('}').toString());
+        }
+
+        public void fail(String error) {
+            finishJobFile(FAILED_SUFFIX);
+            StringBuilder sb = beginReport("failed");
+            appendField(sb, "progress", progressIndicator.getProgress());
+            appendField(sb, "error", error);
+            report(sb.append('}').toString());
+        }
+
+        private void finishJobFile(String suffix) {
+            if (jobFile == null)
+                return;
+            String path = jobFile.getPath();
+            File finishedFile = new File(path.substring(0, path.length() - RUNNING_SUFFIX.length()) + suffix);
+            finishedFile.delete();
+            jobFile.renameTo(finishedFile);
+        }
+
+        private StringBuilder beginReport(String status) {
+            long endTime = System.currentTimeMillis();
+            if (startTime == 0)
+                startTime = endTime;
+            StringBuilder sb = new StringBuilder("{");
+            appendField(sb, "job", name);
+            appendField(sb, "status", status);
+            appendField(sb, "model", modelFile);
+            appendField(sb, "type", showType);
+            appendField(sb, "output", exportFile);
+            appendField(sb, "thread", Thread.currentThread().getName());
+            appendField(sb, "queueMillis", startTime - queueTime);
+            appendField(sb, "loadMillis", loadMillis);
+            appendField(sb, "generateMillis", generateMillis);
+            appendField(sb, "totalMillis", endTime - startTime);
+            return sb;
+        }
+    }
+
+    // Append a JSON name/value pair, numbers are unquoted and null values are omitted
+    private static void appendField(StringBuilder sb, String name, Object value) {
+        if (value == null)
+            return;
+        if (sb.length() > 1)
+            sb.append(',');
+        appendString(sb, name);
+        sb.append(':');
+        if (value instanceof Number)
+            sb.append(value);
+        else
+            appendString(sb, value.toString());
+    }
+
+    private static void appendString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (c < ' ')
+                    sb.append(String.format("\\u%04x", (int)c));
+                else
+                    sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -49,12 +49,13 @@ public class ConsoleMessages extends ListResourceBundle {
     public static final String NO_IMAGEDIR = "NO_IMAGEDIR";
     public static final String NO_IMAGES = "NO_IMAGES";
     public static final String INVALID_SKIN = "INVALID_SKIN";
+    public static final String INVALID_JOB = "INVALID_JOB";
 
     public static final String UIERRORTITLE = "UIERRORTITLE";
 
     private static final Object[][] contents = {
         { USAGE,
-            "Usage: PhotoPulse [-model <model.xml>] [-dump <dump.xml>] (-exe <file.exe> | -swf <file.swf> | -htm <file.htm> | -mht <file.mht>) -imagedir <directory> [-mp3 <file.mp3>] [-framerate <integer>] [-bgcolor <color>] [-skin <uri>] [-effectSpeed <double>] [-transSpeed <double>]" },
+            "Usage: PhotoPulse [-model <model.xml>] [-dump <dump.xml>] (-exe <file.exe> | -swf <file.swf> | -htm <file.htm> | -mht <file.mht>) -imagedir <directory> [-mp3 <file.mp3>] [-framerate <integer>] [-bgcolor <color>] [-skin <uri>] [-effectSpeed <double>] [-transSpeed <double>]\n       PhotoPulse -batch (<directory> | -) [-threads <integer>]" },
         { INVALID_ARG,
             "Invalid argument, {0}" },
         { NO_OUTPUT,
@@ -75,6 +76,8 @@ public class ConsoleMessages extends ListResourceBundle {
             "No valid images in directory" },
         { INVALID_SKIN,
             "Failed to load skin.\n{0}" },
+        { INVALID_JOB,
+            "Invalid batch job, {0}" },
 
         { UIERRORTITLE,
             "PhotoPulse Error" },
@@ -54,6 +54,7 @@ import java.awt.Component;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.StringWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -95,11 +96,23 @@ public class Main {
     private static final String ARG_SKIN = "-skin";
     private static final String ARG_MODEL = "-model";
     private static final String ARG_DUMP = "-dump";
+    private static final String ARG_BATCH = "-batch";
+    private static final String ARG_THREADS = "-threads";
+
+    // Batch argument to read jobs from stdin
+    private static final String BATCH_STDIN = "-";
+    // How often a batch directory is scanned for new jobs
+    private static final long BATCH_POLL_MILLIS = 2000;
 
     public static void main(String args[]) {
 
         Map<String,String> argMap = parseCommandLine(args);
 
+        if (argMap.containsKey(ARG_BATCH)) {
+            runBatch(argMap);
+            return;
+        }
+
         ShowModel model = null;
         MP3Data mp3Data = null;
 
@@ -318,6 +331,42 @@ public class Main {
         }
     }
 
+    /**
+     * Generate shows from the job queue specified by ARG_BATCH, see BatchRenderer.
+     * Reading from stdin exits once all jobs are processed, a directory is processed until killed.
+     */
+    private static void runBatch(Map<String,String> argMap) {
+        int threads = 1;
+        String arg;
+        if ((arg = argMap.get(ARG_THREADS)) != null) {
+            try {
+                threads = Integer.parseInt(arg);
+            } catch (NumberFormatException e) {
+                threads = 0;
+            }
+            if (threads < 1)
+                reportFatalError(null, ConsoleMessages.getMessage(ConsoleMessages.INVALID_ARG, arg));
+        }
+
+        BatchRenderer renderer = new BatchRenderer(threads, System.out);
+        String batch = argMap.get(ARG_BATCH);
+        try {
+            if (BATCH_STDIN.equals(batch))
+                renderer.processStream("stdin", new InputStreamReader(System.in));
+            else {
+                File directory = new File(batch);
+                if (!directory.isDirectory())
+                    reportFatalError(null, ConsoleMessages.getMessage(ConsoleMessages.INVALID_ARG, batch));
+                renderer.processDirectory(directory, BATCH_POLL_MILLIS);
+            }
+        } catch (IOException e) {
+            reportFatalError(null, ConsoleMessages.getMessage(ConsoleMessages.IOEXCEPTION, e.getMessage()));
+        } catch (InterruptedException e) {
+            reportFatalError(null, ConsoleMessages.getMessage(ConsoleMessages.IOEXCEPTION, e.getMessage()));
+        }
+        System.exit(0);
+    }
+
     private static void reportFatalError(final JFrame frmParent, final String strMsg) {
         if (frmParent != null) {
             SwingUtilities.invokeLater(new Runnable() {
@@ -67,6 +67,10 @@ public class ThumbnailAccessory extends JLabel implements PropertyChangeListener
     }
 
     public void setImageFile(File imageFile) {
+        // Stop loading the previous thumbnail, it is resumed if that file is selected again
+        if (getIcon() instanceof DecodedImageIcon)
+            ((DecodedImageIcon)getIcon()).cancel();
+
         if (imageFile != null) {
             DecodedImageIcon icon = thumbnailCache.get(imageFile);
             if (icon == null) {
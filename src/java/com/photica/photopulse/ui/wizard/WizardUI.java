@@ -35,6 +35,7 @@ import com.photica.photopulse.exporter.ExporterFactory;
 import com.photica.photopulse.exporter.ShowExporter;
 import com.photica.photopulse.flash.ShowGenerator;
 import com.photica.photopulse.flash.context.MP3Data;
+import com.photica.photopulse.imageio.DecodedImageIcon;
 import com.photica.photopulse.imageio.ImageCoder;
 import com.photica.photopulse.model.MP3;
 import com.photica.photopulse.model.Photo;
@@ -775,6 +776,9 @@ public class WizardUI extends JFrame {
     private void clearModelIcons(ShowList showList) {
         for (PhotoEffects effects : showList) {
             Photo photo = effects.getPhoto();
+            // Don't keep decoding thumbnails that are being discarded
+            if (photo.getIcon() instanceof DecodedImageIcon)
+                ((DecodedImageIcon)photo.getIcon()).cancel();
             photo.clearIcon();
         }
     }
@@ -226,6 +226,8 @@ public class PhotoViewer extends JPanel {
 
         protected boolean removeEldestEntry(Map.Entry eldest) {
             boolean shouldRemove = size() >= CACHE_MAX;
+            if (shouldRemove)
+                ((DecodedImageIcon)eldest.getValue()).cancel();
             return shouldRemove;
         }
 
@@ -0,0 +1,108 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.benchmark;
+
+import com.photica.photopulse.model.Photo;
+import com.photica.photopulse.model.PhotoEffects;
+import com.photica.photopulse.model.ShowModel;
+import com.photica.photopulse.model.effects.EffectRegistry;
+import com.photica.photopulse.model.effects.PanZoomEffect;
+import com.photica.photopulse.skin.SkinManager;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Test images and settings shared by the benchmark suites.
+ * The images are the checked in ones generated by GenerateBenchmarkImages, so the suites run offline.
+ */
+public class BenchmarkEnvironment {
+    // Large photo, decoded and scaled to stage size
+    public static final String IMAGE_LARGE_JPEG = "photo-1600x1200.jpg";
+    // Photo about the size of the photos in a typical show
+    public static final String IMAGE_JPEG = "photo-800x600.jpg";
+    // Photo with transparent regions
+    public static final String IMAGE_PNG = "photo-800x600.png";
+
+    private File imageDir;
+    private File tempDir;
+    private int photoCount;
+
+    public BenchmarkEnvironment(File imageDir, File tempDir, int photoCount) {
+        this.imageDir = imageDir;
+        this.tempDir = tempDir;
+        this.photoCount = photoCount;
+    }
+
+    public File getImageFile(String name) throws IOException {
+        File file = new File(imageDir, name);
+        if (!file.isFile())
+            throw new IOException("Missing benchmark image " + file + ", run GenerateBenchmarkImages");
+        return file;
+    }
+
+    /**
+     * Directory for files written by benchmarks
+     */
+    public File getTempDir() {
+        return tempDir;
+    }
+
+    /**
+     * Number of photos in synthetic shows
+     */
+    public int getPhotoCount() {
+        return photoCount;
+    }
+
+    /**
+     * Create a synthetic show of getPhotoCount() photos, alternating the JPEG and PNG test images
+     * and a few effects. Every third photo gets a pan/zoom, which is high quality tweened.
+     */
+    public ShowModel createShowModel(ShowModel.ShowType showType, File exportFile) throws IOException {
+        ShowModel model = new ShowModel();
+        model.setSkin(SkinManager.BUILTIN_SMALL_43);
+        model.setShowType(showType);
+        model.setExportFile(exportFile);
+
+        PanZoomEffect panZoom = EffectRegistry.EFFECT_PanZoom.clonePanZoomEffect(new PanZoomEffect.Keyframe[] {
+            new PanZoomEffect.Keyframe(0, false, true, 0, 0, 1.0, 0),
+            new PanZoomEffect.Keyframe(1.0, true, false, 20, 10, 1.4, 5)
+        });
+        File jpegFile = getImageFile(IMAGE_JPEG);
+        File pngFile = getImageFile(IMAGE_PNG);
+        for (int i = 0; i < photoCount; i++) {
+            Photo photo = new Photo(i % 2 == 0 ? jpegFile : pngFile, 800, 600, false);
+            PhotoEffects effects = new PhotoEffects(photo, null,
+                    1.0, EffectRegistry.BEGINTRANS_Fade,
+                    1.0, i % 3 == 0 ? panZoom : EffectRegistry.EFFECT_None,
+                    3.0, EffectRegistry.ENDTRANS_Fade, 1.0, false, false);
+            model.getPhotoEffectList().add(effects);
+        }
+        return model;
+    }
+}
@@ -0,0 +1,186 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.benchmark;
+
+import com.photica.photopulse.PhotoPulse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Runs the benchmark suites and reports the average time per operation of each benchmark.
+ * Each benchmark is run for a number of untimed warmup iterations, then timed iterations.
+ * An iteration runs the operation repeatedly for at least the iteration time.
+ * The mean and standard deviation across timed iterations are reported.
+ * Sample usage (photopulse.home must be set, the build "benchmark" target does this):
+ * com.photica.photopulse.benchmark.BenchmarkRunner -images src/tools/benchmark/images -photos 12 Tween Show
+ * Trailing arguments select benchmarks whose suite or name contains any of them.
+ * <p>
+ * DeflateBenchmark and PixelReaderBenchmark are separate, focused comparisons of alternative implementations.
+ */
+public class BenchmarkRunner {
+    private static final BenchmarkSuite[] SUITES = {
+        new ImageCoderSuite(),
+        new BitmapEncodeSuite(),
+        new TweenSuite(),
+        new ShowSuite()
+    };
+
+    private int warmupIterations = 3;
+    private int iterations = 5;
+    private long iterationMillis = 1000;
+
+    public static void main(String args[]) throws Exception {
+        // Force initialization
+        Class<PhotoPulse> c = PhotoPulse.class;
+
+        BenchmarkRunner runner = new BenchmarkRunner();
+        File imageDir = new File("src/tools/benchmark/images");
+        int photoCount = 8;
+        List<String> filters = new ArrayList<String>();
+        for (int argc = 0; argc < args.length; argc++) {
+            if ("-warmup".equals(args[argc]) && argc + 1 < args.length)
+                runner.warmupIterations = Integer.parseInt(args[++argc]);
+            else if ("-iterations".equals(args[argc]) && argc + 1 < args.length)
+                runner.iterations = Math.max(1, Integer.parseInt(args[++argc]));
+            else if ("-time".equals(args[argc]) && argc + 1 < args.length)
+                runner.iterationMillis = Long.parseLong(args[++argc]);
+            else if ("-images".equals(args[argc]) && argc + 1 < args.length)
+                imageDir = new File(args[++argc]);
+            else if ("-photos".equals(args[argc]) && argc + 1 < args.length)
+                photoCount = Integer.parseInt(args[++argc]);
+            else if (args[argc].startsWith("-"))
+                usage();
+            else
+                filters.add(args[argc]);
+        }
+
+        File tempDir = createTempDir();
+        try {
+            BenchmarkEnvironment environment = new BenchmarkEnvironment(imageDir, tempDir, photoCount);
+            System.out.println("processors: " + Runtime.getRuntime().availableProcessors()
+                    + ", warmup: " + runner.warmupIterations + ", iterations: " + runner.iterations
+                    + " x " + runner.iterationMillis + "ms");
+            System.out.println("benchmark\tms/op\t+-\tops");
+            for (BenchmarkSuite suite : SUITES) {
+                for (Benchmark benchmark : suite.createBenchmarks(environment)) {
+                    String name = suite.getName() + "." + benchmark.getName();
+                    if (isSelected(name, filters))
+                        runner.run(name, benchmark);
+                }
+            }
+        } finally {
+            deleteDir(tempDir);
+        }
+        System.exit(0);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: [-warmup <n>] [-iterations <n>] [-time <ms>] [-images <dir>] [-photos <n>] [<filter> ...]");
+        System.exit(1);
+    }
+
+    private static boolean isSelected(String name, List<String> filters) {
+        if (filters.isEmpty())
+            return true;
+        for (String filter : filters) {
+            if (name.indexOf(filter) != -1)
+                return true;
+        }
+        return false;
+    }
+
+    private void run(String name, Benchmark benchmark) throws Exception {
+        benchmark.setUp();
+        try {
+            for (int i = 0; i < warmupIterations; i++)
+                runIteration(benchmark);
+
+            double[] millisPerOp = new double[iterations];
+            long totalOps = 0;
+            double sum = 0;
+            for (int i = 0; i < iterations; i++) {
+                long[] result = runIteration(benchmark);
+                millisPerOp[i] = result[0] / 1000000.0 / result[1];
+                totalOps += result[1];
+                sum += millisPerOp[i];
+            }
+            double mean = sum / iterations;
+            double variance = 0;
+            for (double value : millisPerOp)
+                variance += (value - mean) * (value - mean);
+            double deviation = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+
+            System.out.println(name + "\t" + format(mean) + "\t" + format(deviation) + "\t" + totalOps);
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    /**
+     * @return Elapsed nanoseconds and operation count
+     */
+    private long[] runIteration(Benchmark benchmark) throws Exception {
+        long iterationNanos = iterationMillis * 1000000;
+        long start = System.nanoTime();
+        long elapsed;
+        long ops = 0;
+        do {
+            benchmark.run();
+            ops++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        return new long[] { elapsed, ops };
+    }
+
+    private static String format(double millis) {
+        return String.valueOf(Math.round(millis * 1000) / 1000.0);
+    }
+
+    private static File createTempDir() throws IOException {
+        File tempDir = File.createTempFile("benchmark", "");
+        if (!tempDir.delete() || !tempDir.mkdir())
+            throw new IOException("Failed to create " + tempDir);
+        return tempDir;
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory())
+                    deleteDir(file);
+                else
+                    file.delete();
+            }
+        }
+        dir.delete();
+    }
+}
@@ -24,20 +24,15 @@
  *
  * ***** END LICENSE BLOCK ***** */
  
-package com.photica.photopulse.imageio.cache;
+package com.photica.photopulse.benchmark;
 
-import java.io.IOException;
+import java.util.List;
 
 /**
- * Thrown when the file metadata version is not compatable with the
- * class parsingthe file.
+ * Group of related benchmarks run by BenchmarkRunner
  */
-public class MetaDataVersionException extends IOException {
-    public MetaDataVersionException() {
-        super();
-    }
-    public MetaDataVersionException(String s ) {
-        super(s);
-    }
+public interface BenchmarkSuite {
+    public String getName();
 
+    public List<Benchmark> createBenchmarks(BenchmarkEnvironment environment) throws Exception;
 }
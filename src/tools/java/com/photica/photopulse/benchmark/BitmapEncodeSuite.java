@@ -0,0 +1,106 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.benchmark;
+
+import com.photica.photopulse.flash.output.EncodedBitmap;
+import com.photica.photopulse.imageio.DecodedImage;
+import com.photica.photopulse.imageio.ImageCoder;
+import com.photica.photopulse.imageio.ImageTranscoder;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * High quality bitmap encoding of a stage sized tween frame with transparent margins.
+ * Frames of PNG photos are encoded by ZlibBitmap, frames of JPEG photos by JPEG3Bitmap.
+ */
+public class BitmapEncodeSuite implements BenchmarkSuite {
+    private static final int STAGE_WIDTH = 640;
+    private static final int STAGE_HEIGHT = 480;
+
+    public String getName() {
+        return "BitmapEncode";
+    }
+
+    public List<Benchmark> createBenchmarks(BenchmarkEnvironment environment) throws Exception {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        benchmarks.add(new EncodeBenchmark("ZlibBitmap",
+                environment.getImageFile(BenchmarkEnvironment.IMAGE_PNG), ImageTranscoder.FORMAT_PNG));
+        benchmarks.add(new EncodeBenchmark("JPEG3Bitmap",
+                environment.getImageFile(BenchmarkEnvironment.IMAGE_JPEG), ImageTranscoder.FORMAT_JPEG));
+        return benchmarks;
+    }
+
+    private static class EncodeBenchmark extends Benchmark {
+        private File imageFile;
+        private String sourceFormat;
+        private DecodedImage frame;
+
+        EncodeBenchmark(String name, File imageFile, String sourceFormat) {
+            super(name);
+            this.imageFile = imageFile;
+            this.sourceFormat = sourceFormat;
+        }
+
+        public void setUp() throws Exception {
+            DecodedImage image = ImageCoder.getInstance().decodeImage(imageFile, null, 1.0, 0, 0, ImageTranscoder.SCALE_BILINEAR, null);
+            frame = new DecodedImage(imageFile, sourceFormat, renderFrame(image.getImage()));
+        }
+
+        public void run() throws Exception {
+            EncodedBitmap.encode(frame, true);
+        }
+
+        public void tearDown() {
+            frame = null;
+        }
+    }
+
+    /**
+     * Render the image scaled down and rotated slightly in the stage, as a pan/zoom tween frame would be
+     */
+    static BufferedImage renderFrame(BufferedImage image) {
+        BufferedImage frame = new BufferedImage(STAGE_WIDTH, STAGE_HEIGHT, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = frame.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            AffineTransform atx = AffineTransform.getTranslateInstance(STAGE_WIDTH / 2.0, STAGE_HEIGHT / 2.0);
+            atx.rotate(Math.toRadians(5));
+            atx.scale(0.7, 0.7);
+            atx.translate(-image.getWidth() / 2.0, -image.getHeight() / 2.0);
+            g.drawImage(image, atx, null);
+        } finally {
+            g.dispose();
+        }
+        return frame;
+    }
+}
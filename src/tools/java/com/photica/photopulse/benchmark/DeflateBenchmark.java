@@ -0,0 +1,152 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.benchmark;
+
+import com.photica.photopulse.flash.output.ParallelDeflater;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+
+/**
+ * Compare deflated size against time for each compression level, serial and parallel,
+ * on the ARGB data ZlibBitmap would deflate for each image.
+ * With no images, a synthetic stage sized gradient with noise is used.
+ * Sample usage:
+ * com.photica.photopulse.benchmark.DeflateBenchmark -iterations 10 photo1.jpg photo2.png
+ */
+public class DeflateBenchmark {
+    private static final int WARMUP_ITERATIONS = 3;
+
+    public static void main(String args[]) throws IOException {
+        int iterations = 5;
+        int argc = 0;
+        if (args.length >= 2 && "-iterations".equals(args[0])) {
+            iterations = Integer.parseInt(args[1]);
+            argc = 2;
+        }
+
+        System.out.println("parallel deflate supported: " + ParallelDeflater.isSupported()
+                + ", processors: " + Runtime.getRuntime().availableProcessors());
+        if (argc == args.length)
+            benchmark("synthetic 1024x768", packARGB(createSyntheticImage(1024, 768)), iterations);
+        for (; argc < args.length; argc++) {
+            BufferedImage image = ImageIO.read(new File(args[argc]));
+            if (image == null) {
+                System.err.println("Unable to read " + args[argc]);
+                continue;
+            }
+            benchmark(args[argc], packARGB(image), iterations);
+        }
+    }
+
+    private static void benchmark(String name, byte[] data, int iterations) throws IOException {
+        System.out.println(name + " (" + data.length + " bytes)");
+        System.out.println("level\tserial size\tserial ms\tparallel size\tparallel ms");
+        for (int level = Deflater.BEST_SPEED; level <= Deflater.BEST_COMPRESSION; level++) {
+            long[] serial = time(data, level, false, iterations);
+            long[] parallel = time(data, level, true, iterations);
+            System.out.println(level + "\t" + serial[0] + "\t" + formatMillis(serial[1])
+                    + "\t" + parallel[0] + "\t" + formatMillis(parallel[1]));
+        }
+    }
+
+    /**
+     * @return Deflated size and average nanoseconds
+     */
+    private static long[] time(byte[] data, int level, boolean isParallel, int iterations) throws IOException {
+        long size = 0;
+        long elapsed = 0;
+        for (int i = -WARMUP_ITERATIONS; i < iterations; i++) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2);
+            long start = System.nanoTime();
+            if (isParallel)
+                ParallelDeflater.deflate(data, data.length, level, new DataOutputStream(bos));
+            else
+                deflateSerial(data, level, bos);
+            if (i >= 0)
+                elapsed += System.nanoTime() - start;
+            size = bos.size();
+        }
+        return new long[] { size, elapsed / iterations };
+    }
+
+    private static void deflateSerial(byte[] data, int level, ByteArrayOutputStream bos) {
+        Deflater deflater = new Deflater(level);
+        byte[] zlibData = new byte[64 * 1024];
+        deflater.setInput(data);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int compressedSize = deflater.deflate(zlibData);
+            bos.write(zlibData, 0, compressedSize);
+        }
+        deflater.end();
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.valueOf(nanos / 10000 / 100.0);
+    }
+
+    private static byte[] packARGB(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        byte[] data = new byte[width * height * 4];
+        int offset = 0;
+        int[] scanline = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, scanline, 0, width);
+            for (int x = 0; x < width; x++) {
+                int pixel = scanline[x];
+                data[offset++] = (byte)(pixel >> 24);
+                data[offset++] = (byte)(pixel >> 16);
+                data[offset++] = (byte)(pixel >> 8);
+                data[offset++] = (byte)pixel;
+            }
+        }
+        return data;
+    }
+
+    private static BufferedImage createSyntheticImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(0);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width + random.nextInt(8)) & 0xff;
+                int g = (y * 255 / height + random.nextInt(8)) & 0xff;
+                int b = ((x + y) * 255 / (width + height)) & 0xff;
+                image.setRGB(x, y, 0xff000000 | (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+}
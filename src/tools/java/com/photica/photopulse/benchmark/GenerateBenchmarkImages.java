@@ -0,0 +1,116 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.benchmark;
+
+import javax.imageio.ImageIO;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+
+/**
+ * Generate the test images used by BenchmarkRunner.
+ * The images are deterministic and checked in under src/tools/benchmark/images,
+ * this only needs to be rerun if they change.
+ * Sample usage:
+ * com.photica.photopulse.benchmark.GenerateBenchmarkImages src/tools/benchmark/images
+ */
+public class GenerateBenchmarkImages {
+    public static void main(String args[]) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: <output-dir>");
+            System.exit(1);
+        }
+        File outputDir = new File(args[0]);
+        outputDir.mkdirs();
+
+        write(createImage(1600, 1200, false), "jpg", new File(outputDir, BenchmarkEnvironment.IMAGE_LARGE_JPEG));
+        write(createImage(800, 600, false), "jpg", new File(outputDir, BenchmarkEnvironment.IMAGE_JPEG));
+        write(createImage(800, 600, true), "png", new File(outputDir, BenchmarkEnvironment.IMAGE_PNG));
+    }
+
+    private static void write(BufferedImage image, String format, File file) throws IOException {
+        if (!ImageIO.write(image, format, file))
+            throw new IOException("No writer for " + format);
+        System.out.println(file + " " + file.length());
+    }
+
+    /**
+     * Photo-like image: gradient sky, soft shapes and some fine detail.
+     * @param hasAlpha If true, the image has a transparent vignette
+     */
+    private static BufferedImage createImage(int width, int height, boolean hasAlpha) {
+        BufferedImage image = new BufferedImage(width, height, hasAlpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(width * 31 + height);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setPaint(new GradientPaint(0, 0, new Color(70, 130, 200), 0, height * 0.6f, new Color(220, 200, 160)));
+            g.fillRect(0, 0, width, height);
+            g.setPaint(new GradientPaint(0, height * 0.6f, new Color(60, 110, 40), width, height, new Color(120, 90, 50)));
+            g.fillRect(0, (int)(height * 0.6), width, height);
+
+            for (int i = 0; i < 40; i++) {
+                double size = width * (0.02 + 0.1 * random.nextDouble());
+                g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256), 96 + random.nextInt(160)));
+                g.fill(new Ellipse2D.Double(random.nextDouble() * width, random.nextDouble() * height, size, size * 0.7));
+            }
+
+            g.setStroke(new BasicStroke(1.5f));
+            for (int i = 0; i < 300; i++) {
+                int x = random.nextInt(width);
+                int y = (int)(height * 0.6) + random.nextInt((int)(height * 0.4));
+                g.setColor(new Color(30 + random.nextInt(60), 80 + random.nextInt(80), 20 + random.nextInt(40)));
+                g.drawLine(x, y, x + random.nextInt(9) - 4, y - 5 - random.nextInt(20));
+            }
+        } finally {
+            g.dispose();
+        }
+
+        if (hasAlpha) {
+            // Fade out towards the corners
+            double maxDistance = Math.sqrt(width * width + height * height) / 2;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    double dx = x - width / 2.0;
+                    double dy = y - height / 2.0;
+                    double distance = Math.sqrt(dx * dx + dy * dy) / maxDistance;
+                    int alpha = distance < 0.7 ? 0xff : Math.max(0, (int)(0xff * (1.0 - distance) / 0.3));
+                    image.setRGB(x, y, (alpha << 24) | (image.getRGB(x, y) & 0xffffff));
+                }
+            }
+        }
+        return image;
+    }
+}
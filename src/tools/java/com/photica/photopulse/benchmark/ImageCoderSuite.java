@@ -0,0 +1,101 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.benchmark;
+
+import com.photica.photopulse.imageio.DecodedImage;
+import com.photica.photopulse.imageio.ImageCoder;
+import com.photica.photopulse.imageio.ImageTranscoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ImageCoder.decodeImage() of a large photo to stage size with each scale type,
+ * and ImageCoder.encodeImage() of a show sized photo.
+ */
+public class ImageCoderSuite implements BenchmarkSuite {
+    private static final int STAGE_WIDTH = 640;
+    private static final int STAGE_HEIGHT = 480;
+
+    private static final int[] SCALE_TYPES = {
+        ImageTranscoder.SCALE_SUBSAMPLE,
+        ImageTranscoder.SCALE_NEAREST_NEIGHBOR,
+        ImageTranscoder.SCALE_BILINEAR,
+        ImageTranscoder.SCALE_SUBSAMPLE_BILINEAR
+    };
+    private static final String[] SCALE_TYPE_NAMES = {
+        "subsample", "nearestNeighbor", "bilinear", "subsampleBilinear"
+    };
+
+    public String getName() {
+        return "ImageCoder";
+    }
+
+    public List<Benchmark> createBenchmarks(BenchmarkEnvironment environment) throws Exception {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        final File largeFile = environment.getImageFile(BenchmarkEnvironment.IMAGE_LARGE_JPEG);
+        for (int i = 0; i < SCALE_TYPES.length; i++) {
+            final int scaleType = SCALE_TYPES[i];
+            benchmarks.add(new Benchmark("decodeImage." + SCALE_TYPE_NAMES[i]) {
+                public void run() throws Exception {
+                    ImageCoder.getInstance().decodeImage(largeFile, null, 0, STAGE_WIDTH, STAGE_HEIGHT, scaleType, null);
+                }
+            });
+        }
+
+        final File jpegFile = environment.getImageFile(BenchmarkEnvironment.IMAGE_JPEG);
+        benchmarks.add(new EncodeBenchmark("encodeImage.jpeg", jpegFile, ImageCoder.FORMAT_JPEG));
+        benchmarks.add(new EncodeBenchmark("encodeImage.png", jpegFile, ImageCoder.FORMAT_PNG));
+        return benchmarks;
+    }
+
+    private static class EncodeBenchmark extends Benchmark {
+        private File imageFile;
+        private String format;
+        private DecodedImage image;
+
+        EncodeBenchmark(String name, File imageFile, String format) {
+            super(name);
+            this.imageFile = imageFile;
+            this.format = format;
+        }
+
+        public void setUp() throws Exception {
+            image = ImageCoder.getInstance().decodeImage(imageFile, null, 1.0, 0, 0, ImageTranscoder.SCALE_BILINEAR, null);
+        }
+
+        public void run() throws Exception {
+            ImageCoder.getInstance().encodeImage(image, format, new ByteArrayOutputStream());
+        }
+
+        public void tearDown() {
+            image = null;
+        }
+    }
+}
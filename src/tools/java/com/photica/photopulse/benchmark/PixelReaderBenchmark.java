@@ -0,0 +1,144 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.benchmark;
+
+import com.photica.photopulse.flash.output.PixelReader;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Compare the time per frame to read ARGB scanlines with PixelReader against
+ * per pixel Raster.getDataElements() and ColorModel.getRGB(), for each directly read
+ * image type and a range of frame sizes. The results of both are also verified to match.
+ * Sample usage:
+ * com.photica.photopulse.benchmark.PixelReaderBenchmark -iterations 50
+ */
+public class PixelReaderBenchmark {
+    private static final int WARMUP_ITERATIONS = 10;
+
+    private static final int[][] FRAME_SIZES = { { 320, 240 }, { 640, 480 }, { 1024, 768 } };
+    private static final int[] IMAGE_TYPES = {
+        BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_3BYTE_BGR
+    };
+    private static final String[] IMAGE_TYPE_NAMES = { "INT_ARGB", "INT_RGB", "3BYTE_BGR" };
+
+    public static void main(String args[]) {
+        int iterations = 20;
+        if (args.length >= 2 && "-iterations".equals(args[0]))
+            iterations = Integer.parseInt(args[1]);
+
+        System.out.println("type\tsize\tper pixel ms\tPixelReader ms\tspeedup");
+        for (int t = 0; t < IMAGE_TYPES.length; t++) {
+            for (int[] size : FRAME_SIZES) {
+                BufferedImage image = createImage(size[0], size[1], IMAGE_TYPES[t]);
+                verify(image);
+                // Subimages have a translated sample model
+                verify(image.getSubimage(size[0] / 4, size[1] / 4, size[0] / 2, size[1] / 2));
+
+                long perPixel = time(image, false, iterations);
+                long reader = time(image, true, iterations);
+                System.out.println(IMAGE_TYPE_NAMES[t] + "\t" + size[0] + "x" + size[1]
+                        + "\t" + formatMillis(perPixel) + "\t" + formatMillis(reader)
+                        + "\t" + (Math.round(10.0 * perPixel / reader) / 10.0) + "x");
+            }
+        }
+    }
+
+    /**
+     * @return Average nanoseconds to read the whole image
+     */
+    private static long time(BufferedImage image, boolean isPixelReader, int iterations) {
+        int[] argb = new int[image.getWidth()];
+        long elapsed = 0;
+        for (int i = -WARMUP_ITERATIONS; i < iterations; i++) {
+            long start = System.nanoTime();
+            if (isPixelReader) {
+                PixelReader pixelReader = new PixelReader(image);
+                for (int y = 0; y < image.getHeight(); y++)
+                    pixelReader.readARGB(y, argb);
+            }
+            else {
+                for (int y = 0; y < image.getHeight(); y++)
+                    readPerPixel(image, y, argb);
+            }
+            if (i >= 0)
+                elapsed += System.nanoTime() - start;
+        }
+        return elapsed / iterations;
+    }
+
+    private static void readPerPixel(BufferedImage image, int y, int[] argb) {
+        ColorModel colorModel = image.getColorModel();
+        Raster raster = image.getRaster();
+        Object dataEl = null;
+        for (int x = 0; x < argb.length; x++) {
+            dataEl = raster.getDataElements(x, y, dataEl);
+            argb[x] = colorModel.getRGB(dataEl);
+        }
+    }
+
+    private static void verify(BufferedImage image) {
+        int width = image.getWidth();
+        PixelReader pixelReader = new PixelReader(image);
+        if (!pixelReader.isDirect())
+            throw new IllegalStateException("Image type " + image.getType() + " not read directly");
+        int[] expected = new int[width];
+        int[] actual = new int[width];
+        byte[] expectedAlpha = new byte[width];
+        byte[] actualAlpha = new byte[width];
+        for (int y = 0; y < image.getHeight(); y++) {
+            readPerPixel(image, y, expected);
+            pixelReader.readARGB(y, actual);
+            for (int x = 0; x < width; x++)
+                expectedAlpha[x] = (byte)(expected[x] >>> 24);
+            pixelReader.readAlpha(y, actualAlpha, 0);
+            if (!Arrays.equals(expected, actual) || !Arrays.equals(expectedAlpha, actualAlpha))
+                throw new IllegalStateException("PixelReader mismatch at scanline " + y + " of image type " + image.getType());
+        }
+    }
+
+    private static String formatMillis(long nanos) {
+        return String.valueOf(nanos / 10000 / 100.0);
+    }
+
+    private static BufferedImage createImage(int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Random random = new Random(0);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int alpha = x < width / 8 ? 0 : (x < width / 4 ? random.nextInt(256) : 0xff);
+                image.setRGB(x, y, (alpha << 24) | (random.nextInt() & 0xffffff));
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,100 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.benchmark;
+
+import com.photica.photopulse.exporter.ExporterFactory;
+import com.photica.photopulse.exporter.ShowExporter;
+import com.photica.photopulse.flash.ShowDocumentBuilder;
+import com.photica.photopulse.flash.ShowGenerator;
+import com.photica.photopulse.imageio.ImageCoder;
+import com.photica.photopulse.model.ShowModel;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ShowDocumentBuilder.buildDocument() and a full ShowGenerator.generate() of a synthetic show
+ * with BenchmarkEnvironment.getPhotoCount() photos, exported as SWF in normal and high quality.
+ */
+public class ShowSuite implements BenchmarkSuite {
+    public String getName() {
+        return "Show";
+    }
+
+    public List<Benchmark> createBenchmarks(final BenchmarkEnvironment environment) throws Exception {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        final int photoCount = environment.getPhotoCount();
+
+        benchmarks.add(new Benchmark("ShowDocumentBuilder.buildDocument." + photoCount) {
+            private ShowModel model;
+
+            public void setUp() throws Exception {
+                model = environment.createShowModel(ShowModel.ShowType.SWF, new File(environment.getTempDir(), "show.swf"));
+            }
+
+            public void run() {
+                new ShowDocumentBuilder().buildDocument(model);
+            }
+        });
+
+        benchmarks.add(new GenerateBenchmark("ShowGenerator.generate." + photoCount, environment, false));
+        benchmarks.add(new GenerateBenchmark("ShowGenerator.generate.highQuality." + photoCount, environment, true));
+        return benchmarks;
+    }
+
+    private static class GenerateBenchmark extends Benchmark {
+        private BenchmarkEnvironment environment;
+        private boolean isHighQuality;
+        private File exportFile;
+        private ShowModel model;
+
+        GenerateBenchmark(String name, BenchmarkEnvironment environment, boolean isHighQuality) {
+            super(name);
+            this.environment = environment;
+            this.isHighQuality = isHighQuality;
+        }
+
+        public void setUp() throws Exception {
+            exportFile = new File(environment.getTempDir(), isHighQuality ? "show-hq.swf" : "show.swf");
+            model = environment.createShowModel(ShowModel.ShowType.SWF, exportFile);
+        }
+
+        public void run() throws Exception {
+            ShowExporter exporter = ExporterFactory.getExporter(ShowModel.ShowType.SWF, isHighQuality, exportFile);
+            StringWriter swLogErrors = new StringWriter();
+            boolean isGenerated = ShowGenerator.generate(model, null, exporter, ImageCoder.getInstance(), swLogErrors);
+            if (!isGenerated || swLogErrors.getBuffer().length() > 0)
+                throw new IllegalStateException("Show generation failed: " + swLogErrors);
+        }
+
+        public void tearDown() {
+            exportFile.delete();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is Photica Photopulse.
+ *
+ * The Initial Developer of the Original Code is
+ * Photica Inc.
+ * Portions created by the Initial Developer are Copyright (C) 2009
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * Andrew Wason, Mike Mills
+ * info@photica.com
+ *
+ * ***** END LICENSE BLOCK ***** */
+ 
+package com.photica.photopulse.benchmark;
+
+import com.iv.flash.api.FlashFile;
+import com.iv.flash.api.Instance;
+import com.iv.flash.api.Script;
+import com.iv.flash.api.shape.Shape;
+import com.photica.photopulse.flash.GenerationContext;
+import com.photica.photopulse.flash.context.DefaultTweenBuilder;
+import com.photica.photopulse.flash.context.PhotoContext;
+import com.photica.photopulse.flash.output.LazyGenerator;
+import com.photica.photopulse.imageio.DecodedImage;
+import com.photica.photopulse.imageio.ImageCoder;
+import com.photica.photopulse.imageio.ImageTranscoder;
+
+import java.awt.Dimension;
+import java.awt.geom.AffineTransform;
+import java.io.File;
+import java.io.StringWriter;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PhotoContext.tween() computing a pan/zoom tween, and HighQualityTweenBuilder.createTweenShape()
+ * rendering and encoding a single high quality tween frame.
+ * HighQualityTweenBuilder is package private in a sealed package, so it is reached with reflection.
+ */
+public class TweenSuite implements BenchmarkSuite {
+    private static final int STAGE_WIDTH = 640;
+    private static final int STAGE_HEIGHT = 480;
+    private static final int TWEEN_FRAMES = 90;
+    // Distinct zoom levels cycled through by createTweenShape
+    private static final int ZOOM_STEPS = 30;
+
+    public String getName() {
+        return "Tween";
+    }
+
+    public List<Benchmark> createBenchmarks(final BenchmarkEnvironment environment) throws Exception {
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+        benchmarks.add(new Benchmark("PhotoContext.tween") {
+            private PhotoContext context;
+            private Shape shape;
+
+            public void setUp() {
+                context = new PhotoContext(FlashFile.newFlashFile(), ImageCoder.getInstance(), null, false, null,
+                        new GenerationContext(new StringWriter(), null));
+                shape = Shape.newEmptyShape1();
+            }
+
+            public void run() throws Exception {
+                Script script = new Script(TWEEN_FRAMES);
+                AffineTransform atxBegin = AffineTransform.getScaleInstance(1.0, 1.0);
+                AffineTransform atxEnd = AffineTransform.getTranslateInstance(400, 200);
+                atxEnd.scale(1.4, 1.4);
+                context.tween(new DefaultTweenBuilder(script, shape, 1, DefaultTweenBuilder.TWEEN_INSTANCE_ADD),
+                        0, TWEEN_FRAMES,
+                        AffineTransform.getTranslateInstance(-100, -50),
+                        atxBegin, null, 0, 0, 0,
+                        atxEnd, null, 5, 0, 0,
+                        AffineTransform.getTranslateInstance(500, 250),
+                        true);
+            }
+        });
+
+        benchmarks.add(new Benchmark("HighQualityTweenBuilder.createTweenShape") {
+            private LazyGenerator lazyGenerator;
+            private Object tweenBuilder;
+            private Method createTweenShape;
+            private int frame = 0;
+
+            public void setUp() throws Exception {
+                lazyGenerator = new LazyGenerator(new File(environment.getTempDir(), "tween.swf"));
+                PhotoContext context = new PhotoContext(FlashFile.newFlashFile(), ImageCoder.getInstance(), null, true, lazyGenerator,
+                        new GenerationContext(new StringWriter(), null));
+                context.setStageSize(new Dimension(STAGE_WIDTH, STAGE_HEIGHT));
+
+                File imageFile = environment.getImageFile(BenchmarkEnvironment.IMAGE_JPEG);
+                DecodedImage image = ImageCoder.getInstance().decodeImage(imageFile, null, 1.0, 0, 0, ImageTranscoder.SCALE_BILINEAR, null);
+                Instance instance = new Instance();
+                instance.depth = 1;
+
+                Class<?> builderClass = Class.forName("com.photica.photopulse.commands.HighQualityTweenBuilder");
+                Constructor<?> constructor = builderClass.getDeclaredConstructor(new Class[] {
+                    PhotoContext.class, Script.class, Instance.class, DecodedImage.class, int.class, int.class, boolean.class
+                });
+                constructor.setAccessible(true);
+                tweenBuilder = constructor.newInstance(new Object[] {
+                    context, new Script(1), instance, image, Integer.valueOf(0), Integer.valueOf(1), Boolean.FALSE
+                });
+                createTweenShape = builderClass.getMethod("createTweenShape", new Class[] { AffineTransform.class });
+                createTweenShape.setAccessible(true);
+            }
+
+            public void run() throws Exception {
+                double zoom = 1.0 + 0.4 * (frame++ % ZOOM_STEPS) / ZOOM_STEPS;
+                try {
+                    createTweenShape.invoke(tweenBuilder, new Object[] { AffineTransform.getScaleInstance(zoom, zoom) });
+                } catch (InvocationTargetException e) {
+                    Throwable t = e.getTargetException();
+                    if (t instanceof Exception)
+                        throw (Exception)t;
+                    throw (Error)t;
+                }
+            }
+
+            public void tearDown() {
+                lazyGenerator.cleanup();
+                tweenBuilder = null;
+            }
+        });
+
+        return benchmarks;
+    }
+}